@@ -0,0 +1,16 @@
+SAMPLE s_orders BY custkey
+UNTIL 100 <= (SELECT COUNT(DISTINCT custkey) FROM s_orders WHERE totalprice > 1000)
+SELECT orderstatus, SUM(totalprice) * _FACTOR FROM s_orders WHERE orderdate >= '2017-01-01' GROUP BY orderstatus ORDER BY 2 DESC;
+
+SAMPLE s_lineitem AS l BY custkey
+WITH w AS (SELECT * FROM l WHERE quantity > 10)
+UNTIL RELATIVE ERROR OF AVG(extendedprice) < 0.01 WITH CONFIDENCE 0.95
+SELECT AVG(extendedprice) FROM w;
+
+SAMPLE s_orders AS o BY custkey
+UNTIL TIME 100 MS
+SELECT CASE WHEN o.totalprice BETWEEN 1 AND 2 THEN 1 ELSE 0 END, COUNT(*) * _FACTOR FROM o, (SELECT custkey FROM customer) AS c WHERE o.custkey = c.custkey GROUP BY 1;
+
+SAMPLE s_lineitem BY orderkey
+UNTIL 1000 <= (SELECT COUNT(*) FROM s_lineitem)
+SELECT l_returnflag, SUM(quantity) * _FACTOR, AVG(discount) FROM s_lineitem WHERE shipdate <= '2017-12-01' GROUP BY l_returnflag HAVING COUNT(*) > 1;
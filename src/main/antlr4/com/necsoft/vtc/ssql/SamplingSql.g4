@@ -16,6 +16,7 @@ parse
 
 topSelectStmt
 : sampleClause? // allow SAMPLE clause on top level
+  levelHint? // LEVEL 12
   withClause?
   untilClause? // UNTIL clause on top level
   selectStmt
@@ -45,6 +46,15 @@ sampleColumn
 : localName
 ;
 
+// words are IDENTIFIER so as not to reserve them, and are tested by the rewriter.
+levelHint
+: levelWord NUMERIC_LITERAL
+;
+
+levelWord
+: IDENTIFIER // LEVEL
+;
+
 withClause
 : WITH content+
 ;
@@ -118,7 +128,30 @@ whereClause
 ;
 
 untilClause
-: UNTIL content+
+: UNTIL timeBudget // UNTIL TIME 500 MS
+| UNTIL errorBound // UNTIL RELATIVE ERROR OF AVG(x) < 0.01 WITH CONFIDENCE 0.95
+| UNTIL content+
+;
+
+timeBudget
+: TIME NUMERIC_LITERAL timeUnit
+;
+
+timeUnit
+: IDENTIFIER // MS, MILLISECOND(S), S, SEC, SECOND(S)
+;
+
+// words are IDENTIFIER so as not to reserve them, and are tested by the rewriter.
+errorBound
+: errorWord errorWord errorWord errorFunction '(' contentInParen ')' OPERATORS NUMERIC_LITERAL WITH errorWord NUMERIC_LITERAL
+;
+
+errorWord
+: IDENTIFIER // RELATIVE, ERROR, OF, CONFIDENCE
+;
+
+errorFunction
+: IDENTIFIER // AVG, SUM, COUNT
 ;
 
 groupClause
@@ -270,6 +303,11 @@ OPERATORS
 | '||'
 ;
 
+// parameter marker of PreparedStatement
+PARAMETER
+: '?'
+;
+
 SINGLE_LINE_COMMENT
 : '--' ~[\r\n]* -> channel(HIDDEN)
 ;
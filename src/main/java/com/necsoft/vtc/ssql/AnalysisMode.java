@@ -0,0 +1,36 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+/**
+ * Defines how the sampling query is analyzed for the patterns that read the whole table in spite of sampling.
+ * The analysis is done once per query text, before the query is executed or prepared.
+ */
+public enum AnalysisMode {
+
+	/** Does not analyze the sampling query. */
+	NONE,
+
+	/** Reports the patterns as SQLWarning of the statement, and executes the query. This is the default mode. */
+	WARN,
+
+	/** Rejects the sampling query with SQLException if any pattern is found. */
+	STRICT;
+
+	/**
+	 * Returns the AnalysisMode which name matches specified string, ignoring case.
+	 * @param name	name of the mode
+	 * @return	AnalysisMode
+	 * @throws IllegalArgumentException	if specified name is unknown
+	 */
+	static AnalysisMode of(String name) {
+		return valueOf(name.trim().toUpperCase());
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A SqlRewriter of the SQL in {@link RewriteBundle}, which rewrites the SQL by filling the template without parsing.
+ * <p>The sample tables in the bundle are checked against the meta information of sampling tables at the first rewrite.
+ * If they are not sampling tables any more, the SQL is parsed and the error is reported as usual.
+ * UNTIL condition that can be decomposed by level is not stored in the bundle,
+ * thus the SQL is parsed when it is needed by cumulative or incremental condition query.
+ * The levels above which UNTIL condition can not be satisfied are not omitted from candidate levels, because they depend on the UNTIL condition.
+ */
+class BundledRewriter implements SqlRewriter {
+
+	private final DatabaseDef databaseDef;
+	private final int numLevel;
+	private final String sql;
+	private final boolean rewriteInlineViewEnabled;
+	private final int base;
+	private final RewriteBundle.Entry entry;
+
+	/** true if the sample tables are checked. */
+	private boolean checked = false;
+	/** rewriter parsing the SQL, which is created when it is needed. */
+	private SamplingSqlRewriter parsed = null;
+
+	/**
+	 * Constructor
+	 * @param databaseDef	meta information of sampling tables
+	 * @param sql	SQL text
+	 * @param bundle	the bundle containing the SQL, which is generated with the same rewriting mode and number of levels as the connection
+	 * @param entry	the entry of the SQL in the bundle
+	 */
+	BundledRewriter(DatabaseDef databaseDef, String sql, RewriteBundle bundle, RewriteBundle.Entry entry) {
+		this.databaseDef = databaseDef;
+		this.numLevel = bundle.numLevel;
+		this.sql = sql;
+		this.rewriteInlineViewEnabled = bundle.rewriteInlineViewEnabled;
+		this.base = bundle.base;
+		this.entry = entry;
+	}
+
+	/**
+	 * Returns the rewriter parsing the SQL, creating it at the first call.
+	 * @return	SamplingSqlRewriter
+	 * @throws SQLException	if the SQL can not be parsed
+	 */
+	private synchronized SamplingSqlRewriter getParsed() throws SQLException {
+		if (parsed == null) {
+			try {
+				parsed = new SamplingSqlRewriter(databaseDef, numLevel, sql, rewriteInlineViewEnabled);
+			}
+			catch (UnsupportedOperationException e) {
+				throw new SQLException(e);
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Returns the rewriter parsing the SQL if the sample tables in the bundle are not sampling tables of the database,
+	 * so that the error is reported by parsing. This method must be called after meta information of sampling tables is loaded.
+	 * @return	SamplingSqlRewriter, or null if the template in the bundle can be used.
+	 * @throws SQLException	if the SQL can not be parsed
+	 */
+	private synchronized SamplingSqlRewriter checkSampleTables() throws SQLException {
+		if (!checked) {
+			for (String[] sampleTable : entry.sampleTables) {
+				TableDef tableDef = databaseDef.get(sampleTable[0]);
+				if (tableDef == null || !tableDef.isSampleColumn(sampleTable[1])) {
+					getParsed();
+					break;
+				}
+			}
+			checked = true;
+		}
+		return parsed;
+	}
+
+	@Override
+	public QuerySet rewrite(int targetLv) throws SQLException {
+		SamplingSqlRewriter rewriter = checkSampleTables();
+		if (rewriter != null) {
+			return rewriter.rewrite(targetLv);
+		}
+		if (targetLv < 0 || targetLv >= numLevel) {
+			throw new IllegalArgumentException("targetLv = " + targetLv);
+		}
+		return entry.template.fill(targetLv, base);
+	}
+
+	@Override
+	public String rewriteCumulative(int toLv) throws SQLException {
+		return getParsed().rewriteCumulative(toLv);
+	}
+
+	@Override
+	public long getTimeBudgetMillis() throws SQLException {
+		return entry.timeBudgetMillis;
+	}
+
+	@Override
+	public int getLevelHint() throws SQLException {
+		return entry.levelHint;
+	}
+
+	@Override
+	public DecomposableUntil getDecomposableUntil() {
+		try {
+			return getParsed().getDecomposableUntil();
+		}
+		catch (SQLException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public int[] getCandidateLevels() throws SQLException {
+		SamplingSqlRewriter rewriter = checkSampleTables();
+		if (rewriter != null) {
+			return rewriter.getCandidateLevels();
+		}
+		return SamplingSqlRewriter.getCandidateLevels(databaseDef, numLevel, entry.sampleTables, numLevel - 1);
+	}
+
+	@Override
+	public int getStatisticsLevel() throws SQLException {
+		return getParsed().getStatisticsLevel();
+	}
+
+	@Override
+	public String[][] getSampleTables() throws SQLException {
+		SamplingSqlRewriter rewriter = checkSampleTables();
+		return rewriter != null ? rewriter.getSampleTables() : entry.sampleTables;
+	}
+
+	@Override
+	public int getParameterCount() {
+		return entry.parameterCount;
+	}
+
+	@Override
+	public int[] getConditionParameterIndexes() throws SQLException {
+		SamplingSqlRewriter rewriter = checkSampleTables();
+		return rewriter != null ? rewriter.getConditionParameterIndexes() : entry.template.getConditionParameters();
+	}
+
+	@Override
+	public int[] getAggregateParameterIndexes() throws SQLException {
+		SamplingSqlRewriter rewriter = checkSampleTables();
+		return rewriter != null ? rewriter.getAggregateParameterIndexes() : entry.template.getAggregateParameters();
+	}
+
+	@Override
+	public ParameterizedQuery getParameterizedConditionQuery() throws SQLException {
+		SamplingSqlRewriter rewriter = checkSampleTables();
+		return rewriter != null ? rewriter.getParameterizedConditionQuery() : entry.template.parameterizeCondition(base);
+	}
+
+	@Override
+	public ParameterizedQuery getParameterizedAggregateQuery() throws SQLException {
+		SamplingSqlRewriter rewriter = checkSampleTables();
+		return rewriter != null ? rewriter.getParameterizedAggregateQuery() : entry.template.parameterizeAggregate(base);
+	}
+
+	@Override
+	public List<String> getPerformanceWarnings() throws SQLException {
+		SamplingSqlRewriter rewriter = checkSampleTables();
+		return rewriter != null ? rewriter.getPerformanceWarnings() : entry.performanceWarnings;
+	}
+
+	@Override
+	public boolean hasSampleClause() {
+		return true;
+	}
+
+	@Override
+	public String getFingerprint() {
+		return entry.fingerprint;
+	}
+
+}
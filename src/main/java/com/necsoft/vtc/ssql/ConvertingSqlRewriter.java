@@ -85,10 +85,13 @@ class ConvertingSqlRewriter {
 
 		tokens = new CommonTokenStream(lexer);
 		parser = new ConvertingSqlParser(tokens);
-		parser.removeErrorListeners();
-		parser.addErrorListener(errorListener);
 
-		tree = parser.parse();
+		tree = RewriterCommon.parseTwoStage(parser, errorListener, new RewriterCommon.StartRule<ParseContext>() {
+			@Override
+			public ParseContext parse() {
+				return parser.parse();
+			}
+		});
 	}
 
 	String getErrorMessage() {
@@ -346,6 +349,17 @@ class ConvertingSqlRewriter {
 				")\n";
 	}
 
+	String getCreateLevelStatsTableSQL() {
+		return "CREATE TABLE _SAMPLE_LEVEL_STATS (\n" +
+				" TABLE_NAME VARCHAR(250),\n" +
+				" KEY_NAME VARCHAR(250),\n" +
+				" LEVEL_VALUE SMALLINT,\n" +
+				" NUM_ROWS BIGINT,\n" +
+				" NUM_KEYS BIGINT,\n" +
+				" PRIMARY KEY (TABLE_NAME,KEY_NAME,LEVEL_VALUE)\n" +
+				")\n";
+	}
+
 	private String findColumnDataType(String findName) {
 		if (findName == null) {
 			for (int i = 0; i < columns.size(); i++) {
@@ -414,6 +428,45 @@ class ConvertingSqlRewriter {
 		return sb.toString();
 	}
 
+	/**
+	 * Returns statements that store number of rows and number of distinct sample keys for each value of level columns.
+	 * First statement deletes statistics remaining from the sampling table previously converted with the same name.
+	 * @return	list of statements
+	 */
+	List<String> getInsertLevelStatsSQL() {
+		List<String> sqls = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("DELETE FROM _SAMPLE_LEVEL_STATS WHERE TABLE_NAME = '").append(samplingTableName).append('\'');
+		sqls.add(sb.toString());
+
+		for (int i = 0; i < keyNames.size(); i++) {
+			sb.setLength(0);
+			sb.append("INSERT INTO _SAMPLE_LEVEL_STATS\n");
+			sb.append(" SELECT '").append(samplingTableName).append("','").append(keyNames.get(i)).append("',");
+			sb.append(levelNames.get(i)).append(",COUNT(*),COUNT(DISTINCT ");
+			String[] keyExpr = keyExprs.get(i);
+			if (keyExpr.length == 1) {
+				sb.append(keyExpr[0]);
+			}
+			else {
+				// count distinct combinations of columns
+				for (int j = 0; j < keyExpr.length; j++) {
+					if (j > 0) {
+						sb.append(" || ',' || ");
+					}
+					sb.append("CAST(").append(keyExpr[j]).append(" AS VARCHAR)");
+				}
+			}
+			sb.append(")\n");
+			sb.append(" FROM ").append(stagingTableName).append('\n');
+			sb.append(" GROUP BY ").append(levelNames.get(i)).append('\n');
+			sqls.add(sb.toString());
+		}
+
+		return sqls;
+	}
+
 	String getInsertTableSQL() {
 		int numSamplekeys = keyNames.size();
 		int numColumns = columns.size();
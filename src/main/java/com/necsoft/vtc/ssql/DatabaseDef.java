@@ -9,6 +9,8 @@ in the project root for more information.
 package com.necsoft.vtc.ssql;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -16,25 +18,98 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class for storing meta information of sampling tables.
+ * <p>The meta information is replaced as a whole when it is reloaded, so that it can be read by many connections concurrently.
+ * The connections of the same database and user share a DatabaseDef, see {@link #getShared(String, Properties)}.
+ * The generation is incremented every time the meta information is replaced,
+ * so that the objects depending on it, such as parse results of sampling SQL, can be discarded.
  */
 public class DatabaseDef {
 
 	/** SELECT statement retrieving information about sampling tables */
 	private static final String LOAD_META_SQL = "SELECT TABLE_NAME,KEY_NAME,LEVEL_NAME FROM _SAMPLE_KEY_DEFS ORDER BY KEY_ORDER";
 
-	private Map<String, TableDef> databaseDef;
+	/** Name of the table storing number of rows and number of distinct sample keys for each level */
+	private static final String LEVEL_STATS_TABLE = "_SAMPLE_LEVEL_STATS";
+
+	/** SELECT statement retrieving number of rows and number of distinct sample keys for each level */
+	private static final String LOAD_LEVEL_STATS_SQL = "SELECT TABLE_NAME,KEY_NAME,LEVEL_VALUE,NUM_ROWS,NUM_KEYS FROM " + LEVEL_STATS_TABLE;
+
+	/** DatabaseDef shared by connections, key is JDBC URL and user name of the underlying database. */
+	private static final ConcurrentMap<String, DatabaseDef> sharedDefs = new ConcurrentHashMap<>();
+
+	/** JDBC URL of the underlying database used to reload in background, or null if reloaded by the connection using this DatabaseDef. */
+	private final String srcUrl;
+	/** connection properties of the underlying database used to reload in background. */
+	private final Properties srcInfo;
+
+	/** sampling tables, which is replaced as a whole when reloaded. null if not loaded yet. */
+	private volatile IdentifierMap<TableDef> databaseDef;
+	/** System.nanoTime() when the meta information was loaded. */
+	private volatile long loadedAt = 0;
+	/** incremented every time the meta information is replaced. */
+	private final AtomicLong generation = new AtomicLong();
+	/** true while the meta information is reloaded in background. */
+	private final AtomicBoolean reloading = new AtomicBoolean();
+
+	/**
+	 * Creates DatabaseDef that is not loaded yet, and is reloaded by the connection using it.
+	 */
+	public DatabaseDef() {
+		this(null, null);
+	}
+
+	private DatabaseDef(String srcUrl, Properties srcInfo) {
+		this.srcUrl = srcUrl;
+		this.srcInfo = srcInfo;
+	}
+
+	/**
+	 * Returns DatabaseDef shared by the connections to specified database as the same user, creating it at the first call.
+	 * The shared DatabaseDef is reloaded in background by a new connection, when its time to live has elapsed.
+	 * @param srcUrl	JDBC URL of the underlying database
+	 * @param srcInfo	connection properties of the underlying database, which is copied
+	 * @return	DatabaseDef
+	 */
+	static DatabaseDef getShared(String srcUrl, Properties srcInfo) {
+		String key = srcUrl + '\n' + srcInfo.getProperty("user", "");
+		DatabaseDef databaseDef = sharedDefs.get(key);
+		if (databaseDef == null) {
+			Properties info = new Properties();
+			info.putAll(srcInfo);
+			DatabaseDef created = new DatabaseDef(srcUrl, info);
+			databaseDef = sharedDefs.putIfAbsent(key, created);
+			if (databaseDef == null) {
+				databaseDef = created;
+			}
+		}
+		return databaseDef;
+	}
 
 	/**
 	 * Returns TableDef which name matches specified identifier. The identifier may be quoted identifier.
 	 * @param id	identifier to find
-	 * @return	TableDef, or null if TableDef which name matches the specified identifier is not found.
+	 * @return	TableDef, or null if TableDef which name matches the specified identifier is not found, or if not loaded yet.
 	 */
 	TableDef get(String id) {
-		return SqlUtils.findIdentifier(databaseDef, id);
+		IdentifierMap<TableDef> tables = databaseDef;
+		return tables == null ? null : tables.get(id);
+	}
+
+	/**
+	 * Returns the generation of the meta information, which is incremented every time it is loaded.
+	 * @return	generation, or 0 if not loaded yet
+	 */
+	long getGeneration() {
+		return generation.get();
 	}
 
 	/**
@@ -45,26 +120,186 @@ public class DatabaseDef {
 	 * @throws SQLException	if error occurred
 	 */
 	void load(Connection conn) throws SQLException {
-		if (databaseDef != null) {
+		load(conn, 0);
+	}
+
+	/**
+	 * Loads meta information of sampling tables if not loaded yet, or reloads it if specified time to live has elapsed since it was loaded.
+	 * The first load is done by specified connection. A shared DatabaseDef is reloaded in background by a new connection,
+	 * and the current meta information is used until the reload completes. Otherwise it is reloaded by specified connection.
+	 * @param conn	connection to underlying database
+	 * @param ttlMillis	time to live of the meta information in milliseconds, or 0 if it is never reloaded
+	 * @throws SQLException	if error occurred
+	 */
+	void load(Connection conn, long ttlMillis) throws SQLException {
+		if (databaseDef == null) {
+			synchronized (this) {
+				if (databaseDef == null) {
+					reload(conn);
+				}
+			}
+		}
+		else if (ttlMillis > 0 && System.nanoTime() - loadedAt > TimeUnit.MILLISECONDS.toNanos(ttlMillis)) {
+			if (srcUrl != null) {
+				reloadInBackground();
+			}
+			else {
+				reload(conn);
+			}
+		}
+	}
+
+	/**
+	 * Reloads meta information of sampling tables in a daemon thread by a new connection, unless it is being reloaded.
+	 * If the reload fails, the current meta information is used until the time to live elapses again.
+	 */
+	private void reloadInBackground() {
+		if (!reloading.compareAndSet(false, true)) {
 			return;
 		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try (Connection conn = DriverManager.getConnection(srcUrl, srcInfo)) {
+					reload(conn);
+				}
+				catch (SQLException e) {
+					loadedAt = System.nanoTime();
+				}
+				finally {
+					reloading.set(false);
+				}
+			}
+		}, "sampling-sql-catalog-reload");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Loads meta information of sampling tables by specified connection, and replaces the current one.
+	 * This is called after sampling tables are converted, so that they are visible to all connections sharing this DatabaseDef.
+	 * @param conn	connection to underlying database
+	 * @throws SQLException	if error occurred
+	 */
+	synchronized void reload(Connection conn) throws SQLException {
 		Map<String, TableDef> dbDef = new HashMap<>();
 		try (Statement stmt = conn.createStatement();) {
 			try (ResultSet rs = stmt.executeQuery(LOAD_META_SQL);) {
 				while (rs.next()) {
-					String tname = rs.getString(1).toLowerCase();
-					String kname = rs.getString(2).toLowerCase();
-					TableDef tblDef = dbDef.get(tname);
-					if (tblDef == null) {
-						tblDef = new TableDef(tname, new ArrayList<ColumnDef>());
-						dbDef.put(tname, tblDef);
+					addKeyDef(dbDef, rs.getString(1), rs.getString(2));
+				}
+			}
+			if (existsTable(conn, LEVEL_STATS_TABLE)) {
+				// level statistics table does not exist if sampling tables were converted by older version.
+				try (ResultSet rs = stmt.executeQuery(LOAD_LEVEL_STATS_SQL);) {
+					while (rs.next()) {
+						TableDef tblDef = dbDef.get(rs.getString(1).toLowerCase());
+						if (tblDef == null) {
+							continue;
+						}
+						String kname = SqlUtils.unquoteIdentifier(rs.getString(2).toLowerCase());
+						LevelHistogram histogram = tblDef.levelHistograms.get(kname);
+						if (histogram == null) {
+							histogram = new LevelHistogram();
+							tblDef.levelHistograms.put(kname, histogram);
+						}
+						histogram.add(rs.getInt(3), rs.getLong(4), rs.getLong(5));
 					}
-					tblDef.columnDefs.add(new ColumnDef(kname, true));
-					tblDef.sampleColumnDefs.add(new ColumnDef(kname, true));
 				}
-				databaseDef = dbDef;
+			}
+			publish(dbDef);
+		}
+	}
+
+	/**
+	 * Load DatabaseDef object from specified unit keys, instead of the meta table of the underlying database.
+	 * Level histograms are not loaded. This is used to rewrite sampling SQL without connecting to the database.
+	 * If DatabaseDef already has been loaded, this method do nothing.
+	 * @param keyDefs	pairs of sampling table name and unit key name, in the order of unit keys
+	 */
+	synchronized void load(Iterable<String[]> keyDefs) {
+		if (databaseDef != null) {
+			return;
+		}
+		Map<String, TableDef> dbDef = new HashMap<>();
+		for (String[] keyDef : keyDefs) {
+			addKeyDef(dbDef, keyDef[0], keyDef[1]);
+		}
+		publish(dbDef);
+	}
+
+	/** Replaces the meta information by the sampling tables loaded, which are not modified any more. */
+	private void publish(Map<String, TableDef> dbDef) {
+		IdentifierMap<TableDef> tables = new IdentifierMap<>();
+		for (TableDef tblDef : dbDef.values()) {
+			tables.put(tblDef.tableName, tblDef);
+		}
+		databaseDef = tables;
+		loadedAt = System.nanoTime();
+		generation.incrementAndGet();
+	}
+
+	/** Adds a unit key of a sampling table, which is a row of _SAMPLE_KEY_DEFS. */
+	private static void addKeyDef(Map<String, TableDef> dbDef, String tableName, String keyName) {
+		String tname = tableName.toLowerCase();
+		String kname = keyName.toLowerCase();
+		TableDef tblDef = dbDef.get(tname);
+		if (tblDef == null) {
+			tblDef = new TableDef(tname, new ArrayList<ColumnDef>());
+			dbDef.put(tname, tblDef);
+		}
+		tblDef.addSampleColumn(new ColumnDef(kname, true));
+	}
+
+	/**
+	 * Tests if specified table exists in the current schema, without executing statement that may abort current transaction.
+	 * The name is escaped, because it is a pattern in which '_' matches any character.
+	 * @param conn	connection to underlying database
+	 * @param tableName	table name in upper case
+	 * @return	true if the table exists
+	 * @throws SQLException	if error occurred
+	 */
+	private static boolean existsTable(Connection conn, String tableName) throws SQLException {
+		DatabaseMetaData metaData = conn.getMetaData();
+		String escape = metaData.getSearchStringEscape();
+		String schema = getSchema(conn);
+		String schemaPattern = schema == null ? null : escapePattern(schema, escape);
+		for (String name : new String[] {tableName.toLowerCase(), tableName}) {
+			try (ResultSet rs = metaData.getTables(null, schemaPattern, escapePattern(name, escape), null);) {
+				if (rs.next()) {
+					return true;
+				}
 			}
 		}
+		return false;
+	}
+
+	/**
+	 * Returns the current schema of specified connection.
+	 * @param conn	connection to underlying database
+	 * @return	schema name, or null if the driver does not support it
+	 */
+	private static String getSchema(Connection conn) {
+		try {
+			return conn.getSchema();
+		}
+		catch (SQLException | AbstractMethodError e) {
+			// drivers older than JDBC 4.1, or the database without schema.
+			return null;
+		}
+	}
+
+	/**
+	 * Escapes the wildcard characters of a pattern of DatabaseMetaData.
+	 * @param name	name to search
+	 * @param escape	escape string of the database, or null or empty if not supported
+	 * @return	pattern that matches only specified name
+	 */
+	private static String escapePattern(String name, String escape) {
+		if (escape == null || escape.isEmpty()) {
+			return name;
+		}
+		return name.replace(escape, escape + escape).replace("_", escape + "_").replace("%", escape + "%");
 	}
 
 }
@@ -80,11 +315,103 @@ class ColumnDef {
 	}
 }
 
+/**
+ * Class for representing number of rows and number of distinct sample keys for each level of a sample key.
+ * Level is bitwise complement of the value of level column, thus level 0 is the largest and contains most of rows.
+ */
+class LevelHistogram {
+	/** number of levels that level column can represent. */
+	static final int MAX_LEVEL = 32;
+
+	private final long[] rows = new long[MAX_LEVEL];
+	private final long[] keys = new long[MAX_LEVEL];
+
+	/**
+	 * Adds number of rows and number of distinct sample keys of specified level column value.
+	 * @param levelValue	value of level column
+	 * @param numRows	number of rows
+	 * @param numKeys	number of distinct sample keys
+	 */
+	void add(int levelValue, long numRows, long numKeys) {
+		int level = ~levelValue;
+		if (level >= 0 && level < MAX_LEVEL) {
+			rows[level] += numRows;
+			keys[level] += numKeys;
+		}
+	}
+
+	/**
+	 * Tests if the sample of specified level contains rows that are not contained in the sample of the next higher level.
+	 * @param level	level
+	 * @return	true if any row has the specified level
+	 */
+	boolean isPopulated(int level) {
+		return rows[level] > 0;
+	}
+
+	/**
+	 * Returns the highest level that has any rows, that is, the level of the smallest non-empty sample.
+	 * @return	level, or -1 if sampling table is empty
+	 */
+	int getMaxPopulatedLevel() {
+		for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+			if (rows[level] > 0) {
+				return level;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the lowest level that has any rows, that is, the level from which the sample contains all rows.
+	 * @return	level, or -1 if sampling table is empty
+	 */
+	int getMinPopulatedLevel() {
+		for (int level = 0; level < MAX_LEVEL; level++) {
+			if (rows[level] > 0) {
+				return level;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns number of rows in the sample of specified level.
+	 * @param level	level
+	 * @return	number of rows
+	 */
+	long getSampleRows(int level) {
+		long sum = 0;
+		for (int i = level; i < MAX_LEVEL; i++) {
+			sum += rows[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns number of distinct sample keys in the sample of specified level.
+	 * Sample keys in different levels are disjoint, because level is a function of sample key.
+	 * @param level	level
+	 * @return	number of distinct sample keys
+	 */
+	long getSampleKeys(int level) {
+		long sum = 0;
+		for (int i = level; i < MAX_LEVEL; i++) {
+			sum += keys[i];
+		}
+		return sum;
+	}
+}
+
 /** Class for representing sampling table */
 class TableDef {
 	final String tableName;
 	final List<ColumnDef> columnDefs;
 	final List<ColumnDef> sampleColumnDefs;
+	/** level histograms, key is non quoted unit key name. */
+	final IdentifierMap<LevelHistogram> levelHistograms = new IdentifierMap<>();
+	/** ordinal numbers of unit keys, key is non quoted unit key name. */
+	private final Map<String, Integer> sampleColumnOrders = new HashMap<>();
 
 	TableDef(String tableName, List<ColumnDef> columnDefs) {
 		this.tableName = tableName;
@@ -92,11 +419,28 @@ class TableDef {
 		sampleColumnDefs = new ArrayList<ColumnDef>();
 		for (ColumnDef columnDef : columnDefs) {
 			if (columnDef.isSampleColumn) {
-				sampleColumnDefs.add(columnDef);
+				addSampleColumnOrder(columnDef);
 			}
 		}
 	}
 
+	/**
+	 * Adds a unit key to this TableDef.
+	 * @param columnDef	column of unit key
+	 */
+	void addSampleColumn(ColumnDef columnDef) {
+		columnDefs.add(columnDef);
+		addSampleColumnOrder(columnDef);
+	}
+
+	private void addSampleColumnOrder(ColumnDef columnDef) {
+		String name = SqlUtils.unquoteIdentifier(columnDef.columnName);
+		if (!sampleColumnOrders.containsKey(name)) {
+			sampleColumnOrders.put(name, sampleColumnDefs.size());
+		}
+		sampleColumnDefs.add(columnDef);
+	}
+
 	/**
 	 * Returns list of unit keys in this TableDef.
 	 * @return	list of unit keys in this TableDef
@@ -111,12 +455,16 @@ class TableDef {
 	 * @return	test result
 	 */
 	boolean isSampleColumn(String columnName) {
-		for (ColumnDef columnDef : sampleColumnDefs) {
-			if (SqlUtils.unquoteIdentifier(columnDef.columnName).equals(SqlUtils.unquoteIdentifier(columnName))) {
-				return true;
-			}
-		}
-		return false;
+		return getSampleColumnOrder(columnName) >= 0;
+	}
+
+	/**
+	 * Returns level histogram of specified unit key.
+	 * @param columnName	column name of unit key, it may be quoted identifier.
+	 * @return	LevelHistogram, or null if level statistics of the unit key is not stored.
+	 */
+	LevelHistogram getLevelHistogram(String columnName) {
+		return levelHistograms.get(columnName);
 	}
 
 	/**
@@ -133,12 +481,8 @@ class TableDef {
 	 * @return	ordinal number of unit keys, or -1 if specified column name is not unit key.
 	 */
 	int getSampleColumnOrder(String columnName) {
-		for (int i = 0; i < sampleColumnDefs.size(); i++) {
-			if (SqlUtils.unquoteIdentifier(sampleColumnDefs.get(i).columnName).equals(SqlUtils.unquoteIdentifier(columnName))) {
-				return i;
-			}
-		}
-		return -1;
+		Integer order = sampleColumnOrders.get(SqlUtils.unquoteIdentifier(columnName));
+		return order != null ? order : -1;
 	}
 
 	/**
@@ -215,30 +559,45 @@ class SqlUtils {
 	static boolean isQuotedIdentifier(String s) {
 		return s != null && s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"';
 	}
+}
+
+/**
+ * A map from identifiers to values, which finds quoted and non quoted identifiers by hash lookups.
+ * An identifier matches the key that is equal to it after removing quotes, or else the key that is equal to it ignoring case.
+ * The keys are normalized when they are put, instead of comparing them with the identifier at each lookup.
+ * This map is not synchronized, and must not be modified after it is published to other threads.
+ * @param <T>	type of values
+ */
+class IdentifierMap<T> {
+	/** values, key is non quoted identifier. */
+	private final Map<String, T> unquoted = new HashMap<>();
+	/** values, key is non quoted identifier in lower case. */
+	private final Map<String, T> lowerCase = new HashMap<>();
 
 	/**
-	 * Returns the value to which the specified identifier is mapped, by considering quoted identifier.
-	 * @param map	Map to find
-	 * @param id	identifier to find.
-	 * @return	the value to which the specified id is mapped, or null if specified map contains no mapping for the identifier.
+	 * Maps specified value to specified identifier. If another identifier is normalized to the same key, the value put first is found.
+	 * @param id	identifier, it may be quoted identifier.
+	 * @param value	value
 	 */
-	static <T> T findIdentifier(Map<String, T> map, String id) {
-		String unquotedId = unquoteIdentifier(id);
-		T t = map.get(unquotedId);
-		if (t != null) {
-			return t;
+	void put(String id, T value) {
+		String unquotedId = SqlUtils.unquoteIdentifier(id);
+		if (!unquoted.containsKey(unquotedId)) {
+			unquoted.put(unquotedId, value);
 		}
-		for (Entry<String, T> entry : map.entrySet()) {
-			if (unquoteIdentifier(entry.getKey()).equals(unquotedId)) {
-				return entry.getValue();
-			}
-		}
-		String unquotedLowerId = toLowerCase(unquotedId);
-		for (Entry<String, T> entry : map.entrySet()) {
-			if (toLowerCase(unquoteIdentifier(entry.getKey())).equals(unquotedLowerId)) {
-				return entry.getValue();
-			}
+		String unquotedLowerId = unquotedId.toLowerCase();
+		if (!lowerCase.containsKey(unquotedLowerId)) {
+			lowerCase.put(unquotedLowerId, value);
 		}
-		return null;
+	}
+
+	/**
+	 * Returns the value to which specified identifier is mapped.
+	 * @param id	identifier, it may be quoted identifier.
+	 * @return	value, or null if no identifier matches
+	 */
+	T get(String id) {
+		String unquotedId = SqlUtils.unquoteIdentifier(id);
+		T t = unquoted.get(unquotedId);
+		return t != null ? t : lowerCase.get(unquotedId.toLowerCase());
 	}
 }
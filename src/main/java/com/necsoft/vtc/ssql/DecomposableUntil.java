@@ -0,0 +1,176 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.math.BigDecimal;
+
+/**
+ * A container class representing UNTIL condition that compares an aggregate over a single sample table with a constant.
+ * Such condition can be evaluated by aggregating each part of the sample separately and merging the results,
+ * because rows of different levels are disjoint, and so are sample keys of different levels.
+ */
+class DecomposableUntil {
+	/** aggregate function, one of COUNT, SUM, MIN and MAX. */
+	final String function;
+	/** true if COUNT(DISTINCT sampleKey). */
+	final boolean distinctKey;
+	/** argument text of aggregate function. */
+	final String argument;
+	/** name of sampling table. */
+	final String tableName;
+	/** alias name of sampling table, that is used in the argument and the WHERE clause. */
+	final String qualifier;
+	/** name of unit key. */
+	final String sampleColumn;
+	/** name of level column. */
+	final String levelColumn;
+	/** content of WHERE clause, or null. */
+	final String where;
+	/** constant compared with the aggregate. */
+	final String literal;
+	/** comparison operator. */
+	final String operator;
+	/** true if the constant is left operand. */
+	final boolean literalFirst;
+
+	DecomposableUntil(String function, boolean distinctKey, String argument, String tableName, String qualifier,
+			String sampleColumn, String levelColumn, String where, String literal, String operator, boolean literalFirst) {
+		this.function = function;
+		this.distinctKey = distinctKey;
+		this.argument = argument;
+		this.tableName = tableName;
+		this.qualifier = qualifier;
+		this.sampleColumn = sampleColumn;
+		this.levelColumn = levelColumn;
+		this.where = where;
+		this.literal = literal;
+		this.operator = operator;
+		this.literalFirst = literalFirst;
+	}
+
+	/**
+	 * Tests if the condition requires the number of all rows or all sample keys in the sample to be at least the constant,
+	 * that is, COUNT(*) or COUNT(DISTINCT sampleKey) without WHERE clause compared as a lower bound.
+	 * Such condition can be evaluated by the level statistics of the sampling table without querying it.
+	 * @return	true if the condition counts all rows or all sample keys
+	 */
+	boolean isSampleCount() {
+		boolean lowerBound = literalFirst ? operator.startsWith("<") : operator.startsWith(">");
+		return function.equals("COUNT") && where == null && lowerBound && (distinctKey || argument.trim().equals("*"));
+	}
+
+	/** Returns aggregate expression of a part of sample. */
+	String getPartialAggregate() {
+		return function + (distinctKey ? "(DISTINCT " : "(") + argument + ')';
+	}
+
+	/** Returns aggregate function that merges aggregates of parts of sample. */
+	String getMergeFunction() {
+		return function.equals("COUNT") ? "SUM" : function;
+	}
+
+	/** Returns the condition comparing specified operand with the constant. */
+	String getComparison(String operand) {
+		return literalFirst ? literal + ' ' + operator + ' ' + operand : operand + ' ' + operator + ' ' + literal;
+	}
+
+	/**
+	 * Returns query that aggregates each level of the sample of specified level, accumulates them in the order of level column,
+	 * and returns the smallest value of level column which accumulated value satisfies the condition.
+	 * @param toLv	level of the sample to scan
+	 * @return	cumulative condition query
+	 */
+	String getCumulativeSQL(int toLv) {
+		String qualifiedLevelColumn = qualifier + '.' + levelColumn;
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT MIN(_LEVEL_VALUE) FROM (SELECT _LEVEL_VALUE, ")
+		.append(getMergeFunction()).append("(_PARTIAL) OVER (ORDER BY _LEVEL_VALUE ROWS UNBOUNDED PRECEDING) AS _CUMULATIVE")
+		.append(" FROM (SELECT ").append(qualifiedLevelColumn).append(" AS _LEVEL_VALUE, ").append(getPartialAggregate())
+		.append(" AS _PARTIAL FROM ").append(tableName).append(" AS ").append(qualifier)
+		.append(" WHERE ").append(qualifiedLevelColumn).append(" <= ").append(~toLv);
+		if (where != null) {
+			sb.append(" AND (").append(where).append(')');
+		}
+		sb.append(" GROUP BY ").append(qualifiedLevelColumn).append(") AS _PARTIALS) AS _CUMULATIVES WHERE ")
+		.append(getComparison("_CUMULATIVE"));
+		return sb.toString();
+	}
+
+	/**
+	 * Returns query that aggregates rows which are contained in the sample of targetLv but not in the sample of prevLv.
+	 * @param prevLv	level of the sample already aggregated, or any level greater than or equal to number of levels if nothing has been aggregated
+	 * @param targetLv	level of the sample to aggregate, must be lower than prevLv
+	 * @param numLevel	number of levels
+	 * @return	band condition query, that returns a single aggregate value
+	 */
+	String getBandSQL(int prevLv, int targetLv, int numLevel) {
+		String qualifiedLevelColumn = qualifier + '.' + levelColumn;
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT ").append(getPartialAggregate())
+		.append(" FROM ").append(tableName).append(" AS ").append(qualifier)
+		.append(" WHERE ").append(qualifiedLevelColumn).append(" <= ").append(~targetLv);
+		if (prevLv < numLevel) {
+			sb.append(" AND ").append(qualifiedLevelColumn).append(" > ").append(~prevLv);
+		}
+		if (where != null) {
+			sb.append(" AND (").append(where).append(')');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Merges aggregate of a part of sample into aggregate of the other part of sample.
+	 * @param merged	aggregate of the other part, or null if it is empty
+	 * @param partial	aggregate of a part, or null if it is empty
+	 * @return	aggregate of both parts, or null if both parts are empty
+	 */
+	BigDecimal merge(BigDecimal merged, BigDecimal partial) {
+		if (merged == null) {
+			return partial;
+		}
+		if (partial == null) {
+			return merged;
+		}
+		if (function.equals("MIN")) {
+			return merged.min(partial);
+		}
+		if (function.equals("MAX")) {
+			return merged.max(partial);
+		}
+		return merged.add(partial);
+	}
+
+	/**
+	 * Tests if specified aggregate satisfies the condition.
+	 * @param aggregate	aggregate, or null if the sample is empty
+	 * @return	true if the condition is satisfied. If the aggregate is null, same as SQL, returns false except for COUNT.
+	 */
+	boolean isSatisfied(BigDecimal aggregate) {
+		if (aggregate == null) {
+			if (!function.equals("COUNT")) {
+				return false;
+			}
+			aggregate = BigDecimal.ZERO;
+		}
+		int c = new BigDecimal(literal).compareTo(aggregate);
+		if (!literalFirst) {
+			c = -c;
+		}
+		switch (operator) {
+		case "<":
+			return c < 0;
+		case "<=":
+			return c <= 0;
+		case ">":
+			return c > 0;
+		default:
+			return c >= 0;
+		}
+	}
+}
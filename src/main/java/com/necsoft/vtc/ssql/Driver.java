@@ -8,6 +8,7 @@ in the project root for more information.
 */
 package com.necsoft.vtc.ssql;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.DriverPropertyInfo;
@@ -33,6 +34,57 @@ public class Driver implements java.sql.Driver {
 	/** The prefix string that inserted before JDBC URL string of the underlying database */
 	private static final String prefix = "sample:";
 
+	/** The prefix of connection properties that are consumed by this Driver, and not passed to the underlying JDBC driver */
+	private static final String propertyPrefix = "sampling.";
+
+	/** The connection property to specify the strategy to search the sampling level. See {@link LevelSearch}. */
+	static final String PROPERTY_LEVEL_SEARCH = propertyPrefix + "levelSearch";
+
+	/** The connection property to specify how sampling query is analyzed for the patterns that read the whole table. See {@link AnalysisMode}. */
+	static final String PROPERTY_ANALYSIS = propertyPrefix + "analysis";
+
+	/** The connection property to specify maximum number of entries in the cache of levels that satisfied UNTIL condition. */
+	static final String PROPERTY_LEVEL_CACHE_SIZE = propertyPrefix + "levelCacheSize";
+
+	/** The connection property to specify time in milliseconds to keep each entry in the cache of levels. */
+	static final String PROPERTY_LEVEL_CACHE_TTL = propertyPrefix + "levelCacheTtl";
+
+	/** The connection property to specify maximum number of condition queries whose outcomes are cached. */
+	static final String PROPERTY_CONDITION_CACHE_SIZE = propertyPrefix + "conditionCacheSize";
+
+	/** The connection property to specify maximum bytes of the cache of aggregate query results. */
+	static final String PROPERTY_RESULT_CACHE_SIZE = propertyPrefix + "resultCacheSize";
+
+	/** The connection property to specify time in milliseconds after which meta information of sampling tables is reloaded. */
+	static final String PROPERTY_CATALOG_TTL = propertyPrefix + "catalogTtl";
+
+	/** The connection property to specify number of levels evaluated by a single cumulative condition query. */
+	static final String PROPERTY_CUMULATIVE_CONDITION = propertyPrefix + "cumulativeCondition";
+
+	/** The connection property to enable incremental condition query. */
+	static final String PROPERTY_INCREMENTAL_CONDITION = propertyPrefix + "incrementalCondition";
+
+	/** The connection property to enable evaluating UNTIL condition counting rows or sample keys by the level statistics. */
+	static final String PROPERTY_STATISTICS_CONDITION = propertyPrefix + "statisticsCondition";
+
+	/** The connection property to specify number of condition queries executed concurrently over additional connections. */
+	static final String PROPERTY_PARALLEL_PROBES = propertyPrefix + "parallelProbes";
+
+	/** The connection property to enable pipelined aggregate query. */
+	static final String PROPERTY_PIPELINED_AGGREGATE = propertyPrefix + "pipelinedAggregate";
+
+	/** The connection property to enable progressive mode. See {@link ProgressiveResultSet}. */
+	static final String PROPERTY_PROGRESSIVE = propertyPrefix + "progressive";
+
+	/** The connection property to specify maximum number of SQL texts whose parse result is cached. */
+	static final String PROPERTY_REWRITE_CACHE_SIZE = propertyPrefix + "rewriteCacheSize";
+
+	/** The connection property to enable binding the values depending on the sampling level as parameters. */
+	static final String PROPERTY_LEVEL_PARAMETERS = propertyPrefix + "levelParameters";
+
+	/** The connection property to specify the file of SQL rewritten ahead of time. See {@link RewriteBundle}. */
+	static final String PROPERTY_REWRITE_BUNDLE = propertyPrefix + "rewriteBundle";
+
 	// class initializer
 	static {
 		try {
@@ -43,18 +95,34 @@ public class Driver implements java.sql.Driver {
 			throw new ExceptionInInitializerError(e);
 		}
 
-		// load JDBC Driver class of the underlying database
-		try {
-			Class.forName("org.postgresql.Driver");
+		// the JDBC Driver class of the underlying database is loaded when connecting, see loadSourceDriver.
+
+		// fill the DFA caches of the parsers, so that the first statements are not slowed down by ATN simulation.
+		RewriterCommon.startWarmUp();
+	}
+
+	/**
+	 * Loads JDBC Driver class of the underlying database specified by the URL, if it is known and found in the class path.
+	 * Only the driver of the connected database is loaded, instead of probing all known drivers when this class is loaded.
+	 * Other drivers are found by DriverManager as usual.
+	 * @param srcUrl	JDBC URL of the underlying database
+	 */
+	private static void loadSourceDriver(String srcUrl) {
+		String className;
+		if (srcUrl.startsWith("jdbc:postgresql:")) {
+			className = "org.postgresql.Driver";
 		}
-		catch (ClassNotFoundException e) {
-			// ignore
+		else if (srcUrl.startsWith("jdbc:redshift:")) {
+			className = "com.amazon.redshift.jdbc.Driver";
+		}
+		else {
+			return;
 		}
 		try {
-			Class.forName("com.amazon.redshift.jdbc.Driver");
+			Class.forName(className);
 		}
 		catch (ClassNotFoundException e) {
-			// ignore
+			// ignore, DriverManager reports that no suitable driver is found.
 		}
 	}
 
@@ -83,11 +151,28 @@ public class Driver implements java.sql.Driver {
 		// remove prefix
 		String srcUrl = getSourceUrl(url);
 
+		// separate connection properties of this Driver from the properties of the underlying database
+		Properties srcInfo = new Properties();
+		Properties samplingInfo = new Properties();
+		if (info != null) {
+			for (String name : info.stringPropertyNames()) {
+				if (name.startsWith(propertyPrefix)) {
+					samplingInfo.setProperty(name, info.getProperty(name));
+				}
+				else {
+					srcInfo.setProperty(name, info.getProperty(name));
+				}
+			}
+		}
+
 		// connect the underlying database
-		Connection srcConnection = DriverManager.getConnection(srcUrl, info);
+		loadSourceDriver(srcUrl);
+		Connection srcConnection = DriverManager.getConnection(srcUrl, srcInfo);
 
 		// create ProxyConnection that wraps the underlying database
 		ProxyConnection proxyConnection = new ProxyConnection(srcConnection);
+		proxyConnection.setSourceConnectionInfo(srcUrl, srcInfo);
+		proxyConnection.setDatabaseDef(DatabaseDef.getShared(srcUrl, srcInfo));
 
 		// decide the underlying database according to the JDBC URL
 		if (srcUrl.startsWith("jdbc:")) {
@@ -109,9 +194,155 @@ public class Driver implements java.sql.Driver {
 			proxyConnection.setDBType(DBType.Unknown);
 		}
 
+		try {
+			configure(proxyConnection, samplingInfo);
+		}
+		catch (SQLException e) {
+			proxyConnection.close();
+			throw e;
+		}
+
 		return proxyConnection;
 	}
 
+	/**
+	 * Applies connection properties of this Driver to the specified ProxyConnection.
+	 * @param proxyConnection	ProxyConnection to configure
+	 * @param samplingInfo	connection properties which names begin with "sampling."
+	 * @throws SQLException	if a property has invalid value
+	 */
+	private void configure(ProxyConnection proxyConnection, Properties samplingInfo) throws SQLException {
+		String value = samplingInfo.getProperty(PROPERTY_LEVEL_SEARCH);
+		if (value != null) {
+			try {
+				proxyConnection.setLevelSearch(LevelSearch.of(value));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_LEVEL_SEARCH + ": " + value, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_ANALYSIS);
+		if (value != null) {
+			try {
+				proxyConnection.setAnalysisMode(AnalysisMode.of(value));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_ANALYSIS + ": " + value, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_LEVEL_CACHE_SIZE);
+		if (value != null) {
+			String ttl = samplingInfo.getProperty(PROPERTY_LEVEL_CACHE_TTL, "0");
+			try {
+				proxyConnection.setLevelCache(Integer.parseInt(value.trim()), Long.parseLong(ttl.trim()));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_LEVEL_CACHE_SIZE + " or " + PROPERTY_LEVEL_CACHE_TTL + ": " + value + ", " + ttl, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_CONDITION_CACHE_SIZE);
+		if (value != null) {
+			try {
+				proxyConnection.setConditionCacheSize(Integer.parseInt(value.trim()));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_CONDITION_CACHE_SIZE + ": " + value, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_RESULT_CACHE_SIZE);
+		if (value != null) {
+			try {
+				proxyConnection.setResultCacheSize(Long.parseLong(value.trim()));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_RESULT_CACHE_SIZE + ": " + value, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_CATALOG_TTL);
+		if (value != null) {
+			try {
+				proxyConnection.setCatalogTtl(Long.parseLong(value.trim()));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_CATALOG_TTL + ": " + value, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_CUMULATIVE_CONDITION);
+		if (value != null) {
+			try {
+				proxyConnection.setCumulativeConditionSpan(Integer.parseInt(value.trim()));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_CUMULATIVE_CONDITION + ": " + value, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_INCREMENTAL_CONDITION);
+		if (value != null) {
+			proxyConnection.setIncrementalConditionEnabled(parseBoolean(PROPERTY_INCREMENTAL_CONDITION, value));
+		}
+		value = samplingInfo.getProperty(PROPERTY_STATISTICS_CONDITION);
+		if (value != null) {
+			proxyConnection.setStatisticsConditionEnabled(parseBoolean(PROPERTY_STATISTICS_CONDITION, value));
+		}
+		value = samplingInfo.getProperty(PROPERTY_PARALLEL_PROBES);
+		if (value != null) {
+			try {
+				proxyConnection.setParallelProbes(Integer.parseInt(value.trim()));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_PARALLEL_PROBES + ": " + value, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_PIPELINED_AGGREGATE);
+		if (value != null) {
+			proxyConnection.setPipelinedAggregateEnabled(parseBoolean(PROPERTY_PIPELINED_AGGREGATE, value));
+		}
+		value = samplingInfo.getProperty(PROPERTY_PROGRESSIVE);
+		if (value != null) {
+			proxyConnection.setProgressiveEnabled(parseBoolean(PROPERTY_PROGRESSIVE, value));
+		}
+		value = samplingInfo.getProperty(PROPERTY_REWRITE_CACHE_SIZE);
+		if (value != null) {
+			try {
+				proxyConnection.setRewriteCacheSize(Integer.parseInt(value.trim()));
+			}
+			catch (IllegalArgumentException e) {
+				throw new SQLException("Invalid value for " + PROPERTY_REWRITE_CACHE_SIZE + ": " + value, e);
+			}
+		}
+		value = samplingInfo.getProperty(PROPERTY_LEVEL_PARAMETERS);
+		if (value != null) {
+			proxyConnection.setLevelParametersEnabled(parseBoolean(PROPERTY_LEVEL_PARAMETERS, value));
+		}
+		value = samplingInfo.getProperty(PROPERTY_REWRITE_BUNDLE);
+		if (value != null && !value.trim().isEmpty()) {
+			try {
+				proxyConnection.setRewriteBundle(RewriteBundle.load(value.trim()));
+			}
+			catch (IOException e) {
+				throw new SQLException("Failed to load rewrite bundle: " + value, e);
+			}
+		}
+	}
+
+	/**
+	 * Parses value of a boolean connection property.
+	 * @param name	name of the property
+	 * @param value	value of the property, "true" or "false" ignoring case
+	 * @return	parsed value
+	 * @throws SQLException	if the value is neither "true" nor "false"
+	 */
+	private static boolean parseBoolean(String name, String value) throws SQLException {
+		String v = value.trim();
+		if (v.equalsIgnoreCase("true")) {
+			return true;
+		}
+		if (v.equalsIgnoreCase("false")) {
+			return false;
+		}
+		throw new SQLException("Invalid value for " + name + ": " + value);
+	}
+
 	/**
 	 * Returns true if given URL begins with sampling prefix string. Sampling prefix string is "sample:".
 	 * <p>{@inheritDoc}
@@ -0,0 +1,119 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+/**
+ * A container class representing UNTIL condition which form is {@code RELATIVE ERROR OF agg(arg) < e WITH CONFIDENCE c}.
+ * <p>The sample of level L contains all rows of each sample key with probability 1 / base^L, so the sample is a cluster sample whose clusters are sample keys.
+ * Let y and m be the sum and the count of the argument for each sample key.
+ * SUM and COUNT are estimated by Horvitz-Thompson estimator, whose variance is estimated by {@code (1 - p) / p^2 * sum(y^2)}.
+ * AVG is estimated by ratio estimator {@code sum(y) / sum(m)}, whose variance is estimated by {@code (1 - p) * n / (n - 1) * sum((y - R*m)^2) / sum(m)^2}.
+ * The condition is satisfied when the half width of the confidence interval divided by the estimate is less than e.
+ */
+class ErrorBound {
+	/** aggregate function, one of AVG, SUM and COUNT. */
+	final String function;
+	/** argument text of aggregate function. */
+	final String argument;
+	/** name of sampling table. */
+	final String tableName;
+	/** alias name of sampling table, that is used in the argument. */
+	final String qualifier;
+	/** name of unit key. */
+	final String sampleColumn;
+	/** name of level column. */
+	final String levelColumn;
+	/** maximum relative error. */
+	final String maxError;
+	/** comparison operator, {@code <} or {@code <=}. */
+	final String operator;
+	/** quantile of standard normal distribution for the confidence level. */
+	final double z;
+
+	ErrorBound(String function, String argument, String tableName, String qualifier, String sampleColumn, String levelColumn,
+			String maxError, String operator, double confidence) {
+		this.function = function;
+		this.argument = argument;
+		this.tableName = tableName;
+		this.qualifier = qualifier;
+		this.sampleColumn = sampleColumn;
+		this.levelColumn = levelColumn;
+		this.maxError = maxError;
+		this.operator = operator;
+		this.z = normalQuantile((1 + confidence) / 2);
+	}
+
+	/**
+	 * Returns condition query that tests the relative error of the sample of specified level.
+	 * @param targetLv	sampling level
+	 * @param base	ratio of the sample size of a level to the sample size of the next higher level
+	 * @return	condition query
+	 */
+	String getConditionSQL(int targetLv, int base) {
+		return getConditionSQL(RewriteTemplate.levelValueText(targetLv), RewriteTemplate.fpcText(base, targetLv));
+	}
+
+	/**
+	 * Returns condition query that tests the relative error of the sample, with specified texts.
+	 * @param levelValue	text of the value of level column, that is, bitwise complement of the level
+	 * @param fpc	text of the finite population correction, that is, {@code 1 - p}
+	 * @return	condition query
+	 */
+	String getConditionSQL(String levelValue, String fpc) {
+		String y = function.equals("COUNT") ? "COUNT(" + argument + ')' : "SUM(" + argument + ')';
+		String qualifiedLevelColumn = qualifier + '.' + levelColumn;
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT CASE WHEN ");
+		if (function.equals("AVG")) {
+			// sum((y - R*m)^2) = sum(y^2) - 2*R*sum(y*m) + R^2*sum(m^2), where R = sum(y) / sum(m)
+			String r = "(_SY / _SM)";
+			sb.append("_N > 1 AND _SY <> 0 THEN ").append(z).append(" * SQRT(GREATEST(").append(fpc)
+			.append(" * (_SYY - 2 * ").append(r).append(" * _SYM + ").append(r).append(" * ").append(r).append(" * _SMM)")
+			.append(" * _N / (_N - 1), 0)) / ABS(_SY)");
+		}
+		else {
+			sb.append("_SY <> 0 THEN ").append(z).append(" * SQRT(").append(fpc).append(" * _SYY) / ABS(_SY)");
+		}
+		sb.append(' ').append(operator).append(' ').append(maxError).append(" ELSE FALSE END")
+		.append(" FROM (SELECT COUNT(*) AS _N, SUM(_Y) AS _SY, SUM(_M) AS _SM, SUM(_Y * _Y) AS _SYY, SUM(_Y * _M) AS _SYM, SUM(_M * _M) AS _SMM")
+		.append(" FROM (SELECT CAST(").append(y).append(" AS DOUBLE PRECISION) AS _Y, CAST(COUNT(").append(argument).append(") AS DOUBLE PRECISION) AS _M")
+		.append(" FROM ").append(tableName).append(" AS ").append(qualifier)
+		.append(" WHERE ").append(qualifiedLevelColumn).append(" <= ").append(levelValue)
+		.append(" GROUP BY ").append(qualifier).append('.').append(sampleColumn)
+		.append(") AS _UNITS) AS _STATS");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the quantile of standard normal distribution, using the rational approximation by P. J. Acklam.
+	 * The relative error of the result is less than 1.15e-9.
+	 * @param p	probability, must be in (0, 1)
+	 * @return	x such that P(X &lt;= x) = p
+	 */
+	static double normalQuantile(double p) {
+		if (!(p > 0 && p < 1)) {
+			throw new IllegalArgumentException("p = " + p);
+		}
+		final double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+		final double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01};
+		final double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+		final double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+		final double pLow = 0.02425;
+		if (p < pLow) {
+			double q = Math.sqrt(-2 * Math.log(p));
+			return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		if (p > 1 - pLow) {
+			return -normalQuantile(1 - p);
+		}
+		double q = p - 0.5;
+		double r = q * q;
+		return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+	}
+}
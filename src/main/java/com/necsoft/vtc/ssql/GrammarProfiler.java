@@ -0,0 +1,167 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.DecisionState;
+import org.antlr.v4.runtime.atn.PredictionMode;
+
+/**
+ * A command line tool that parses a corpus of SQL statements with profiling, and reports the decisions of the grammar that cost the most lookahead.
+ * Statements are parsed in the same two stages as the rewriters, see {@link RewriterCommon#parseTwoStage}.
+ * <p>Usage: {@code java -cp ... com.necsoft.vtc.ssql.GrammarProfiler [-converting] [-top n] file...}
+ * <p>Each file contains statements separated by semicolons at the end of lines.
+ * By default, statements are parsed by the grammar of SELECT statements. {@code -converting} selects the grammar of CREATE TABLE statements.
+ */
+class GrammarProfiler {
+
+	/** Accumulated profile of a decision over all statements. */
+	private static class DecisionStats {
+		final int decision;
+		final String ruleName;
+		long invocations;
+		long timeInPrediction;
+		long sllTotalLook;
+		long sllMaxLook;
+		long llFallback;
+		long llTotalLook;
+		long llMaxLook;
+		long ambiguities;
+		long errors;
+
+		DecisionStats(int decision, String ruleName) {
+			this.decision = decision;
+			this.ruleName = ruleName;
+		}
+
+		long getTotalLook() {
+			return sllTotalLook + llTotalLook;
+		}
+
+		void add(DecisionInfo info) {
+			invocations += info.invocations;
+			timeInPrediction += info.timeInPrediction;
+			sllTotalLook += info.SLL_TotalLook;
+			sllMaxLook = Math.max(sllMaxLook, info.SLL_MaxLook);
+			llFallback += info.LL_Fallback;
+			llTotalLook += info.LL_TotalLook;
+			llMaxLook = Math.max(llMaxLook, info.LL_MaxLook);
+			ambiguities += info.ambiguities.size();
+			errors += info.errors.size();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean converting = false;
+		int top = 20;
+		List<String> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-converting")) {
+				converting = true;
+			}
+			else if (args[i].equals("-top") && i + 1 < args.length) {
+				top = Integer.parseInt(args[++i]);
+			}
+			else {
+				files.add(args[i]);
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: GrammarProfiler [-converting] [-top n] file...");
+			System.exit(2);
+		}
+
+		List<String> statements = new ArrayList<>();
+		for (String file : files) {
+			String text = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+			for (String statement : text.split(";[ \t]*\r?\n")) {
+				if (!statement.trim().isEmpty()) {
+					statements.add(statement);
+				}
+			}
+		}
+
+		DecisionStats[] stats = null;
+		int llStatements = 0;
+		int errorStatements = 0;
+		long start = System.nanoTime();
+		for (String statement : statements) {
+			ANTLRInputStream input = new ANTLRInputStream(RewriterCommon.removeSamplingComment(statement));
+			Lexer lexer = converting ? new ConvertingSqlLexer(input) : new SamplingSqlLexer(input);
+			lexer.removeErrorListeners();
+			final Parser parser = converting ? new ConvertingSqlParser(new CommonTokenStream(lexer)) : new SamplingSqlParser(new CommonTokenStream(lexer));
+			parser.setProfile(true);
+			RewriterCommon.ErrorListener errorListener = new RewriterCommon.ErrorListener();
+			final boolean isConverting = converting;
+			RewriterCommon.parseTwoStage(parser, errorListener, new RewriterCommon.StartRule<ParserRuleContext>() {
+				@Override
+				public ParserRuleContext parse() {
+					return isConverting ? ((ConvertingSqlParser) parser).parse() : ((SamplingSqlParser) parser).parse();
+				}
+			});
+			if (parser.getInterpreter().getPredictionMode() != PredictionMode.SLL) {
+				llStatements++;
+			}
+			if (!errorListener.errors.isEmpty()) {
+				errorStatements++;
+			}
+
+			DecisionInfo[] infos = parser.getParseInfo().getDecisionInfo();
+			if (stats == null) {
+				stats = new DecisionStats[infos.length];
+				for (int i = 0; i < infos.length; i++) {
+					DecisionState state = parser.getATN().getDecisionState(i);
+					stats[i] = new DecisionStats(i, parser.getRuleNames()[state.ruleIndex]);
+				}
+			}
+			for (int i = 0; i < infos.length; i++) {
+				stats[i].add(infos[i]);
+			}
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+		System.out.println("statements: " + statements.size() + ", parsed again by LL: " + llStatements + ", with syntax errors: " + errorStatements
+				+ ", time: " + elapsedMillis + " ms");
+		if (stats == null) {
+			return;
+		}
+		List<DecisionStats> sorted = new ArrayList<>(Arrays.asList(stats));
+		Collections.sort(sorted, new Comparator<DecisionStats>() {
+			@Override
+			public int compare(DecisionStats o1, DecisionStats o2) {
+				return Long.compare(o2.getTotalLook(), o1.getTotalLook());
+			}
+		});
+		System.out.println(String.format("%-8s %-24s %10s %10s %12s %8s %10s %10s %8s %8s %8s %7s",
+				"decision", "rule", "invocation", "time(ms)", "SLL-look", "SLL-max", "LL-fallbk", "LL-look", "LL-max", "ambig", "errors", "avg"));
+		for (DecisionStats s : sorted.subList(0, Math.min(top, sorted.size()))) {
+			if (s.invocations == 0) {
+				break;
+			}
+			System.out.println(String.format("%-8d %-24s %10d %10.3f %12d %8d %10d %10d %8d %8d %8d %7.2f",
+					s.decision, s.ruleName, s.invocations, s.timeInPrediction / 1e6, s.sllTotalLook, s.sllMaxLook,
+					s.llFallback, s.llTotalLook, s.llMaxLook, s.ambiguities, s.errors, (double) s.getTotalLook() / s.invocations));
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.sql.SQLException;
+
+/**
+ * Defines the strategies that are used to search the sampling level satisfying UNTIL condition.
+ * <p>Every strategy returns the same level as long as UNTIL condition is monotone,
+ * that is, once the condition is satisfied at a level, it is also satisfied at every lower (larger sample) level.
+ */
+public enum LevelSearch {
+
+	/** Executes condition query by decreasing target level one by one. This is the default strategy. */
+	LINEAR,
+
+	/** Executes condition query by decreasing target level exponentially, then bisects the last interval. */
+	GALLOPING,
+
+	/** Bisects all levels from the beginning. */
+	BISECT;
+
+	/**
+	 * Returns the LevelSearch which name matches specified string, ignoring case.
+	 * @param name	name of the strategy
+	 * @return	LevelSearch
+	 * @throws IllegalArgumentException	if specified name is unknown
+	 */
+	static LevelSearch of(String name) {
+		return valueOf(name.trim().toUpperCase());
+	}
+
+	/**
+	 * Returns array of levels in descending order, that is, from the smallest sample to the largest sample.
+	 * @param numLevel	number of levels
+	 * @return	array of levels, {@code numLevel - 1, numLevel - 2, ..., 0}
+	 */
+	static int[] descendingLevels(int numLevel) {
+		int[] levels = new int[numLevel];
+		for (int i = 0; i < numLevel; i++) {
+			levels[i] = numLevel - 1 - i;
+		}
+		return levels;
+	}
+
+	/**
+	 * Searches the first level in specified array that satisfies the condition.
+	 * @param levels	candidate levels in descending order
+	 * @param probe	condition to test
+	 * @return	index of the first level in the array that satisfies the condition, or -1 if no level satisfies it.
+	 * @throws SQLException	if error occurs in testing the condition
+	 */
+	int search(int[] levels, LevelProbe probe) throws SQLException {
+		int n = levels.length;
+		switch (this) {
+		case GALLOPING:
+			return gallop(levels, -1, probe);
+		case BISECT: {
+			int found = bisect(levels, 0, n, probe);
+			return found < n ? found : -1;
+		}
+		default:
+			for (int i = 0; i < n; i++) {
+				if (probe.test(levels[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Searches the first level in specified array that satisfies the condition, starting from the level at specified index.
+	 * The neighbors of the starting level are tested first, and the step is increased exponentially towards the direction where the first level exists.
+	 * This is suitable when the starting level is expected to be close to the result, for example the result of previous search.
+	 * @param levels	candidate levels in descending order
+	 * @param start	index of the level to test first
+	 * @param probe	condition to test
+	 * @return	index of the first level in the array that satisfies the condition, or -1 if no level satisfies it.
+	 * @throws SQLException	if error occurs in testing the condition
+	 */
+	static int searchFrom(int[] levels, int start, LevelProbe probe) throws SQLException {
+		if (!probe.test(levels[start])) {
+			return gallop(levels, start, probe);
+		}
+		// the first level is at the start or before the start
+		int lastTrue = start;
+		int step = 1;
+		while (lastTrue > 0) {
+			int i = Math.max(lastTrue - step, 0);
+			if (!probe.test(levels[i])) {
+				return bisect(levels, i + 1, lastTrue, probe);
+			}
+			lastTrue = i;
+			step <<= 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Increases index exponentially from the index known not to satisfy the condition, then bisects the last interval.
+	 * @param lastFalse	index of the level known not to satisfy the condition, or -1
+	 * @return	index of the first level that satisfies the condition, or -1 if no level after lastFalse satisfies it.
+	 */
+	private static int gallop(int[] levels, int lastFalse, LevelProbe probe) throws SQLException {
+		int n = levels.length;
+		int step = 1;
+		while (lastFalse < n - 1) {
+			int i = Math.min(lastFalse + step, n - 1);
+			if (probe.test(levels[i])) {
+				return bisect(levels, lastFalse + 1, i, probe);
+			}
+			lastFalse = i;
+			step <<= 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Bisects the interval [lo, hi) of specified array, where the level at index hi is known to satisfy the condition (or hi is out of array).
+	 * @return	index of the first level in the interval that satisfies the condition, or hi if no level in the interval satisfies it.
+	 */
+	private static int bisect(int[] levels, int lo, int hi, LevelProbe probe) throws SQLException {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (probe.test(levels[mid])) {
+				hi = mid;
+			}
+			else {
+				lo = mid + 1;
+			}
+		}
+		return hi;
+	}
+
+}
+
+/**
+ * An interface of testing UNTIL condition at specified level.
+ */
+interface LevelProbe {
+	/**
+	 * Returns true if UNTIL condition is satisfied at specified level.
+	 * @param level	sampling level
+	 * @return	true if UNTIL condition is satisfied, otherwise false
+	 * @throws SQLException	if error occurs
+	 */
+	boolean test(int level) throws SQLException;
+}
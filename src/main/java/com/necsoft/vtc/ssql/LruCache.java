@@ -0,0 +1,138 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe map that is bounded by number of entries, and evicts the least recently used entry.
+ * Entries expire when specified time has elapsed since they were put.
+ * @param <K>	type of keys
+ * @param <V>	type of values
+ */
+class LruCache<K, V> {
+
+	/** A container class of value and its expiration time. */
+	private static class Entry<V> {
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final LinkedHashMap<K, Entry<V>> map;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param maxEntries	maximum number of entries
+	 * @param ttlMillis	time to live of entries in milliseconds, or 0 if entries never expire
+	 */
+	LruCache(int maxEntries, long ttlMillis) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries = " + maxEntries);
+		}
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException("ttlMillis = " + ttlMillis);
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.map = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the value to which specified key is mapped, and marks the entry as most recently used.
+	 * @param key	key
+	 * @return	value, or null if the cache contains no mapping for the key, or if the entry has expired.
+	 */
+	synchronized V get(K key) {
+		Entry<V> entry = map.get(key);
+		if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.expiresAt > 0) {
+			map.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Maps specified value to specified key, and evicts least recently used entries if number of entries exceeds the maximum.
+	 * @param key	key
+	 * @param value	value
+	 */
+	synchronized void put(K key, V value) {
+		map.put(key, new Entry<V>(value, System.nanoTime() + ttlNanos));
+		Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+		while (map.size() > maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes the mapping for specified key.
+	 * @param key	key
+	 */
+	synchronized void remove(K key) {
+		map.remove(key);
+	}
+
+	/** Removes all mappings. */
+	synchronized void clear() {
+		map.clear();
+	}
+
+	/**
+	 * Returns number of entries including expired entries not removed yet.
+	 * @return	number of entries
+	 */
+	synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * Returns maximum number of entries.
+	 * @return	maximum number of entries
+	 */
+	int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Returns number of lookups that found the value.
+	 * @return	number of hits
+	 */
+	long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns number of lookups that did not find the value.
+	 * @return	number of misses
+	 */
+	long getMissCount() {
+		return missCount.get();
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of prepared statements of a connection, which key is the SQL text.
+ * A statement is taken out of the pool while it is used, so that it is never used by two callers at the same time,
+ * and returned to the pool after use. The least recently returned statements are closed if the pool is full.
+ */
+class PreparedStatementPool implements AutoCloseable {
+
+	private final Connection conn;
+	private final int maxIdle;
+	/** statements not in use, at most one for each SQL text. */
+	private final LinkedHashMap<String, PreparedStatement> idle = new LinkedHashMap<>(16, 0.75f, true);
+	private boolean closed = false;
+
+	/**
+	 * Constructor
+	 * @param conn	connection of the underlying database
+	 * @param maxIdle	maximum number of statements kept in the pool
+	 */
+	PreparedStatementPool(Connection conn, int maxIdle) {
+		if (maxIdle <= 0) {
+			throw new IllegalArgumentException("maxIdle = " + maxIdle);
+		}
+		this.conn = conn;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Takes the prepared statement of specified SQL out of the pool, or prepares a new one if the pool has none.
+	 * @param sql	SQL text
+	 * @return	prepared statement, which must be returned by {@link #release(String, PreparedStatement)} or closed by the caller
+	 * @throws SQLException	if failed to prepare the statement, or the pool is closed
+	 */
+	PreparedStatement take(String sql) throws SQLException {
+		synchronized (this) {
+			if (closed) {
+				throw new SQLException("Prepared statement pool is closed.");
+			}
+			PreparedStatement ps = idle.remove(sql);
+			if (ps != null) {
+				return ps;
+			}
+		}
+		return conn.prepareStatement(sql);
+	}
+
+	/**
+	 * Returns specified prepared statement to the pool. Its result must be closed.
+	 * The statement is closed instead if the pool already has a statement of the same SQL, or the pool is closed.
+	 * @param sql	SQL text
+	 * @param ps	prepared statement taken by {@link #take(String)}
+	 */
+	void release(String sql, PreparedStatement ps) {
+		List<PreparedStatement> evicted = new ArrayList<>();
+		synchronized (this) {
+			if (closed || idle.containsKey(sql)) {
+				evicted.add(ps);
+			}
+			else {
+				idle.put(sql, ps);
+				Iterator<Map.Entry<String, PreparedStatement>> it = idle.entrySet().iterator();
+				while (idle.size() > maxIdle && it.hasNext()) {
+					evicted.add(it.next().getValue());
+					it.remove();
+				}
+			}
+		}
+		for (PreparedStatement stmt : evicted) {
+			closeQuietly(stmt);
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement ps) {
+		try {
+			ps.close();
+		}
+		catch (SQLException e) {
+			// ignore, the statement is not used any more.
+		}
+	}
+
+	/**
+	 * Closes all statements in the pool. Statements returned after this method are closed as well.
+	 */
+	@Override
+	public void close() {
+		List<PreparedStatement> stmts;
+		synchronized (this) {
+			closed = true;
+			stmts = new ArrayList<>(idle.values());
+			idle.clear();
+		}
+		for (PreparedStatement ps : stmts) {
+			closeQuietly(ps);
+		}
+	}
+
+}
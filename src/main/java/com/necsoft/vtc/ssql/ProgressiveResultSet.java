@@ -0,0 +1,44 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A ResultSet of sampling query that is returned before UNTIL condition is satisfied, and is refined with larger samples.
+ * It initially holds the result of the smallest sample.
+ * Each call of {@link #nextRefinement()} replaces the result by the result of the next larger sample, until UNTIL condition is satisfied.
+ * <p>ResultSets returned by {@link ProxyConnection} in progressive mode implement this interface.
+ */
+public interface ProgressiveResultSet extends ResultSet {
+
+	/**
+	 * Replaces the result by the result of the next larger sample, if UNTIL condition is not satisfied by the current sample.
+	 * After the replacement, the cursor is positioned before the first row of the new result.
+	 * If this method returns false, the current result is left unchanged.
+	 * @return	true if the result is replaced, false if UNTIL condition is satisfied by the current sample or there is no larger sample.
+	 * @throws SQLException	if error occurs
+	 */
+	boolean nextRefinement() throws SQLException;
+
+	/**
+	 * Returns true if UNTIL condition is satisfied by the current sample. The result is final if this method returns true.
+	 * @return	true if UNTIL condition is satisfied
+	 * @throws SQLException	if error occurs
+	 */
+	boolean isConditionSatisfied() throws SQLException;
+
+	/**
+	 * Returns the sampling level of the current result. The sample of lower level is larger.
+	 * @return	sampling level
+	 */
+	int getSamplingLevel();
+
+}
@@ -0,0 +1,133 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * An implementation of {@link ProgressiveResultSet}.
+ * Aggregate queries are executed on the statement of the underlying database,
+ * and condition queries are executed on another statement so as not to close the current result.
+ */
+class ProgressiveSamplingResultSet extends AbstractWrapperResultSet implements ProgressiveResultSet {
+
+	private final Statement statement;
+	private final Statement aggStmt;
+	private final Statement condStmt;
+	private final SqlRewriter rewriter;
+	private final int[] levels;
+	/** rewritten queries of each candidate level, which is filled if generated. */
+	private final QuerySet[] querySets;
+	/** index of the current level in levels. */
+	private int current;
+	/** result of condition query of the current level, or null if not evaluated yet. */
+	private Boolean satisfied = null;
+
+	/**
+	 * Executes aggregate query of the first level, and creates an instance.
+	 * @param statement	statement that executed the sampling query
+	 * @param aggStmt	statement of the underlying database to execute aggregate queries
+	 * @param condStmt	statement of the underlying database to execute condition queries, which is closed with this object
+	 * @param rewriter	rewriter
+	 * @param levels	candidate levels in descending order, must not be empty
+	 * @return	ProgressiveSamplingResultSet
+	 * @throws SQLException	if error occurs
+	 */
+	static ProgressiveSamplingResultSet execute(Statement statement, Statement aggStmt, Statement condStmt, SqlRewriter rewriter, int[] levels)
+			throws SQLException {
+		QuerySet querySet = rewriter.rewrite(levels[0]);
+		ResultSet rs = aggStmt.executeQuery(querySet.aggSql);
+		ProgressiveSamplingResultSet progressive = new ProgressiveSamplingResultSet(rs, statement, aggStmt, condStmt, rewriter, levels);
+		progressive.querySets[0] = querySet;
+		return progressive;
+	}
+
+	private ProgressiveSamplingResultSet(ResultSet rs, Statement statement, Statement aggStmt, Statement condStmt, SqlRewriter rewriter, int[] levels) {
+		super(rs);
+		this.statement = statement;
+		this.aggStmt = aggStmt;
+		this.condStmt = condStmt;
+		this.rewriter = rewriter;
+		this.levels = levels;
+		this.querySets = new QuerySet[levels.length];
+		this.current = 0;
+	}
+
+	@Override
+	public boolean nextRefinement() throws SQLException {
+		if (isConditionSatisfied() || current + 1 >= levels.length) {
+			return false;
+		}
+		// executing a query on the statement closes the current result
+		rs = aggStmt.executeQuery(getQuerySet(current + 1).aggSql);
+		current++;
+		satisfied = null;
+		return true;
+	}
+
+	@Override
+	public boolean isConditionSatisfied() throws SQLException {
+		if (satisfied == null) {
+			satisfied = ProxyConnection.evaluateCondition(condStmt, getQuerySet(current).condSql);
+		}
+		return satisfied;
+	}
+
+	/** Returns rewritten queries of the candidate level at specified index. */
+	private QuerySet getQuerySet(int index) throws SQLException {
+		if (querySets[index] == null) {
+			querySets[index] = rewriter.rewrite(levels[index]);
+		}
+		return querySets[index];
+	}
+
+	@Override
+	public int getSamplingLevel() {
+		return levels[current];
+	}
+
+	/**
+	 * Closes the current result and the statement of condition queries.
+	 * <p>{@inheritDoc}
+	 */
+	@Override
+	public void close() throws SQLException {
+		try {
+			rs.close();
+		}
+		finally {
+			condStmt.close();
+		}
+	}
+
+	/**
+	 * Returns the statement that executed the sampling query.
+	 * <p>{@inheritDoc}
+	 */
+	@Override
+	public Statement getStatement() throws SQLException {
+		return statement;
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		return rs.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || rs.isWrapperFor(iface);
+	}
+
+}
@@ -8,23 +8,49 @@ in the project root for more information.
 */
 package com.necsoft.vtc.ssql;
 
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLWarning;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A class that wraps {@code java.sql.Connection} of underlying JDBC driver.
  */
 public class ProxyConnection extends AbstractWrapperConnection {
 
-	/** field storing meta information of sampling tables. */
+	/** ratio of the sample size of a level to the sample size of the next higher level. */
+	private static final int LEVEL_GROWTH = 2;
+	/** minimum time of aggregate query that is used to estimate the time of aggregate query of lower levels. */
+	private static final long MIN_TIMED_PROBE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	/** maximum number of idle prepared statements of parameterized level queries. */
+	private static final int LEVEL_PARAMETER_POOL_SIZE = 64;
+	/** timer to cancel statements that exceed the time budget. created when it is used first. */
+	private static Timer cancelTimer = null;
+
+	/** field storing meta information of sampling tables, which may be shared with other connections. */
 	private DatabaseDef databaseDef = new DatabaseDef();
+	/** time in milliseconds after which meta information of sampling tables is reloaded, or 0 if never reloaded. */
+	private long catalogTtl = 0;
+	/** true if a sampling table is converted in the current transaction, and databaseDef is reloaded when it is committed. */
+	private boolean catalogDirty = false;
+	/** generation of databaseDef from which the rewriters in rewriterCache are created. */
+	private long rewriterGeneration = 0;
 	/** number of levels that is used in iterative sampling. The default value is 32. */
 	private int numLevel = 32;
 
@@ -34,6 +60,44 @@ public class ProxyConnection extends AbstractWrapperConnection {
 	private boolean rewriteInlineViewEnabled = false;
 	/** field to identify the underlying database. */
 	private DBType dbType = DBType.PG;
+	/** strategy to search the sampling level satisfying UNTIL condition. */
+	private LevelSearch levelSearch = LevelSearch.LINEAR;
+	/** how sampling query is analyzed for the patterns that read the whole table. */
+	private AnalysisMode analysisMode = AnalysisMode.WARN;
+	/** levels that satisfied UNTIL condition, key is fingerprint of sampling SQL. null if disabled. */
+	private LruCache<String, Integer> levelCache = null;
+	/** results of sampling queries and their levels, key is sampling query with the pinned level and the maximum rows. null if disabled. */
+	private ResultCache resultCache = null;
+	/** outcomes of condition queries, key is condition query. null if disabled. */
+	private LruCache<String, Boolean> conditionCache = null;
+	/** generation of databaseDef at which the outcomes in conditionCache are stored. */
+	private long conditionGeneration = 0;
+	/** number of levels evaluated by a single cumulative condition query, or 0 if cumulative condition query is disabled. */
+	private int cumulativeConditionSpan = 0;
+	/** true if UNTIL condition is evaluated by aggregating only the rows added by each level. */
+	private boolean incrementalConditionEnabled = false;
+	/** true if UNTIL condition counting rows or sample keys is evaluated by the level statistics without condition query. */
+	private boolean statisticsConditionEnabled = false;
+	/** levels pinned by pinSample, key is the pair of sample table and sample key normalized by {@link #pinKey(String, String)}. */
+	private final Map<String, Integer> pinnedLevels = new ConcurrentHashMap<>();
+	/** JDBC URL of the underlying database, that is used to open sibling connections. null if unknown. */
+	private String srcUrl = null;
+	/** connection properties of the underlying database, that is used to open sibling connections. */
+	private Properties srcInfo = null;
+	/** number of condition queries executed concurrently, or 0 if parallel probes are disabled. */
+	private int parallelProbes = 0;
+	/** true if aggregate query is executed speculatively while its condition query is executed. */
+	private boolean pipelinedAggregateEnabled = false;
+	/** true if executeQuery of sampling query returns ProgressiveResultSet. */
+	private boolean progressiveEnabled = false;
+	/** parsed SQL and its rewrite template, key is SQL text with rewriting mode. null if disabled. */
+	private LruCache<String, SqlRewriter> rewriterCache = new LruCache<>(64, 0);
+	/** connections used by parallel probes and pipelined aggregate queries. null if not opened yet. */
+	private SiblingConnections siblings = null;
+	/** prepared statements of the queries in which the values depending on the level are parameters. null if disabled. */
+	private PreparedStatementPool levelParameterPool = null;
+	/** SQL rewritten ahead of time, which is used instead of parsing. null if not specified. */
+	private RewriteBundle rewriteBundle = null;
 
 	/**
 	 * Creates an instance by assigning the argument {@code conn} to the field {@code super.conn} .
@@ -83,6 +147,625 @@ public class ProxyConnection extends AbstractWrapperConnection {
 		this.rewriteInlineViewEnabled = rewriteInlineViewEnabled;
 	}
 
+	/**
+	 * Returns strategy to search the sampling level satisfying UNTIL condition.
+	 * @return	strategy to search the sampling level
+	 */
+	public LevelSearch getLevelSearch() {
+		return levelSearch;
+	}
+
+	/**
+	 * Set strategy to search the sampling level satisfying UNTIL condition.
+	 * @param levelSearch	strategy to search the sampling level
+	 */
+	public void setLevelSearch(LevelSearch levelSearch) {
+		if (levelSearch == null) {
+			throw new IllegalArgumentException("levelSearch is null");
+		}
+		this.levelSearch = levelSearch;
+	}
+
+	/**
+	 * Returns how sampling query is analyzed for the patterns that read the whole table.
+	 * @return	analysis mode
+	 */
+	public AnalysisMode getAnalysisMode() {
+		return analysisMode;
+	}
+
+	/**
+	 * Set how sampling query is analyzed for the patterns that read the whole table.
+	 * @param analysisMode	analysis mode
+	 */
+	public void setAnalysisMode(AnalysisMode analysisMode) {
+		if (analysisMode == null) {
+			throw new IllegalArgumentException("analysisMode is null");
+		}
+		this.analysisMode = analysisMode;
+	}
+
+	/**
+	 * Returns time after which meta information of sampling tables is reloaded.
+	 * @return	time in milliseconds, or 0 if never reloaded
+	 */
+	public long getCatalogTtl() {
+		return catalogTtl;
+	}
+
+	/**
+	 * Set time after which meta information of sampling tables is reloaded. The default is 0, that is, never reloaded.
+	 * Meta information loaded by Driver is shared by the connections to the same database as the same user,
+	 * and is reloaded in background when it is used after the time has elapsed.
+	 * It is also reloaded when a sampling table is converted by a connection sharing it, regardless of this setting.
+	 * @param ttlMillis	time in milliseconds, or 0 to never reload
+	 */
+	public void setCatalogTtl(long ttlMillis) {
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException("ttlMillis = " + ttlMillis);
+		}
+		this.catalogTtl = ttlMillis;
+	}
+
+	/**
+	 * Enable/disable the cache of levels that satisfied UNTIL condition.
+	 * The cache maps fingerprint of sampling SQL, that is, normalized SQL text without literals, to the level that satisfied UNTIL condition last time.
+	 * When the SQL having the same fingerprint is executed, the search begins with the cached level and its neighbors.
+	 * The level is always verified by condition queries, thus the cache affects only the number of condition queries.
+	 * <p>Calling this method discards the current cache and its statistics.
+	 * @param maxEntries	maximum number of cached fingerprints, or 0 to disable
+	 * @param ttlMillis	time in milliseconds to keep each cached level, or 0 to keep until evicted
+	 */
+	public void setLevelCache(int maxEntries, long ttlMillis) {
+		levelCache = maxEntries > 0 ? new LruCache<String, Integer>(maxEntries, ttlMillis) : null;
+	}
+
+	/**
+	 * Returns number of sampling queries that found the level in the cache.
+	 * @return	number of hits, or 0 if the cache is disabled
+	 */
+	public long getLevelCacheHitCount() {
+		LruCache<String, Integer> cache = levelCache;
+		return cache == null ? 0 : cache.getHitCount();
+	}
+
+	/**
+	 * Returns number of sampling queries that did not find the level in the cache.
+	 * @return	number of misses, or 0 if the cache is disabled
+	 */
+	public long getLevelCacheMissCount() {
+		LruCache<String, Integer> cache = levelCache;
+		return cache == null ? 0 : cache.getMissCount();
+	}
+
+	/**
+	 * Returns maximum memory footprint of the cache of aggregate query results.
+	 * @return	maximum bytes, or 0 if the cache is disabled
+	 */
+	public long getResultCacheSize() {
+		ResultCache cache = resultCache;
+		return cache == null ? 0 : cache.getMaxBytes();
+	}
+
+	/**
+	 * Enable/disable the cache of aggregate query results. The default is disabled.
+	 * The cache maps the SQL text of sampling query executed by {@code Statement.executeQuery} to the level found and the result
+	 * of its aggregate query, which is read to the end and is kept in memory as CachedRowSet. When the same sampling query is executed again,
+	 * a copy of the cached result is returned without executing condition queries nor the aggregate query.
+	 * The level is searched again if the level pinned for the query is changed.
+	 * The cached results are discarded when meta information of sampling tables is reloaded,
+	 * because sampling tables are assumed not to be modified after they are converted.
+	 * The cache evicts the least recently used results when the estimated memory footprint exceeds the maximum.
+	 * <p>Calling this method discards the current cache and its statistics.
+	 * @param maxBytes	maximum bytes of the cached results, or 0 to disable
+	 */
+	public void setResultCacheSize(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes = " + maxBytes);
+		}
+		resultCache = maxBytes > 0 ? new ResultCache(maxBytes) : null;
+	}
+
+	/**
+	 * Returns number of sampling queries whose result was found in the cache.
+	 * @return	number of hits, or 0 if the cache is disabled
+	 */
+	public long getResultCacheHitCount() {
+		ResultCache cache = resultCache;
+		return cache == null ? 0 : cache.getHitCount();
+	}
+
+	/**
+	 * Returns number of sampling queries whose result was not found in the cache.
+	 * @return	number of misses, or 0 if the cache is disabled
+	 */
+	public long getResultCacheMissCount() {
+		ResultCache cache = resultCache;
+		return cache == null ? 0 : cache.getMissCount();
+	}
+
+	/**
+	 * Returns maximum number of condition queries whose outcomes are cached.
+	 * @return	maximum number of entries, or 0 if the cache is disabled
+	 */
+	public int getConditionCacheSize() {
+		LruCache<String, Boolean> cache = conditionCache;
+		return cache == null ? 0 : cache.getMaxEntries();
+	}
+
+	/**
+	 * Enable/disable the cache of condition query outcomes. The default is disabled.
+	 * When a sampling query finds the level satisfying UNTIL condition, the condition query of the level is cached as satisfied,
+	 * and the condition query of the next higher candidate level is cached as not satisfied.
+	 * When a sampling query having the same condition queries is executed, that is, the same SAMPLE clause and UNTIL condition,
+	 * even if its aggregate query is different, the level is decided by the cached outcomes without executing condition queries.
+	 * The cached outcomes are discarded when meta information of sampling tables is reloaded,
+	 * because sampling tables are assumed not to be modified after they are converted.
+	 * <p>Calling this method discards the current cache.
+	 * @param maxEntries	maximum number of cached condition queries, or 0 to disable
+	 */
+	public void setConditionCacheSize(int maxEntries) {
+		if (maxEntries < 0) {
+			throw new IllegalArgumentException("maxEntries = " + maxEntries);
+		}
+		conditionCache = maxEntries > 0 ? new LruCache<String, Boolean>(maxEntries, 0) : null;
+	}
+
+	/**
+	 * Returns the cache of condition query outcomes, discarding the outcomes if meta information of sampling tables has been reloaded.
+	 * @return	LruCache, or null if the cache is disabled
+	 */
+	private LruCache<String, Boolean> getConditionCache() {
+		LruCache<String, Boolean> cache = conditionCache;
+		if (cache != null) {
+			long generation = databaseDef.getGeneration();
+			if (generation != conditionGeneration) {
+				cache.clear();
+				conditionGeneration = generation;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns number of levels evaluated by a single cumulative condition query.
+	 * @return	number of levels, or 0 if cumulative condition query is disabled.
+	 */
+	public int getCumulativeConditionSpan() {
+		return cumulativeConditionSpan;
+	}
+
+	/**
+	 * Enable/disable cumulative condition query, that evaluates UNTIL condition at multiple levels in a single query.
+	 * Cumulative condition query is used only if UNTIL condition compares COUNT, SUM, MIN or MAX over a single sample table with a constant.
+	 * Otherwise, condition query is executed for each level.
+	 * <p>Each cumulative condition query scans the sample of the lowest level it evaluates.
+	 * Larger span reduces round trips to the database, but may scan larger sample than necessary.
+	 * @param cumulativeConditionSpan	number of levels evaluated by a single query, or 0 to disable
+	 */
+	public void setCumulativeConditionSpan(int cumulativeConditionSpan) {
+		if (cumulativeConditionSpan < 0) {
+			throw new IllegalArgumentException("cumulativeConditionSpan = " + cumulativeConditionSpan);
+		}
+		this.cumulativeConditionSpan = cumulativeConditionSpan;
+	}
+
+	/**
+	 * Returns true if incremental condition query is enabled.
+	 * @return	true if enabled.
+	 */
+	public boolean isIncrementalConditionEnabled() {
+		return incrementalConditionEnabled;
+	}
+
+	/**
+	 * Enable/disable incremental condition query.
+	 * When it is enabled, each condition query aggregates only the rows that are in the sample of the target level
+	 * but not in the sample of the previously tested level, and the driver merges the results.
+	 * So the sample of the satisfying level is scanned only once in total.
+	 * Incremental condition query is used only if UNTIL condition compares COUNT, SUM, MIN or MAX over a single sample table with a constant,
+	 * and is not used if cumulative condition query is enabled.
+	 * Levels are tested one by one regardless of the LevelSearch of the connection.
+	 * @param incrementalConditionEnabled	true if enable.
+	 */
+	public void setIncrementalConditionEnabled(boolean incrementalConditionEnabled) {
+		this.incrementalConditionEnabled = incrementalConditionEnabled;
+	}
+
+	/**
+	 * Returns true if UNTIL condition is evaluated by the level statistics.
+	 * @return	true if enabled.
+	 */
+	public boolean isStatisticsConditionEnabled() {
+		return statisticsConditionEnabled;
+	}
+
+	/**
+	 * Enable/disable evaluating UNTIL condition by the level statistics.
+	 * When it is enabled, UNTIL condition that compares COUNT(*) or COUNT(DISTINCT sampleKey) of a single sample table without WHERE clause
+	 * with a constant is evaluated by the number of rows and sample keys of each level stored when the sampling table is converted,
+	 * and no condition query is executed. The result may differ from condition query, if the sampling table is modified after it is converted.
+	 * This is not used in progressive mode, and is not used for sampling query with time budget.
+	 * @param statisticsConditionEnabled	true if enable.
+	 */
+	public void setStatisticsConditionEnabled(boolean statisticsConditionEnabled) {
+		this.statisticsConditionEnabled = statisticsConditionEnabled;
+	}
+
+	/**
+	 * Returns the level at which UNTIL condition of specified rewriter is satisfied according to the level statistics, if enabled.
+	 * @param rewriter	rewriter of sampling query
+	 * @return	level, or -1 if disabled, or if UNTIL condition can not be evaluated by the level statistics
+	 * @throws SQLException	if error occurs
+	 */
+	int getStatisticsLevel(SqlRewriter rewriter) throws SQLException {
+		return statisticsConditionEnabled ? rewriter.getStatisticsLevel() : -1;
+	}
+
+	/**
+	 * Pins the sample of specified sample table and sample key to specified level.
+	 * Sampling queries sampling the table by the key execute aggregate query of the level without searching the level,
+	 * so that all queries of an exploratory session are executed on the same sample.
+	 * The level of the first query can be obtained by {@link SamplingStatement#getSamplingLevel()}.
+	 * If a sampling query samples several pinned tables, the lowest level, that is, the largest sample, is used.
+	 * {@code LEVEL n} after SAMPLE clause of the query takes precedence over the pinned level.
+	 * @param table	name of the sample table without schema, it may be quoted identifier
+	 * @param sampleKey	name of the sample key, it may be quoted identifier
+	 * @param level	sampling level, from 0 to number of levels - 1
+	 */
+	public void pinSample(String table, String sampleKey, int level) {
+		if (level < 0 || level >= numLevel) {
+			throw new IllegalArgumentException("level = " + level);
+		}
+		pinnedLevels.put(pinKey(table, sampleKey), level);
+	}
+
+	/**
+	 * Unpins the sample of specified sample table and sample key, so that the level is searched again.
+	 * @param table	name of the sample table
+	 * @param sampleKey	name of the sample key
+	 */
+	public void unpinSample(String table, String sampleKey) {
+		pinnedLevels.remove(pinKey(table, sampleKey));
+	}
+
+	/** Unpins all samples pinned by {@link #pinSample(String, String, int)}. */
+	public void clearPinnedSamples() {
+		pinnedLevels.clear();
+	}
+
+	/** Returns the key of pinnedLevels. Names are unquoted and compared case-insensitively, because the names in SQL are not resolved yet. */
+	private static String pinKey(String table, String sampleKey) {
+		return SqlUtils.unquoteIdentifier(table).toLowerCase() + "\n" + SqlUtils.unquoteIdentifier(sampleKey).toLowerCase();
+	}
+
+	/**
+	 * Returns the level at which aggregate query of specified rewriter is executed without searching,
+	 * which is specified by LEVEL hint of the query, or pinned for its sample tables.
+	 * @param rewriter	rewriter of sampling query
+	 * @return	level, or -1 if the level is not specified
+	 * @throws SQLException	if error occurs, or if LEVEL hint is invalid
+	 */
+	int getPinnedLevel(SqlRewriter rewriter) throws SQLException {
+		int hintLv = rewriter.getLevelHint();
+		if (hintLv >= 0 || pinnedLevels.isEmpty()) {
+			return hintLv;
+		}
+		int pinnedLv = -1;
+		for (String[] sampleTable : rewriter.getSampleTables()) {
+			Integer level = pinnedLevels.get(pinKey(sampleTable[0], sampleTable[1]));
+			if (level != null && (pinnedLv < 0 || level < pinnedLv)) {
+				pinnedLv = level;
+			}
+		}
+		return pinnedLv;
+	}
+
+	/**
+	 * Returns number of condition queries executed concurrently.
+	 * @return	number of condition queries, or 0 if parallel probes are disabled.
+	 */
+	public int getParallelProbes() {
+		return parallelProbes;
+	}
+
+	/**
+	 * Enable/disable parallel probes, that execute condition queries of consecutive candidate levels concurrently
+	 * over the connections opened to the same underlying database in addition to this connection.
+	 * Once the level satisfying the condition is known, condition queries of the other levels are cancelled.
+	 * <p>Parallel probes are used only if this connection is created by {@link Driver}, and not used if cumulative or incremental condition query is used.
+	 * The additional connections are opened when they are used first, and closed when this connection is closed.
+	 * Note that condition queries on the additional connections can not see the uncommitted changes of this connection.
+	 * @param parallelProbes	number of condition queries executed concurrently, that is, number of additional connections, or 0 to disable
+	 * @throws SQLException	if failed to close the additional connections opened already
+	 */
+	public void setParallelProbes(int parallelProbes) throws SQLException {
+		if (parallelProbes < 0) {
+			throw new IllegalArgumentException("parallelProbes = " + parallelProbes);
+		}
+		closeSiblings();
+		this.parallelProbes = parallelProbes;
+	}
+
+	/**
+	 * Returns true if pipelined aggregate query is enabled.
+	 * @return	true if enabled.
+	 */
+	public boolean isPipelinedAggregateEnabled() {
+		return pipelinedAggregateEnabled;
+	}
+
+	/**
+	 * Enable/disable pipelined aggregate query.
+	 * When it is enabled, {@code Statement.executeQuery} starts the aggregate query of each level on another connection
+	 * to the same underlying database, at the same time as its condition query.
+	 * If the level satisfies the condition, the aggregate query already running is used for the result.
+	 * Otherwise, it is cancelled by {@code Statement.cancel()}.
+	 * <p>Pipelined aggregate query is used only if this connection is created by {@link Driver}, and not used if parallel probes,
+	 * cumulative or incremental condition query is used.
+	 * Note that the aggregate query on the other connection can not see the uncommitted changes of this connection.
+	 * @param pipelinedAggregateEnabled	true if enable.
+	 * @throws SQLException	if failed to close the additional connections opened already
+	 */
+	public void setPipelinedAggregateEnabled(boolean pipelinedAggregateEnabled) throws SQLException {
+		closeSiblings();
+		this.pipelinedAggregateEnabled = pipelinedAggregateEnabled;
+	}
+
+	/**
+	 * Returns true if progressive mode is enabled.
+	 * @return	true if enabled.
+	 */
+	public boolean isProgressiveEnabled() {
+		return progressiveEnabled;
+	}
+
+	/**
+	 * Enable/disable progressive mode.
+	 * In progressive mode, {@code Statement.executeQuery} of sampling query returns {@link ProgressiveResultSet} immediately,
+	 * which holds the result of the smallest sample, without waiting for UNTIL condition to be satisfied.
+	 * The result is refined with larger samples by {@link ProgressiveResultSet#nextRefinement()}.
+	 * <p>Progressive mode is not used for sampling query with time budget, and LevelSearch and the other search options are not used in progressive mode.
+	 * @param progressiveEnabled	true if enable.
+	 */
+	public void setProgressiveEnabled(boolean progressiveEnabled) {
+		this.progressiveEnabled = progressiveEnabled;
+	}
+
+	/**
+	 * Returns maximum number of SQL texts whose parse result is cached.
+	 * @return	maximum number of entries, or 0 if the cache is disabled
+	 */
+	public int getRewriteCacheSize() {
+		LruCache<String, SqlRewriter> cache = rewriterCache;
+		return cache == null ? 0 : cache.getMaxEntries();
+	}
+
+	/**
+	 * Enable/disable the cache of parsed SQL. The default size is 64.
+	 * The cache maps SQL text to its parse tree and the template of the rewritten queries,
+	 * thus executing the same SQL again skips parsing, and rewriting at each level only fills the level into the template.
+	 * <p>Calling this method discards the current cache.
+	 * @param maxEntries	maximum number of cached SQL texts, or 0 to disable
+	 */
+	public void setRewriteCacheSize(int maxEntries) {
+		if (maxEntries < 0) {
+			throw new IllegalArgumentException("maxEntries = " + maxEntries);
+		}
+		rewriterCache = maxEntries > 0 ? new LruCache<String, SqlRewriter>(maxEntries, 0) : null;
+	}
+
+	/**
+	 * Returns whether the values depending on the sampling level are bound as parameters.
+	 * @return	true if enabled
+	 */
+	public boolean isLevelParametersEnabled() {
+		return levelParameterPool != null;
+	}
+
+	/**
+	 * Enable/disable binding the values depending on the sampling level as parameters. The default is false.
+	 * <p>If enabled, the value of level column and _FACTOR in condition query and aggregate query are parameter markers,
+	 * and the queries are executed as prepared statements, which are reused for all levels and for the following sampling queries of the same SQL.
+	 * Thus the underlying database parses and plans the queries of a sampling query once, instead of once for each level.
+	 * However, the plan may be worse, because the database can not use the value of level column to plan the query.
+	 * <p>Cumulative and incremental condition query, parallel probes, pipelined aggregate query, progressive mode and time budget
+	 * execute the queries as they are. Calling this method closes the current prepared statements.
+	 * @param levelParametersEnabled	true to enable
+	 */
+	public synchronized void setLevelParametersEnabled(boolean levelParametersEnabled) {
+		if (levelParameterPool != null) {
+			levelParameterPool.close();
+		}
+		levelParameterPool = levelParametersEnabled ? new PreparedStatementPool(conn, LEVEL_PARAMETER_POOL_SIZE) : null;
+	}
+
+	/**
+	 * Returns the bundle of SQL rewritten ahead of time.
+	 * @return	RewriteBundle, or null if not specified
+	 */
+	RewriteBundle getRewriteBundle() {
+		return rewriteBundle;
+	}
+
+	/**
+	 * Set the bundle of SQL rewritten ahead of time. The SQL in the bundle is rewritten by filling its template without parsing,
+	 * if the bundle is generated with the same rewriting mode and number of levels as this connection.
+	 * @param rewriteBundle	RewriteBundle, or null to parse all SQL
+	 */
+	void setRewriteBundle(RewriteBundle rewriteBundle) {
+		this.rewriteBundle = rewriteBundle;
+	}
+
+	/**
+	 * Returns the pool of prepared statements of parameterized level queries, if it can be used for specified rewriter.
+	 * @param rewriter	rewriter of sampling query
+	 * @return	PreparedStatementPool, or null if disabled, or if the SQL has its own parameter markers.
+	 */
+	private PreparedStatementPool getLevelParameterPool(SqlRewriter rewriter) {
+		PreparedStatementPool pool = levelParameterPool;
+		return pool != null && rewriter.getParameterCount() == 0 ? pool : null;
+	}
+
+	/**
+	 * Set JDBC URL and connection properties of the underlying database, that are used to open sibling connections.
+	 * @param srcUrl	JDBC URL of the underlying database
+	 * @param srcInfo	connection properties of the underlying database
+	 */
+	void setSourceConnectionInfo(String srcUrl, Properties srcInfo) {
+		this.srcUrl = srcUrl;
+		this.srcInfo = srcInfo;
+	}
+
+	/**
+	 * Set meta information of sampling tables, which may be shared with other connections. This must be called before any statement is executed.
+	 * @param databaseDef	DatabaseDef
+	 */
+	void setDatabaseDef(DatabaseDef databaseDef) {
+		this.databaseDef = databaseDef;
+	}
+
+	/**
+	 * Returns sibling connections, opening them if not opened yet.
+	 * @return	sibling connections, or null if both parallel probes and pipelined aggregate query are disabled, or not available.
+	 */
+	private synchronized SiblingConnections getSiblings() {
+		int size = Math.max(parallelProbes, pipelinedAggregateEnabled ? 1 : 0);
+		if (size == 0 || srcUrl == null) {
+			return null;
+		}
+		if (siblings == null) {
+			siblings = new SiblingConnections(srcUrl, srcInfo, size);
+		}
+		return siblings;
+	}
+
+	/** Closes sibling connections if opened. */
+	private synchronized void closeSiblings() throws SQLException {
+		if (siblings != null) {
+			SiblingConnections s = siblings;
+			siblings = null;
+			s.close();
+		}
+	}
+
+	/**
+	 * Closes sibling connections and prepared statements, then closes the connection of the underlying database.
+	 * <p>{@inheritDoc}
+	 */
+	@Override
+	public void close() throws SQLException {
+		try {
+			PreparedStatementPool pool = levelParameterPool;
+			if (pool != null) {
+				pool.close();
+			}
+			closeSiblings();
+		}
+		finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Reloads meta information of sampling tables if a sampling table is converted in the transaction that has ended.
+	 * @throws SQLException	if error occurs
+	 */
+	private void reloadIfDirty() throws SQLException {
+		if (catalogDirty) {
+			catalogDirty = false;
+			databaseDef.reload(conn);
+		}
+	}
+
+	/**
+	 * Commits the transaction, and reloads meta information of sampling tables if a sampling table is converted in it.
+	 * <p>{@inheritDoc}
+	 */
+	@Override
+	public void commit() throws SQLException {
+		conn.commit();
+		reloadIfDirty();
+	}
+
+	/**
+	 * Rolls back the transaction, and reloads meta information of sampling tables if a sampling table is converted in it,
+	 * since DDL statements may have been committed implicitly by the DBMS.
+	 * <p>{@inheritDoc}
+	 */
+	@Override
+	public void rollback() throws SQLException {
+		conn.rollback();
+		reloadIfDirty();
+	}
+
+	/**
+	 * Sets auto-commit mode, and reloads meta information of sampling tables if a sampling table is converted in the transaction
+	 * committed by enabling auto-commit mode.
+	 * <p>{@inheritDoc}
+	 */
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		conn.setAutoCommit(autoCommit);
+		if (autoCommit) {
+			reloadIfDirty();
+		}
+	}
+
+	/**
+	 * Executes condition sql and returns the result.
+	 * @param stmt	statement to execute the condition sql
+	 * @param condSql	condition sql
+	 * @return	result
+	 * @throws SQLException	if error occurs, or condition sql returns result other than boolean type, or returns no result, or returns multiple result.
+	 */
+	static boolean evaluateCondition(Statement stmt, String condSql) throws SQLException {
+		try (ResultSet rs = stmt.executeQuery(condSql);) {
+			return readCondition(rs);
+		}
+	}
+
+	/**
+	 * Executes prepared condition query and returns the result.
+	 * @param ps	prepared condition query, which parameters are set
+	 * @return	result
+	 * @throws SQLException	if error occurs, or condition query returns result other than boolean type, or returns no result, or returns multiple result.
+	 */
+	static boolean evaluateCondition(PreparedStatement ps) throws SQLException {
+		try (ResultSet rs = ps.executeQuery();) {
+			return readCondition(rs);
+		}
+	}
+
+	/** Reads the result of condition query, which must be a single boolean value. */
+	private static boolean readCondition(ResultSet rs) throws SQLException {
+		if (!rs.next()) {
+			throw new SQLException("DB returned empty rows for condition query.");
+		}
+		boolean result;
+		try {
+			result = rs.getBoolean(1);
+		}
+		catch (SQLException e) {
+			throw new SQLException("Result is not boolean for condition query.", e);
+		}
+		if (rs.next()) {
+			throw new SQLException("DB returned multiple rows for condition query. maybe, UNTIL clause is wrong.");
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the timer to cancel statements that exceed the time budget.
+	 * @return	timer
+	 */
+	private static synchronized Timer getCancelTimer() {
+		if (cancelTimer == null) {
+			cancelTimer = new Timer("sampling-cancel", true);
+		}
+		return cancelTimer;
+	}
+
 	/**
 	 * Set rewriting behavior that depends on the underlying database.
 	 * @param dbType	constants of DBType
@@ -109,22 +792,236 @@ public class ProxyConnection extends AbstractWrapperConnection {
 	}
 
 	/**
-	 * A class that wraps {@code java.sql.Statement} of underlying JDBC driver.
+	 * Returns a PreparedStatement. If specified SQL is a sampling query, the returned object executes the rewritten queries
+	 * as prepared statements of the underlying database, which are prepared for each level when the level is used first.
+	 * Otherwise, SQL is prepared by the underlying database as it is.
 	 */
-	private class StatementImpl extends AbstractWrapperStatement implements ProxyStatement {
+	@Override
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		SqlRewriter rewriter = newSamplingRewriter(sql);
+		if (rewriter == null) {
+			return conn.prepareStatement(sql);
+		}
+		return new ProxyPreparedStatement(this, rewriter, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, -1);
+	}
 
-		private StatementImpl(Statement srcStmt) throws SQLException {
-			super(srcStmt);
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+			throws SQLException {
+		SqlRewriter rewriter = newSamplingRewriter(sql);
+		if (rewriter == null) {
+			return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
 		}
+		return new ProxyPreparedStatement(this, rewriter, resultSetType, resultSetConcurrency, -1);
+	}
 
-		// Create an instance of SqlRewriter
-		private SqlRewriter newRewriter(String sql) throws SQLException {
-			try {
-				return new SamplingSqlRewriter(databaseDef, numLevel, sql, rewriteInlineViewEnabled);
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+			int resultSetHoldability) throws SQLException {
+		SqlRewriter rewriter = newSamplingRewriter(sql);
+		if (rewriter == null) {
+			return conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+		}
+		return new ProxyPreparedStatement(this, rewriter, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	/**
+	 * Returns SqlRewriter of specified SQL if it is a sampling query to be executed with sampling.
+	 * @param sql	SQL to prepare
+	 * @return	SqlRewriter, or null if sampling is disabled, or SQL has no SAMPLE clause, or SQL can not be rewritten.
+	 * SQL that can not be rewritten is prepared by the underlying database, which reports the error if any.
+	 */
+	private SqlRewriter newSamplingRewriter(String sql) {
+		if (!samplingEnabled || !RewriterCommon.mayContainSamplingKeyword(sql)) {
+			return null;
+		}
+		try {
+			SqlRewriter rewriter = newRewriter(sql);
+			return rewriter.hasSampleClause() ? rewriter : null;
+		}
+		catch (SQLException e) {
+			return null;
+		}
+	}
+
+	// Create an instance of SqlRewriter
+	SqlRewriter newRewriter(String sql) throws SQLException {
+		// the rewriter depends on databaseDef, so it can be reused for the same SQL until databaseDef is reloaded.
+		LruCache<String, SqlRewriter> cache = rewriterCache;
+		String key = null;
+		if (cache != null) {
+			long generation = databaseDef.getGeneration();
+			if (generation != rewriterGeneration) {
+				cache.clear();
+				rewriterGeneration = generation;
 			}
-			catch (UnsupportedOperationException e) {
-				throw new SQLException(e);
+			key = (rewriteInlineViewEnabled ? "I" : "W") + numLevel + ':' + sql;
+			SqlRewriter rewriter = cache.get(key);
+			if (rewriter != null) {
+				return rewriter;
+			}
+		}
+		try {
+			SqlRewriter rewriter = null;
+			RewriteBundle bundle = rewriteBundle;
+			if (bundle != null && bundle.rewriteInlineViewEnabled == rewriteInlineViewEnabled && bundle.numLevel == numLevel) {
+				RewriteBundle.Entry entry = bundle.get(sql);
+				if (entry != null) {
+					rewriter = new BundledRewriter(databaseDef, sql, bundle, entry);
+				}
+			}
+			if (rewriter == null) {
+				rewriter = new SamplingSqlRewriter(databaseDef, numLevel, sql, rewriteInlineViewEnabled);
+			}
+			if (cache != null) {
+				cache.put(key, rewriter);
+			}
+			return rewriter;
+		}
+		catch (UnsupportedOperationException e) {
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Loads meta information of sampling tables if not loaded yet, or reloads it if the time to live has elapsed.
+	 * @throws SQLException	if error occurs
+	 */
+	void loadDatabaseDef() throws SQLException {
+		databaseDef.load(conn, catalogTtl);
+	}
+
+	/**
+	 * Analyzes sampling query according to the analysis mode of this connection.
+	 * Meta information of sampling tables must be loaded before calling this method.
+	 * @param rewriter	rewriter of sampling query
+	 * @return	messages of the patterns found, which are reported as SQLWarning. empty if none or if the analysis is disabled.
+	 * @throws SQLException	if the query has error, or if any pattern is found in strict mode
+	 */
+	List<String> analyze(SqlRewriter rewriter) throws SQLException {
+		if (analysisMode == AnalysisMode.NONE) {
+			return Collections.emptyList();
+		}
+		List<String> warnings = rewriter.getPerformanceWarnings();
+		if (analysisMode == AnalysisMode.STRICT && !warnings.isEmpty()) {
+			StringBuilder buf = new StringBuilder("Sampling query is rejected by strict analysis:");
+			for (String warning : warnings) {
+				buf.append(' ').append(warning);
+			}
+			throw new SQLException(buf.toString());
+		}
+		return warnings;
+	}
+
+	/**
+	 * Returns the chain of SQLWarning made of specified messages, followed by specified warnings.
+	 * A new chain is made at each call, because {@link SQLWarning#setNextWarning(SQLWarning)} appends to the end of the chain.
+	 * @param messages	messages of the warnings
+	 * @param next	warnings that follow the messages, or null
+	 * @return	the first warning, or null if no warnings
+	 */
+	static SQLWarning chainWarnings(List<String> messages, SQLWarning next) {
+		SQLWarning first = null;
+		for (int i = messages.size() - 1; i >= 0; i--) {
+			SQLWarning warning = new SQLWarning(messages.get(i));
+			if (first != null) {
+				warning.setNextWarning(first);
+			}
+			else if (next != null) {
+				warning.setNextWarning(next);
+			}
+			first = warning;
+		}
+		return first != null ? first : next;
+	}
+
+	/**
+	 * Returns number of sampling level.
+	 * @return	number of sampling level
+	 */
+	int getNumLevel() {
+		return numLevel;
+	}
+
+	/**
+	 * Returns the cache of the level that satisfied UNTIL condition last time, which key is the fingerprint of sampling query.
+	 * @return	LruCache, or null if the level cache is disabled
+	 */
+	LruCache<String, Integer> getLevelCache() {
+		return levelCache;
+	}
+
+	/**
+	 * Searches the level satisfying UNTIL condition by testing the levels one at a time.
+	 * If the level satisfied the condition last time is known, the search starts from it, otherwise the LevelSearch of this connection is used.
+	 * @param levels	candidate levels in descending order
+	 * @param cachedLv	the level that satisfied the condition last time, or null
+	 * @param probe	condition to test
+	 * @return	index of the first level in the array that satisfies the condition, or -1 if no level satisfies it.
+	 * @throws SQLException	if error occurs
+	 */
+	int searchLevel(int[] levels, Integer cachedLv, LevelProbe probe) throws SQLException {
+		if (cachedLv != null && levels.length > 0) {
+			// start from the candidate level nearest to the cached level
+			int start = 0;
+			while (start < levels.length - 1 && levels[start] > cachedLv) {
+				start++;
 			}
+			return LevelSearch.searchFrom(levels, start, probe);
+		}
+		return levelSearch.search(levels, probe);
+	}
+
+	/**
+	 * A statement of a script, classified by how it is executed.
+	 */
+	private static class ScriptStatement {
+		final String sql;
+		/** rewriter if the statement is a sampling query, or null. */
+		final SqlRewriter rewriter;
+		/** rewriter if the statement is CREATE TABLE statement with SAMPLE clause, or null. */
+		final ConvertingSqlRewriter convertingRewriter;
+
+		ScriptStatement(String sql, SqlRewriter rewriter, ConvertingSqlRewriter convertingRewriter) {
+			this.sql = sql;
+			this.rewriter = rewriter;
+			this.convertingRewriter = convertingRewriter;
+		}
+
+		/** Returns true if the statement is sent to the underlying database as it is. */
+		boolean isPlain() {
+			return rewriter == null && convertingRewriter == null;
+		}
+	}
+
+	/**
+	 * A class that wraps {@code java.sql.Statement} of underlying JDBC driver.
+	 */
+	private class StatementImpl extends AbstractWrapperStatement implements SamplingStatement, ProxyStatement {
+
+		/** number of condition queries issued by the last sampling query. */
+		private int probeCount = 0;
+		/** aggregate query running on a sibling connection, which level has satisfied the condition. null if none. */
+		private SiblingConnections.SpeculativeQuery speculation = null;
+		/** level of the speculation. */
+		private int speculationLevel = -1;
+		/** result returned by the last executeQuery that is not produced by the statement of the underlying database, such as pipelined or progressive result. null if none. */
+		private ResultSet ownedResult = null;
+		/** System.nanoTime() by which aggregate query must be completed. valid only if hasDeadline is true. */
+		private long deadline = 0;
+		/** true if aggregate query has the time budget. */
+		private boolean hasDeadline = false;
+		/** level of the aggregate query returned by the last doSampling, or -1 if none or if the last sampling query is progressive. */
+		private int sampledLevel = -1;
+		/** prepared statement executing a query, which is cancelled by {@link #cancel()}. null if none. */
+		private volatile PreparedStatement running = null;
+		/** SQL added by addBatch. */
+		private final List<String> batch = new ArrayList<>();
+		/** messages of the patterns found by the analysis of the sampling queries of the last execution. */
+		private final List<String> analysisWarnings = new ArrayList<>();
+
+		private StatementImpl(Statement srcStmt) throws SQLException {
+			super(srcStmt);
 		}
 
 		// Create an instance of ConvertingRewriter
@@ -139,23 +1036,60 @@ public class ProxyConnection extends AbstractWrapperConnection {
 
 		@Override
 		public boolean execute(String sql) throws SQLException {
-			// throws SQLFeatureNotSupportedException if specified argument contains multiple SQL statements.
-			mustBeSingleQuery(sql);
+			closeOwnedResult();
+			analysisWarnings.clear();
+
+			// SQL without sampling syntax is delegated without parsing, even if it contains multiple statements.
+			if (!RewriterCommon.mayContainSamplingKeyword(sql)) {
+				return stmt.execute(sql);
+			}
+
+			List<String> statements = RewriterCommon.splitStatements(sql);
+			if (statements.size() <= 1) {
+				return execute(classify(sql));
+			}
+
+			// execute a script. the statements that are not rewritten are sent as batches, and the result of the last statement is returned.
+			List<String> plainStatements = new ArrayList<>();
+			for (String statement : statements.subList(0, statements.size() - 1)) {
+				ScriptStatement scriptStatement = classify(statement);
+				if (scriptStatement.isPlain()) {
+					plainStatements.add(statement);
+				}
+				else {
+					executePlainStatements(plainStatements);
+					execute(scriptStatement);
+					closeOwnedResult();
+				}
+			}
+			executePlainStatements(plainStatements);
+			return execute(classify(statements.get(statements.size() - 1)));
+		}
+
+		/**
+		 * Classifies specified SQL by how it is executed.
+		 * @param sql	a single SQL statement
+		 * @return	ScriptStatement
+		 * @throws SQLException	if the SQL is CREATE TABLE statement with SAMPLE clause that can not be converted
+		 */
+		private ScriptStatement classify(String sql) throws SQLException {
+			if (!RewriterCommon.mayContainSamplingKeyword(sql)) {
+				return new ScriptStatement(sql, null, null);
+			}
 
 			// first, assume that SQL is SELECT statement.
 			SqlRewriter rewriter = null;
-			SQLException exception = null;
 			try {
 				rewriter = newRewriter(sql);
 			}
 			catch (SQLException e) {
-				exception = e;
+				// not a SELECT statement
 			}
-			if (exception == null) {
+			if (rewriter != null) {
 				if (!samplingEnabled || !hasSampleClause(rewriter)) {
-					return stmt.execute(sql);
+					return new ScriptStatement(sql, null, null);
 				}
-				return execute(rewriter);
+				return new ScriptStatement(sql, rewriter, null);
 			}
 
 			// second, assume that SQL is CREATE TABLE statement.
@@ -164,7 +1098,7 @@ public class ProxyConnection extends AbstractWrapperConnection {
 				convertingRewriter = newConvertingRewriter(sql);
 			}
 			catch (SQLException e) {
-				exception = e;
+				// not a CREATE TABLE statement
 			}
 			if (convertingRewriter != null) {
 				if (convertingRewriter.hasSampleClause()) {
@@ -172,55 +1106,445 @@ public class ProxyConnection extends AbstractWrapperConnection {
 					if (msg != null) {
 						throw new SQLException(msg);
 					}
-					convertTable(convertingRewriter);
-					return false;
+					return new ScriptStatement(sql, null, convertingRewriter);
+				}
+			}
+
+			// finally, delegate to underlying database
+			return new ScriptStatement(sql, null, null);
+		}
+
+		/**
+		 * Executes a classified statement.
+		 * @param scriptStatement	statement to execute
+		 * @return	true if the result is a ResultSet
+		 * @throws SQLException	if error occurs
+		 */
+		private boolean execute(ScriptStatement scriptStatement) throws SQLException {
+			if (scriptStatement.rewriter != null) {
+				return execute(scriptStatement.rewriter);
+			}
+			if (scriptStatement.convertingRewriter != null) {
+				convertTable(scriptStatement.convertingRewriter);
+				return false;
+			}
+			return stmt.execute(scriptStatement.sql);
+		}
+
+		/**
+		 * Executes the statements that are not rewritten as a batch, and clears the list.
+		 * A single statement is executed without batch.
+		 * @param plainStatements	statements to execute
+		 * @return	update counts of the statements
+		 * @throws SQLException	if error occurs. BatchUpdateException if some statements of the batch failed.
+		 */
+		private int[] executePlainStatements(List<String> plainStatements) throws SQLException {
+			int[] counts;
+			if (plainStatements.isEmpty()) {
+				return new int[0];
+			}
+			else if (plainStatements.size() == 1) {
+				counts = new int[] {stmt.execute(plainStatements.get(0)) ? Statement.SUCCESS_NO_INFO : stmt.getUpdateCount()};
+			}
+			else {
+				try {
+					for (String sql : plainStatements) {
+						stmt.addBatch(sql);
+					}
+					counts = stmt.executeBatch();
+				}
+				finally {
+					stmt.clearBatch();
+				}
+			}
+			plainStatements.clear();
+			return counts;
+		}
+
+		/**
+		 * Adds specified SQL to the batch. The SQL may contain multiple statements separated by semicolons,
+		 * and the update count of the SQL is the sum of the update counts of its statements.
+		 * <p>{@inheritDoc}
+		 */
+		@Override
+		public void addBatch(String sql) throws SQLException {
+			batch.add(sql);
+		}
+
+		@Override
+		public void clearBatch() throws SQLException {
+			batch.clear();
+		}
+
+		/**
+		 * Executes the batch. The statements that are not rewritten are sent as batches of the underlying database,
+		 * and CREATE TABLE statements with SAMPLE clause are converted between them. Sampling queries can not be executed in a batch.
+		 * <p>{@inheritDoc}
+		 */
+		@Override
+		public int[] executeBatch() throws SQLException {
+			closeOwnedResult();
+			analysisWarnings.clear();
+			List<String> entries = new ArrayList<>(batch);
+			batch.clear();
+
+			// update counts of the entries, which are summed up from the statements of each entry.
+			int[] counts = new int[entries.size()];
+			// index of the entry of each statement in plainStatements.
+			List<Integer> owners = new ArrayList<>();
+			List<String> plainStatements = new ArrayList<>();
+			int done = 0;
+			try {
+				for (int i = 0; i < entries.size(); i++) {
+					for (String statement : RewriterCommon.splitStatements(entries.get(i))) {
+						ScriptStatement scriptStatement = classify(statement);
+						if (scriptStatement.isPlain()) {
+							plainStatements.add(statement);
+							owners.add(i);
+							continue;
+						}
+						executePlainStatements(plainStatements, owners, counts, i);
+						done = i;
+						if (scriptStatement.rewriter != null) {
+							throw new SQLException("Sampling query can not be executed in batch: " + statement);
+						}
+						convertTable(scriptStatement.convertingRewriter);
+						counts[i] = Statement.SUCCESS_NO_INFO;
+					}
+					if (plainStatements.isEmpty()) {
+						done = i + 1;
+					}
+				}
+				executePlainStatements(plainStatements, owners, counts, entries.size());
+				return counts;
+			}
+			catch (BatchUpdateException e) {
+				throw e;
+			}
+			catch (SQLException e) {
+				throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(), Arrays.copyOf(counts, done), e);
+			}
+		}
+
+		/**
+		 * Executes the statements that are not rewritten as a batch, and adds their update counts to the entries of the batch.
+		 * @param plainStatements	statements to execute, which is cleared
+		 * @param owners	index of the entry of each statement, which is cleared
+		 * @param counts	update counts of the entries
+		 * @param complete	number of the entries whose statements are all added to plainStatements or executed
+		 * @throws SQLException	if error occurs. BatchUpdateException with the update counts of the entries executed successfully, if some statements failed.
+		 */
+		private void executePlainStatements(List<String> plainStatements, List<Integer> owners, int[] counts, int complete) throws SQLException {
+			if (plainStatements.isEmpty()) {
+				return;
+			}
+			int first = owners.get(0);
+			int[] results;
+			try {
+				results = executePlainStatements(plainStatements);
+			}
+			catch (BatchUpdateException e) {
+				int[] partial = e.getUpdateCounts() == null ? new int[0] : e.getUpdateCounts();
+				int done = first;
+				for (int j = 0; j < partial.length && partial[j] != Statement.EXECUTE_FAILED; j++) {
+					addUpdateCount(counts, owners.get(j), partial[j]);
+					if (j + 1 == owners.size() || owners.get(j + 1).intValue() != owners.get(j).intValue()) {
+						done = Math.min(owners.get(j) + 1, complete);
+					}
+				}
+				throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(), Arrays.copyOf(counts, done), e);
+			}
+			for (int j = 0; j < results.length; j++) {
+				addUpdateCount(counts, owners.get(j), results[j]);
+			}
+			owners.clear();
+		}
+
+		/** Adds an update count of a statement to the update count of its entry, which is SUCCESS_NO_INFO if any count is unknown. */
+		private void addUpdateCount(int[] counts, int entry, int count) {
+			if (counts[entry] == Statement.SUCCESS_NO_INFO || count < 0) {
+				counts[entry] = Statement.SUCCESS_NO_INFO;
+			}
+			else {
+				counts[entry] += count;
+			}
+		}
+
+		@Override
+		public long[] executeLargeBatch() throws SQLException {
+			int[] counts = executeBatch();
+			long[] largeCounts = new long[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				largeCounts[i] = counts[i];
+			}
+			return largeCounts;
+		}
+
+		@Override
+		public ResultSet executeQuery(String sql) throws SQLException {
+			closeOwnedResult();
+			analysisWarnings.clear();
+			if (!RewriterCommon.mayContainSamplingKeyword(sql)) {
+				return stmt.executeQuery(sql);
+			}
+			SqlRewriter rewriter = newRewriter(sql);
+
+			if (!samplingEnabled || !hasSampleClause(rewriter)) {
+				return stmt.executeQuery(sql);
+			}
+			else {
+				return executeSamplingQuery(sql, rewriter);
+			}
+		}
+
+		/**
+		 * Analyzes sampling query before it is executed, and keeps the patterns found as the warnings of this statement.
+		 * @param rewriter	rewriter of sampling query
+		 * @throws SQLException	if error occurs, or if any pattern is found in strict mode
+		 */
+		private void analyze(SqlRewriter rewriter) throws SQLException {
+			loadDatabaseDef();
+			analysisWarnings.addAll(ProxyConnection.this.analyze(rewriter));
+		}
+
+		/**
+		 * Returns the warnings of the analysis of sampling queries followed by the warnings of the underlying statement.
+		 * <p>{@inheritDoc}
+		 */
+		@Override
+		public SQLWarning getWarnings() throws SQLException {
+			return chainWarnings(analysisWarnings, stmt.getWarnings());
+		}
+
+		@Override
+		public void clearWarnings() throws SQLException {
+			analysisWarnings.clear();
+			stmt.clearWarnings();
+		}
+
+		/** Returns true if specified rewriter is generated from SQL including SAMPLE clause. */
+		private boolean hasSampleClause(SqlRewriter rewriter) throws SQLException {
+			return rewriter.hasSampleClause();
+		}
+
+		/**
+		 * Executes condition query by decreasing target level until condition is satisfied, then executes aggregate query.
+		 * If the result of the same sampling query is cached, it is returned without executing any query.
+		 * @param sql	sampling query
+		 * @param rewriter	rewriter
+		 * @return	a ResultSet object that contains the data produced by the aggregate query
+		 * @throws SQLException	if error occurs, or if condition is not satisfied.
+		 */
+		private ResultSet executeSamplingQuery(String sql, SqlRewriter rewriter) throws SQLException {
+			analyze(rewriter);
+			if (progressiveEnabled) {
+				ResultSet rs = executeProgressiveQuery(rewriter);
+				if (rs != null) {
+					ownedResult = rs;
+					return rs;
+				}
+			}
+			ResultCache cache = resultCache;
+			if (cache == null) {
+				return executeAggregateQuery(rewriter, doSampling(rewriter, pipelinedAggregateEnabled));
+			}
+			// the level is decided by the SQL text, the meta information of sampling tables and the pinned level, and so is the result.
+			// the result is truncated by the maximum number of rows of the statement, so it is part of the key as well.
+			long generation = databaseDef.getGeneration();
+			String key = sql + "\n" + getPinnedLevel(rewriter) + "\n" + stmt.getMaxRows();
+			int[] level = new int[1];
+			ResultSet cached = cache.get(key, generation, level);
+			if (cached != null) {
+				probeCount = 0;
+				hasDeadline = false;
+				sampledLevel = level[0];
+				ownedResult = cached;
+				return cached;
+			}
+			String aggSql = doSampling(rewriter, pipelinedAggregateEnabled);
+			ResultSet rs = executeAggregateQuery(rewriter, aggSql);
+			try {
+				ownedResult = cache.put(key, generation, sampledLevel, rs);
+			}
+			finally {
+				rs.close();
+			}
+			return ownedResult;
+		}
+
+		/**
+		 * Executes aggregate query selected by {@link #doSampling(SqlRewriter, boolean)}, or takes the result of the speculation if it is running.
+		 * @param rewriter	rewriter
+		 * @param aggSql	aggregate query
+		 * @return	result of the aggregate query
+		 * @throws SQLException	if error occurs
+		 */
+		private ResultSet executeAggregateQuery(SqlRewriter rewriter, String aggSql) throws SQLException {
+			if (speculation != null) {
+				SiblingConnections.SpeculativeQuery query = speculation;
+				speculation = null;
+				ownedResult = new PipelinedResultSet(query.get(), query, this);
+				return ownedResult;
+			}
+			if (hasDeadline) {
+				CancelTask task = scheduleCancel(deadline);
+				try {
+					return stmt.executeQuery(aggSql);
+				}
+				catch (SQLException e) {
+					throw task.translate(e);
+				}
+				finally {
+					task.cancel();
+				}
+			}
+			PreparedStatementPool pool = getLevelParameterPool(rewriter);
+			ParameterizedQuery aggQuery = pool == null ? null : rewriter.getParameterizedAggregateQuery();
+			if (aggQuery != null) {
+				ownedResult = executeParameterized(pool, aggQuery, sampledLevel);
+				return ownedResult;
+			}
+			ResultSet rs = stmt.executeQuery(aggSql);
+			return rs;
+		}
+
+		/**
+		 * Executes aggregate query of specified level as a prepared statement taken from the pool.
+		 * The statement is returned to the pool when the result is closed.
+		 * @param pool	pool of prepared statements
+		 * @param aggQuery	parameterized aggregate query
+		 * @param level	sampling level
+		 * @return	result of aggregate query
+		 * @throws SQLException	if error occurs
+		 */
+		private ResultSet executeParameterized(PreparedStatementPool pool, ParameterizedQuery aggQuery, int level) throws SQLException {
+			PreparedStatement ps = pool.take(aggQuery.sql);
+			ResultSet rs = null;
+			try {
+				aggQuery.bindLevel(ps, level);
+				ps.setQueryTimeout(stmt.getQueryTimeout());
+				ps.setMaxRows(stmt.getMaxRows());
+				ps.setMaxFieldSize(stmt.getMaxFieldSize());
+				ps.setFetchSize(stmt.getFetchSize());
+				running = ps;
+				rs = ps.executeQuery();
+			}
+			finally {
+				running = null;
+				if (rs == null) {
+					pool.release(aggQuery.sql, ps);
+				}
+			}
+			return new PooledResultSet(rs, ps, this, pool, aggQuery.sql);
+		}
+
+		/**
+		 * A TimerTask that cancels the statement of the underlying database.
+		 */
+		private class CancelTask extends TimerTask {
+			/** true if the statement has been cancelled by this task. */
+			private volatile boolean fired = false;
+
+			@Override
+			public void run() {
+				fired = true;
+				try {
+					stmt.cancel();
+				}
+				catch (SQLException e) {
+					// ignore, the statement runs to completion.
 				}
 			}
 
-			// finally, delegate to underlying database
-			return stmt.execute(sql);
+			/**
+			 * Returns SQLTimeoutException if the statement has been cancelled by this task, otherwise specified exception.
+			 * @param e	exception thrown by the statement
+			 * @return	exception to throw
+			 */
+			private SQLException translate(SQLException e) {
+				return fired ? new SQLTimeoutException("Sampling query exceeded the time budget.", e) : e;
+			}
 		}
 
 		/**
-		 * Throws SQLFeatureNotSupportedException if specified argument contains multiple SQL statements.
-		 * @param sql	SQL to test
-		 * @throws SQLException	if specified argument contains multiple SQL statements
+		 * Schedules to cancel the statement of the underlying database at specified time.
+		 * The caller must cancel the returned task when the statement is completed.
+		 * @param deadline	System.nanoTime() at which the statement is cancelled
+		 * @return	scheduled task
 		 */
-		private void mustBeSingleQuery(String sql) throws SQLException {
-			Pattern p = Pattern.compile("^[^;]*;?\\s*");
-			Matcher m = p.matcher(sql);
-			if (!m.find()) {
-				throw new SQLFeatureNotSupportedException("Multiple queries are not supported. sql:" + sql);
-			}
+		private CancelTask scheduleCancel(long deadline) {
+			CancelTask task = new CancelTask();
+			long delay = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			getCancelTimer().schedule(task, Math.max(delay, 0));
+			return task;
 		}
 
-		@Override
-		public ResultSet executeQuery(String sql) throws SQLException {
-			SqlRewriter rewriter = newRewriter(sql);
+		/**
+		 * Executes aggregate query of the smallest sample, and returns ProgressiveResultSet.
+		 * @param rewriter	rewriter
+		 * @return	ProgressiveResultSet, or null if the sampling query has no condition query, has the time budget, or its level is specified
+		 * @throws SQLException	if error occurs, or if UNTIL condition can not be satisfied at any level.
+		 */
+		private ResultSet executeProgressiveQuery(SqlRewriter rewriter) throws SQLException {
+			probeCount = 0;
+			hasDeadline = false;
+			sampledLevel = -1;
+			loadDatabaseDef();
 
-			if (!samplingEnabled || !hasSampleClause(rewriter)) {
-				return stmt.executeQuery(sql);
+			QuerySet querySet = rewriter.rewrite(numLevel - 1);
+			if (querySet.condSql == null || rewriter.getTimeBudgetMillis() >= 0 || getPinnedLevel(rewriter) >= 0) {
+				return null;
 			}
-			else {
-				return executeSamplingQuery(rewriter);
+			int[] levels = rewriter.getCandidateLevels();
+			if (levels.length == 0) {
+				// throws SQLException if condition SQL is not satisfied.
+				throw new SQLException("Sample table did not satisfy UNTIL condition.");
+			}
+			Statement condStmt = conn.createStatement();
+			try {
+				return ProgressiveSamplingResultSet.execute(this, stmt, condStmt, rewriter, levels);
+			}
+			catch (SQLException | RuntimeException e) {
+				condStmt.close();
+				throw e;
 			}
 		}
 
-		/** Returns true if specified rewriter is generated from SQL including SAMPLE clause. */
-		private boolean hasSampleClause(SqlRewriter rewriter) throws SQLException {
-			return rewriter.hasSampleClause();
+		/** Closes the result which is not produced by the statement of the underlying database, if exists. */
+		private void closeOwnedResult() throws SQLException {
+			if (ownedResult != null) {
+				ResultSet rs = ownedResult;
+				ownedResult = null;
+				rs.close();
+			}
 		}
 
-		/**
-		 * Executes condition query by decreasing target level until condition is satisfied, then executes aggregate query.
-		 * @param rewriter	rewriter
-		 * @return	a ResultSet object that contains the data produced by the aggregate query
-		 * @throws SQLException	if error occurs, or if condition is not satisfied.
-		 */
-		private ResultSet executeSamplingQuery(SqlRewriter rewriter) throws SQLException {
-			String aggSql = doSampling(rewriter);
-			ResultSet rs = stmt.executeQuery(aggSql);
-			return rs;
+		/** Cancels the aggregate query running speculatively, if exists. */
+		private void cancelSpeculation() {
+			if (speculation != null) {
+				SiblingConnections.SpeculativeQuery query = speculation;
+				speculation = null;
+				query.cancel();
+			}
+		}
+
+		@Override
+		public void close() throws SQLException {
+			try {
+				closeOwnedResult();
+			}
+			finally {
+				super.close();
+			}
+		}
+
+		@Override
+		public void cancel() throws SQLException {
+			PreparedStatement ps = running;
+			if (ps != null) {
+				ps.cancel();
+			}
+			super.cancel();
 		}
 
 		/**
@@ -230,72 +1554,446 @@ public class ProxyConnection extends AbstractWrapperConnection {
 		 * @throws SQLException	if error occurs, or if condition is not satisfied.
 		 */
 		private boolean execute(SqlRewriter rewriter) throws SQLException {
-			String aggSql = doSampling(rewriter);
+			analyze(rewriter);
+			String aggSql = doSampling(rewriter, false);
+			if (hasDeadline) {
+				CancelTask task = scheduleCancel(deadline);
+				try {
+					return stmt.execute(aggSql);
+				}
+				catch (SQLException e) {
+					throw task.translate(e);
+				}
+				finally {
+					task.cancel();
+				}
+			}
 			return stmt.execute(aggSql);
 		}
 
 		/**
-		 * Generates and executes condition query by decreasing target level until condition is satisfied, then returns aggregate query.
+		 * Generates and executes condition query by changing target level until condition is satisfied, then returns aggregate query.
+		 * The order of target levels is decided by the LevelSearch of the connection.
+		 * If the level is specified by LEVEL hint or pinned by {@link ProxyConnection#pinSample(String, String, int)}, no condition query is executed.
+		 * <p>If pipelined, aggregate query of each level is started on a sibling connection at the same time as its condition query,
+		 * and the aggregate query of the returned level is left running in the field {@code speculation}, if available.
 		 * @param rewriter	rewriter
+		 * @param pipelined	true if pipelines aggregate query
 		 * @return	aggregate query when condition query is satisfied.
 		 * @throws SQLException	if error occurs, or if condition is not satisfied.
 		 */
-		private String doSampling(SqlRewriter rewriter) throws SQLException {
+		private String doSampling(final SqlRewriter rewriter, boolean pipelined) throws SQLException {
+			probeCount = 0;
+			hasDeadline = false;
+			sampledLevel = numLevel - 1;
+			loadDatabaseDef();
+
+			final QuerySet[] querySets = new QuerySet[numLevel];
+			querySets[numLevel - 1] = rewriter.rewrite(numLevel - 1);
+			int pinnedLv = getPinnedLevel(rewriter);
+			if (pinnedLv >= 0) {
+				// the level is specified by LEVEL hint or pinned, no level is searched.
+				sampledLevel = pinnedLv;
+				return rewriter.rewrite(pinnedLv).aggSql;
+			}
+			long timeBudget = rewriter.getTimeBudgetMillis();
+			if (timeBudget >= 0) {
+				return searchTimeBudget(rewriter, querySets, timeBudget);
+			}
+			if (querySets[numLevel - 1].condSql == null) {
+				String aggSql = querySets[numLevel - 1].aggSql;
+				assert aggSql != null;
+				return aggSql;
+			}
 
-			String aggSql = null;
+			// levels worth testing, according to the level histograms
+			final int[] levels = rewriter.getCandidateLevels();
 
-			for (int targetLv = numLevel - 1; targetLv >= 0; targetLv--) {
-				databaseDef.load(conn);
-				QuerySet querySet = rewriter.rewrite(targetLv);
+			// the level that satisfied the condition last time
+			LruCache<String, Integer> cache = levelCache;
+			String fingerprint = cache == null ? null : rewriter.getFingerprint();
+			Integer cachedLv = fingerprint == null ? null : cache.get(fingerprint);
 
-				if (querySet.condSql == null) {
-					aggSql = querySet.aggSql;
-					assert aggSql != null;
-					return aggSql;
+			if (levels.length > 0) {
+				int statisticsLv = getStatisticsLevel(rewriter);
+				if (statisticsLv >= 0) {
+					// UNTIL condition is satisfied by the level statistics, no condition query is needed.
+					sampledLevel = statisticsLv;
+					return rewriter.rewrite(statisticsLv).aggSql;
+				}
+				int rememberedLv = findRememberedLevel(rewriter, querySets, levels);
+				if (rememberedLv >= 0) {
+					// the outcomes of the condition queries are cached, no condition query is needed.
+					sampledLevel = rememberedLv;
+					return querySets[rememberedLv].aggSql;
+				}
+				Integer found = null;
+				if (cumulativeConditionSpan > 0) {
+					found = searchCumulative(rewriter, levels[0]);
+				}
+				else if (incrementalConditionEnabled) {
+					found = searchIncremental(rewriter, levels);
+				}
+				if (found != null) {
+					if (found < 0) {
+						// throws SQLException if condition SQL is not satisfied.
+						throw new SQLException("Sample table did not satisfy UNTIL condition.");
+					}
+					if (fingerprint != null) {
+						cache.put(fingerprint, found);
+					}
+					rememberLevel(rewriter, querySets, levels, found);
+					sampledLevel = found;
+					return rewriter.rewrite(found).aggSql;
 				}
+				// UNTIL condition can not be decomposed, search level by executing condition query for each level.
+			}
 
-				// execute condition SQL
-				boolean checkResult = checkCondition(querySet.condSql);
+			final SiblingConnections siblings = getSiblings();
+			final boolean speculative = pipelined && parallelProbes == 0 && siblings != null;
+			final PreparedStatementPool pool = getLevelParameterPool(rewriter);
+			final ParameterizedQuery condQuery = pool == null ? null : rewriter.getParameterizedConditionQuery();
+			LevelProbe probe = new LevelProbe() {
+				@Override
+				public boolean test(int targetLv) throws SQLException {
+					if (condQuery != null && !speculative) {
+						// execute condition SQL as the prepared statement shared by all levels.
+						probeCount++;
+						return checkCondition(pool, condQuery, targetLv);
+					}
+					if (querySets[targetLv] == null) {
+						querySets[targetLv] = rewriter.rewrite(targetLv);
+					}
+					if (!speculative || speculation != null) {
+						// execute condition SQL.
+						// if an aggregate query is kept running, the sibling connection is busy, and it may be the result.
+						probeCount++;
+						return checkCondition(querySets[targetLv].condSql);
+					}
 
-				// when result of condition SQL is true, ends iteration.
-				if (checkResult == true) {
-					aggSql = querySet.aggSql;
-					break;
+					// execute aggregate SQL on the sibling connection while executing condition SQL
+					SiblingConnections.SpeculativeQuery query = siblings.startQuery(0, querySets[targetLv].aggSql);
+					if (query == null) {
+						// the sibling connection is leased by another statement, aggregate SQL is executed after the search.
+						probeCount++;
+						return checkCondition(querySets[targetLv].condSql);
+					}
+					boolean satisfied = false;
+					try {
+						probeCount++;
+						satisfied = checkCondition(querySets[targetLv].condSql);
+					}
+					finally {
+						if (satisfied) {
+							speculation = query;
+							speculationLevel = targetLv;
+						}
+						else {
+							query.cancel();
+						}
+					}
+					return satisfied;
 				}
+			};
+			int found;
+			try {
+				found = searchLevel(levels, querySets, rewriter, siblings, cachedLv, probe);
+			}
+			catch (SQLException | RuntimeException e) {
+				cancelSpeculation();
+				throw e;
 			}
 
-			if (aggSql == null) {
+			if (found < 0) {
 				// throws SQLException if condition SQL is not satisfied.
 				throw new SQLException("Sample table did not satisfy UNTIL condition.");
 			}
+			if (speculation != null && speculationLevel != levels[found]) {
+				cancelSpeculation();
+			}
+			if (fingerprint != null) {
+				cache.put(fingerprint, levels[found]);
+			}
+			rememberLevel(rewriter, querySets, levels, levels[found]);
+
+			sampledLevel = levels[found];
+			if (querySets[sampledLevel] == null) {
+				querySets[sampledLevel] = rewriter.rewrite(sampledLevel);
+			}
+			return querySets[sampledLevel].aggSql;
+		}
 
-			return aggSql;
+		/**
+		 * Returns the level satisfying UNTIL condition according to the cache of condition query outcomes.
+		 * The level is the first candidate level which condition query is cached as satisfied, if it is the highest candidate level,
+		 * or if the condition query of the previous candidate level is cached as not satisfied.
+		 * @param rewriter	rewriter
+		 * @param querySets	rewritten queries of each level, which is filled if generated
+		 * @param levels	candidate levels in descending order
+		 * @return	level, or -1 if the cache is disabled, or if the level is not decided by the cached outcomes
+		 * @throws SQLException	if error occurs
+		 */
+		private int findRememberedLevel(SqlRewriter rewriter, QuerySet[] querySets, int[] levels) throws SQLException {
+			LruCache<String, Boolean> cache = getConditionCache();
+			if (cache == null) {
+				return -1;
+			}
+			Boolean previous = null;
+			for (int i = 0; i < levels.length; i++) {
+				int targetLv = levels[i];
+				if (querySets[targetLv] == null) {
+					querySets[targetLv] = rewriter.rewrite(targetLv);
+				}
+				Boolean satisfied = cache.get(querySets[targetLv].condSql);
+				if (Boolean.TRUE.equals(satisfied)) {
+					return i == 0 || Boolean.FALSE.equals(previous) ? targetLv : -1;
+				}
+				previous = satisfied;
+			}
+			return -1;
 		}
 
 		/**
-		 * Executes condition sql and returns the result.
-		 * @param condSql	condition sql
-		 * @return	result
-		 * @throws SQLException	if error occurs, or condition sql returns result other than boolean type, or returns no result, or returns multiple result.
+		 * Caches the outcomes of the condition queries of the level found to satisfy UNTIL condition and of the next higher candidate level,
+		 * which does not satisfy UNTIL condition, otherwise it would have been found.
+		 * @param rewriter	rewriter
+		 * @param querySets	rewritten queries of each level, which is filled if generated
+		 * @param levels	candidate levels in descending order
+		 * @param foundLv	the level satisfying UNTIL condition
+		 * @throws SQLException	if error occurs
 		 */
-		private boolean checkCondition(String condSql) throws SQLException {
-			boolean result;
-			try (ResultSet rs = stmt.executeQuery(condSql);) {
-				if (!rs.next()) {
-					throw new SQLException("DB returned empty rows for condition query.");
+		private void rememberLevel(SqlRewriter rewriter, QuerySet[] querySets, int[] levels, int foundLv) throws SQLException {
+			LruCache<String, Boolean> cache = getConditionCache();
+			if (cache == null) {
+				return;
+			}
+			int higherLv = -1;
+			for (int level : levels) {
+				if (level > foundLv) {
+					higherLv = level;
+				}
+			}
+			for (int level : new int[] {foundLv, higherLv}) {
+				if (level >= 0 && querySets[level] == null) {
+					querySets[level] = rewriter.rewrite(level);
 				}
+			}
+			if (higherLv >= 0) {
+				cache.put(querySets[higherLv].condSql, false);
+			}
+			cache.put(querySets[foundLv].condSql, true);
+		}
+
+		/**
+		 * Searches the level satisfying UNTIL condition in specified candidate levels.
+		 * @param levels	candidate levels in descending order
+		 * @param querySets	rewritten queries of each level, which is filled if generated
+		 * @param rewriter	rewriter
+		 * @param siblings	sibling connections, or null
+		 * @param cachedLv	the level that satisfied the condition last time, or null
+		 * @param probe	condition to test on this statement
+		 * @return	index of the first level in the array that satisfies the condition, or -1 if no level satisfies it.
+		 * @throws SQLException	if error occurs
+		 */
+		private int searchLevel(int[] levels, final QuerySet[] querySets, final SqlRewriter rewriter,
+				SiblingConnections siblings, Integer cachedLv, LevelProbe probe) throws SQLException {
+			int found;
+			if (siblings != null && parallelProbes > 0) {
+				int[] submitted = new int[1];
 				try {
-					result = rs.getBoolean(1);
+					found = siblings.search(levels, new SiblingConnections.ConditionQuery() {
+						@Override
+						public String getConditionSQL(int targetLv) throws SQLException {
+							if (querySets[targetLv] == null) {
+								querySets[targetLv] = rewriter.rewrite(targetLv);
+							}
+							return querySets[targetLv].condSql;
+						}
+					}, new SiblingConnections.ConditionEvaluator() {
+						@Override
+						public boolean evaluate(Statement stmt, String condSql) throws SQLException {
+							return evaluateCondition(stmt, condSql);
+						}
+					}, submitted);
+				}
+				finally {
+					probeCount += submitted[0];
+				}
+				if (found == SiblingConnections.UNAVAILABLE) {
+					// all the sibling connections are leased by other statements.
+					found = ProxyConnection.this.searchLevel(levels, cachedLv, probe);
+				}
+			}
+			else {
+				found = ProxyConnection.this.searchLevel(levels, cachedLv, probe);
+			}
+			return found;
+		}
+
+		/**
+		 * Executes aggregate queries of the smallest samples to measure their time, and returns aggregate query of the lowest level
+		 * which time is estimated to fit the rest of the time budget.
+		 * The time of aggregate query is estimated to grow by LEVEL_GROWTH times as the level decreases by one.
+		 * Aggregate queries are cancelled when the time budget is exceeded, and the returned query is cancelled as well when executed.
+		 * @param rewriter	rewriter
+		 * @param querySets	rewritten queries of each level, which is filled if generated
+		 * @param budgetMillis	time budget in milliseconds
+		 * @return	aggregate query
+		 * @throws SQLException	if error occurs, or SQLTimeoutException if even the smallest sample exceeds the time budget.
+		 */
+		private String searchTimeBudget(SqlRewriter rewriter, QuerySet[] querySets, long budgetMillis) throws SQLException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+			int[] levels = rewriter.getCandidateLevels();
+
+			// measure the time of aggregate query from the smallest sample, until it takes measurable time.
+			int probed = -1;
+			long probeNanos = 0;
+			for (int i = 0; i < levels.length; i++) {
+				int targetLv = levels[i];
+				if (querySets[targetLv] == null) {
+					querySets[targetLv] = rewriter.rewrite(targetLv);
+				}
+				long startTime = System.nanoTime();
+				probeCount++;
+				CancelTask task = scheduleCancel(deadline);
+				try (ResultSet rs = stmt.executeQuery(querySets[targetLv].aggSql);) {
+					while (rs.next()) {
+						// read all rows, because some drivers fetch rows lazily
+					}
 				}
 				catch (SQLException e) {
-					throw new SQLException("Result is not boolean for condition query.", e);
+					SQLException translated = task.translate(e);
+					if (probed < 0 || !(translated instanceof SQLTimeoutException)) {
+						throw translated;
+					}
+					break;
+				}
+				finally {
+					task.cancel();
+				}
+				probed = i;
+				probeNanos = Math.max(System.nanoTime() - startTime, 1);
+				if (probeNanos >= MIN_TIMED_PROBE_NANOS) {
+					break;
+				}
+			}
+			if (probed < 0) {
+				// throws SQLException if condition SQL is not satisfied.
+				throw new SQLException("Sample table did not satisfy UNTIL condition.");
+			}
+
+			// choose the lowest level that is estimated to fit the rest of the time budget.
+			long remaining = deadline - System.nanoTime();
+			int chosen = probed;
+			for (int i = probed + 1; i < levels.length; i++) {
+				double estimated = probeNanos * Math.pow(LEVEL_GROWTH, levels[probed] - levels[i]);
+				if (estimated > remaining) {
+					break;
+				}
+				chosen = i;
+			}
+
+			int chosenLv = levels[chosen];
+			if (querySets[chosenLv] == null) {
+				querySets[chosenLv] = rewriter.rewrite(chosenLv);
+			}
+			this.deadline = deadline;
+			hasDeadline = true;
+			return querySets[chosenLv].aggSql;
+		}
+
+		/**
+		 * Executes cumulative condition queries, each of which evaluates UNTIL condition at the number of levels specified by cumulativeConditionSpan.
+		 * @param rewriter	rewriter
+		 * @param topLv	the highest level to evaluate
+		 * @return	the highest level satisfying the condition, or -1 if no level satisfies the condition,
+		 * or null if UNTIL condition can not be decomposed by level.
+		 * @throws SQLException	if error occurs
+		 */
+		private Integer searchCumulative(SqlRewriter rewriter, int topLv) throws SQLException {
+			for (int fromLv = topLv; fromLv >= 0; fromLv -= cumulativeConditionSpan) {
+				int toLv = Math.max(fromLv - cumulativeConditionSpan + 1, 0);
+				String cumulativeSql = rewriter.rewriteCumulative(toLv);
+				if (cumulativeSql == null) {
+					return null;
 				}
-				if (rs.next()) {
-					throw new SQLException("DB returned multiple rows for condition query. maybe, UNTIL clause is wrong.");
+				probeCount++;
+				try (ResultSet rs = stmt.executeQuery(cumulativeSql);) {
+					if (!rs.next()) {
+						throw new SQLException("DB returned empty rows for condition query.");
+					}
+					int levelValue = rs.getInt(1);
+					if (!rs.wasNull()) {
+						// level column holds bitwise complement of level.
+						return Math.min(~levelValue, topLv);
+					}
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Executes band condition queries in the order of candidate levels, and merges their results until UNTIL condition is satisfied.
+		 * @param rewriter	rewriter
+		 * @param levels	candidate levels in descending order
+		 * @return	the highest level satisfying the condition, or -1 if no level satisfies the condition,
+		 * or null if UNTIL condition can not be decomposed by level.
+		 * @throws SQLException	if error occurs
+		 */
+		private Integer searchIncremental(SqlRewriter rewriter, int[] levels) throws SQLException {
+			DecomposableUntil until = rewriter.getDecomposableUntil();
+			if (until == null) {
+				return null;
+			}
+			BigDecimal merged = null;
+			int prevLv = numLevel;
+			for (int targetLv : levels) {
+				String bandSql = until.getBandSQL(prevLv, targetLv, numLevel);
+				probeCount++;
+				try (ResultSet rs = stmt.executeQuery(bandSql);) {
+					if (!rs.next()) {
+						throw new SQLException("DB returned empty rows for condition query.");
+					}
+					merged = until.merge(merged, rs.getBigDecimal(1));
+				}
+				if (until.isSatisfied(merged)) {
+					return targetLv;
 				}
+				prevLv = targetLv;
 			}
+			return -1;
+		}
+
+		/**
+		 * Executes condition sql by the statement of the underlying database and returns the result.
+		 * @param condSql	condition sql
+		 * @return	result
+		 * @throws SQLException	if error occurs, or condition sql returns result other than boolean type, or returns no result, or returns multiple result.
+		 */
+		private boolean checkCondition(String condSql) throws SQLException {
+			return evaluateCondition(stmt, condSql);
+		}
 
-			return result;
+		/**
+		 * Executes parameterized condition query at specified level, as a prepared statement taken from the pool.
+		 * @param pool	pool of prepared statements
+		 * @param condQuery	parameterized condition query
+		 * @param targetLv	sampling level
+		 * @return	true if the condition is satisfied
+		 * @throws SQLException	if error occurs
+		 */
+		private boolean checkCondition(PreparedStatementPool pool, ParameterizedQuery condQuery, int targetLv) throws SQLException {
+			PreparedStatement ps = pool.take(condQuery.sql);
+			try {
+				condQuery.bindLevel(ps, targetLv);
+				ps.setQueryTimeout(stmt.getQueryTimeout());
+				running = ps;
+				return evaluateCondition(ps);
+			}
+			finally {
+				running = null;
+				pool.release(condQuery.sql, ps);
+			}
 		}
 
 		@Override
@@ -303,6 +2001,16 @@ public class ProxyConnection extends AbstractWrapperConnection {
 			return ProxyConnection.this;
 		}
 
+		@Override
+		public int getProbeCount() {
+			return probeCount;
+		}
+
+		@Override
+		public int getSamplingLevel() {
+			return sampledLevel;
+		}
+
 		// Transfer original table to sampling table
 		private void convertTable(ConvertingSqlRewriter convertingRewriter) throws SQLException {
 			String sql;
@@ -312,6 +2020,41 @@ public class ProxyConnection extends AbstractWrapperConnection {
 			stmt.execute(sql);
 
 			sql = convertingRewriter.getCreateMetaTableSQL();
+			createMetaTable(sql);
+
+			sql = convertingRewriter.getInsertMetaTableSQL();
+			stmt.execute(sql);
+
+			sql = convertingRewriter.getInsertTableSQL();
+			stmt.execute(sql);
+
+			for (String clusteringsql : convertingRewriter.getClusteringSQL()) {
+				stmt.execute(clusteringsql);
+			}
+
+			sql = convertingRewriter.getCreateLevelStatsTableSQL();
+			createMetaTable(sql);
+
+			for (String statssql : convertingRewriter.getInsertLevelStatsSQL()) {
+				stmt.execute(statssql);
+			}
+
+			// make the new sampling table visible to this connection and to the connections sharing databaseDef,
+			// but not before it is committed, since the connections sharing databaseDef can not read it until then.
+			if (conn.getAutoCommit()) {
+				databaseDef.reload(conn);
+			}
+			else {
+				catalogDirty = true;
+			}
+		}
+
+		/**
+		 * Executes CREATE TABLE statement of meta table, and ignores error if the meta table already exists.
+		 * @param sql	CREATE TABLE statement
+		 * @throws SQLException	if error occurs
+		 */
+		private void createMetaTable(String sql) throws SQLException {
 			boolean autoCommit = stmt.getConnection().getAutoCommit();
 			if (!autoCommit && dbType == DBType.PG) {
 				Savepoint sp = null;
@@ -372,20 +2115,13 @@ public class ProxyConnection extends AbstractWrapperConnection {
 					}
 				}
 			}
-
-			sql = convertingRewriter.getInsertMetaTableSQL();
-			stmt.execute(sql);
-
-			sql = convertingRewriter.getInsertTableSQL();
-			stmt.execute(sql);
-
-			for (String clusteringsql : convertingRewriter.getClusteringSQL()) {
-				stmt.execute(clusteringsql);
-			}
 		}
 
 		@Override
 		public String[] getRewrittenQuery(String sql) throws SQLException {
+			if (!RewriterCommon.mayContainSamplingKeyword(sql)) {
+				return null;
+			}
 			// first, assume that SQL is SELECT statement.
 			SqlRewriter queryRewriter = null;
 			try {
@@ -399,7 +2135,7 @@ public class ProxyConnection extends AbstractWrapperConnection {
 					return null;
 				}
 				int targetLv = 4;
-				databaseDef.load(conn);
+				loadDatabaseDef();
 				QuerySet querySet = queryRewriter.rewrite(targetLv);
 				if (querySet != null) {
 					return new String[] {querySet.condSql, querySet.aggSql};
@@ -442,6 +2178,11 @@ public class ProxyConnection extends AbstractWrapperConnection {
 						sqls.add(clusteringsql);
 					}
 
+					sql = convertingRewriter.getCreateLevelStatsTableSQL();
+					sqls.add(sql);
+
+					sqls.addAll(convertingRewriter.getInsertLevelStatsSQL());
+
 					return sqls.toArray(new String[0]);
 				}
 			}
@@ -450,6 +2191,97 @@ public class ProxyConnection extends AbstractWrapperConnection {
 		}
 	}
 
+	/**
+	 * A ResultSet of a prepared statement taken from PreparedStatementPool, which returns the statement to the pool when closed.
+	 */
+	private static class PooledResultSet extends AbstractWrapperResultSet {
+
+		private final PreparedStatement pooledStatement;
+		private final Statement statement;
+		private final PreparedStatementPool pool;
+		private final String sql;
+		private boolean released = false;
+
+		private PooledResultSet(ResultSet rs, PreparedStatement pooledStatement, Statement statement, PreparedStatementPool pool, String sql) {
+			super(rs);
+			this.pooledStatement = pooledStatement;
+			this.statement = statement;
+			this.pool = pool;
+			this.sql = sql;
+		}
+
+		/**
+		 * Closes the ResultSet, and returns its prepared statement to the pool.
+		 * <p>{@inheritDoc}
+		 */
+		@Override
+		public void close() throws SQLException {
+			if (released) {
+				return;
+			}
+			released = true;
+			try {
+				rs.close();
+			}
+			finally {
+				pool.release(sql, pooledStatement);
+			}
+		}
+
+		/**
+		 * Returns the statement that executed the sampling query.
+		 * <p>{@inheritDoc}
+		 */
+		@Override
+		public Statement getStatement() throws SQLException {
+			return statement;
+		}
+	}
+
+	/**
+	 * A ResultSet of aggregate query executed on a sibling connection, that is returned as the result of {@link StatementImpl}.
+	 */
+	private static class PipelinedResultSet extends AbstractWrapperResultSet {
+
+		private final SiblingConnections.SpeculativeQuery query;
+		private final Statement statement;
+
+		private PipelinedResultSet(ResultSet rs, SiblingConnections.SpeculativeQuery query, Statement statement) {
+			super(rs);
+			this.query = query;
+			this.statement = statement;
+		}
+
+		/**
+		 * Closes the ResultSet and its statement of the sibling connection, and releases the lease of the connection.
+		 * <p>{@inheritDoc}
+		 */
+		@Override
+		public void close() throws SQLException {
+			try {
+				Statement siblingStatement = rs.getStatement();
+				try {
+					rs.close();
+				}
+				finally {
+					siblingStatement.close();
+				}
+			}
+			finally {
+				query.release();
+			}
+		}
+
+		/**
+		 * Returns the statement that executed the sampling query.
+		 * <p>{@inheritDoc}
+		 */
+		@Override
+		public Statement getStatement() throws SQLException {
+			return statement;
+		}
+	}
+
 }
 
 /** For debug purpose. It will be obsoleted. */
@@ -458,7 +2290,7 @@ interface ProxyStatement {
 	 * For debug purpose. Retrieve rewritten SQL.
 	 * <p>If the SQL is not re-writable, returns null.
 	 * <p>If the SQL is re-writable SELECT statement, returns array of string, 1st element is condition SQL, 2nd element is aggregation SQL.
-	 * <p>If the SQL is re-writable CREATE TABLE statement, returns array of string, 1st element is statement to create sampling table, 2nd element is statement to create meta table, 3rd element is statement to insert meta informations, 4th element is statement to transfer original table 5th element is statement to cluster the sampling table, and so on.
+	 * <p>If the SQL is re-writable CREATE TABLE statement, returns array of string, 1st element is statement to create sampling table, 2nd element is statement to create meta table, 3rd element is statement to insert meta informations, 4th element is statement to transfer original table 5th element and later are statements to cluster the sampling table, followed by statement to create level statistics table, statement to delete old level statistics, and statements to insert level statistics.
 	 * @param sql	Original SQL.
 	 * @return	Array of String.
 	 * @throws SQLException	If error occurs.
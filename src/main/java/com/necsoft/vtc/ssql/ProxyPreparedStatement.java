@@ -0,0 +1,933 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A PreparedStatement of sampling query.
+ * Condition query and aggregation query of each level are prepared by the underlying database when the level is used first,
+ * and reused by the following executions, so that the underlying database parses and plans them only once.
+ * If level parameters are enabled on the connection, a single condition query and a single aggregation query are prepared,
+ * in which the values depending on the level are parameters, and they are shared by all levels.
+ * The parameters of sampling query are bound to the parameter markers of the rewritten queries that are copied from them.
+ * <p>The field {@code stmt} is a plain statement of the underlying database, which holds the settings such as fetch size and query timeout.
+ * The settings are applied to the prepared statements of each level when they are executed.
+ * <p>The level is searched by the LevelSearch and the level cache of the connection.
+ * Cumulative, incremental, parallel, pipelined and progressive search are not used, and UNTIL TIME is not supported.
+ * Streams can not be used as parameters, because a parameter may be bound to more than one statement.
+ * <p>Sampling query is analyzed when it is prepared, and the patterns found are reported as the warnings of this statement until they are cleared.
+ */
+class ProxyPreparedStatement extends AbstractWrapperStatement implements PreparedStatement, SamplingStatement {
+
+	/** A parameter value that is bound to the prepared statements of the underlying database. */
+	private interface Binding {
+		/**
+		 * Sets the value to the parameter of specified prepared statement.
+		 * @param ps	prepared statement of the underlying database
+		 * @param index	1-based parameter index of the prepared statement
+		 * @throws SQLException	if error occurs
+		 */
+		void bind(PreparedStatement ps, int index) throws SQLException;
+	}
+
+	private final ProxyConnection connection;
+	private final SqlRewriter rewriter;
+	private final int resultSetType;
+	private final int resultSetConcurrency;
+	/** holdability of the result, or -1 to use the default of the underlying database. */
+	private final int resultSetHoldability;
+
+	/** parameter values, which index is the parameter index of sampling query minus one. */
+	private final Binding[] bindings;
+	/** incremented every time parameter values are changed. */
+	private long bindingVersion = 0;
+	/** parameter indexes of sampling query for each parameter marker of condition query, or null if there is no condition query. */
+	private final int[] condParameters;
+	/** parameter indexes of sampling query for each parameter marker of aggregation query. */
+	private final int[] aggParameters;
+	/** condition query in which the values depending on the level are parameters, or null if the queries of each level are prepared. */
+	private final ParameterizedQuery condQuery;
+	/** aggregation query in which the values depending on the level are parameters, or null if the queries of each level are prepared. */
+	private final ParameterizedQuery aggQuery;
+
+	/** number of levels. */
+	private final int numLevel;
+	/** prepared condition queries, which index is the level, or only one if the level is a parameter. null if not prepared yet. */
+	private final PreparedStatement[] condStmts;
+	/** bindingVersion at which the parameters of each condition query are set. */
+	private final long[] condVersions;
+	/** prepared aggregation queries, which index is the level, or only one if the level is a parameter. null if not prepared yet. */
+	private final PreparedStatement[] aggStmts;
+	/** bindingVersion at which the parameters of each aggregation query are set. */
+	private final long[] aggVersions;
+
+	/** number of condition queries issued by the last execution. */
+	private int probeCount = 0;
+	/** level of the aggregation query of the last execution, or -1 if none. */
+	private int sampledLevel = -1;
+	/** the statement executing a query, which is cancelled by {@link #cancel()}. null if none. */
+	private volatile PreparedStatement running = null;
+	/** result of the last execution, or null if none. */
+	private ResultSet currentResult = null;
+	/** messages of the patterns found by the analysis of sampling query, which are cleared by {@link #clearWarnings()}. */
+	private List<String> analysisWarnings = Collections.emptyList();
+
+	/**
+	 * Constructor
+	 * @param connection	connection that prepares the statement
+	 * @param rewriter	rewriter of sampling query including SAMPLE clause
+	 * @param resultSetType	type of the result
+	 * @param resultSetConcurrency	concurrency of the result
+	 * @param resultSetHoldability	holdability of the result, or -1 to use the default of the underlying database
+	 * @throws SQLException	if error occurs, or if sampling query has error
+	 */
+	ProxyPreparedStatement(ProxyConnection connection, SqlRewriter rewriter, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+			throws SQLException {
+		super(createStatement(connection.conn, resultSetType, resultSetConcurrency, resultSetHoldability));
+		this.connection = connection;
+		this.rewriter = rewriter;
+		this.resultSetType = resultSetType;
+		this.resultSetConcurrency = resultSetConcurrency;
+		this.resultSetHoldability = resultSetHoldability;
+		this.bindings = new Binding[rewriter.getParameterCount()];
+		try {
+			// the rewritten queries depend on the meta information of sampling tables.
+			connection.loadDatabaseDef();
+			this.analysisWarnings = connection.analyze(rewriter);
+			ParameterizedQuery aggQuery = connection.isLevelParametersEnabled() ? rewriter.getParameterizedAggregateQuery() : null;
+			if (aggQuery != null) {
+				// a statement is shared by all levels
+				this.condQuery = rewriter.getParameterizedConditionQuery();
+				this.aggQuery = aggQuery;
+				this.condParameters = condQuery == null ? null : condQuery.getParameters();
+				this.aggParameters = aggQuery.getParameters();
+			}
+			else {
+				this.condQuery = null;
+				this.aggQuery = null;
+				this.condParameters = rewriter.getConditionParameterIndexes();
+				this.aggParameters = rewriter.getAggregateParameterIndexes();
+			}
+		}
+		catch (SQLException | RuntimeException e) {
+			stmt.close();
+			throw e;
+		}
+		this.numLevel = connection.getNumLevel();
+		int slots = aggQuery != null ? 1 : numLevel;
+		this.condStmts = new PreparedStatement[slots];
+		this.condVersions = new long[slots];
+		this.aggStmts = new PreparedStatement[slots];
+		this.aggVersions = new long[slots];
+	}
+
+	private static Statement createStatement(Connection conn, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+			throws SQLException {
+		if (resultSetHoldability < 0) {
+			return conn.createStatement(resultSetType, resultSetConcurrency);
+		}
+		return conn.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	/** Prepares specified query by the underlying database with the result type of this statement. */
+	private PreparedStatement prepare(String sql) throws SQLException {
+		return resultSetHoldability < 0 ? connection.conn.prepareStatement(sql, resultSetType, resultSetConcurrency)
+				: connection.conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	/**
+	 * Returns prepared condition query of specified level, which parameters are set.
+	 * @param level	sampling level
+	 * @return	prepared condition query
+	 * @throws SQLException	if error occurs, or if a parameter is not set
+	 */
+	private PreparedStatement getConditionStatement(int level) throws SQLException {
+		int slot = condQuery != null ? 0 : level;
+		PreparedStatement ps = condStmts[slot];
+		if (ps == null) {
+			ps = condStmts[slot] = prepare(condQuery != null ? condQuery.sql : rewriter.rewrite(level).condSql);
+			condVersions[slot] = -1;
+		}
+		if (condVersions[slot] != bindingVersion) {
+			bind(ps, condParameters);
+			condVersions[slot] = bindingVersion;
+		}
+		if (condQuery != null) {
+			condQuery.bindLevel(ps, level);
+		}
+		ps.setQueryTimeout(stmt.getQueryTimeout());
+		return ps;
+	}
+
+	/**
+	 * Returns prepared aggregation query of specified level, which parameters and settings are set.
+	 * @param level	sampling level
+	 * @return	prepared aggregation query
+	 * @throws SQLException	if error occurs, or if a parameter is not set
+	 */
+	private PreparedStatement getAggregateStatement(int level) throws SQLException {
+		int slot = aggQuery != null ? 0 : level;
+		PreparedStatement ps = aggStmts[slot];
+		if (ps == null) {
+			ps = aggStmts[slot] = prepare(aggQuery != null ? aggQuery.sql : rewriter.rewrite(level).aggSql);
+			aggVersions[slot] = -1;
+		}
+		if (aggVersions[slot] != bindingVersion) {
+			bind(ps, aggParameters);
+			aggVersions[slot] = bindingVersion;
+		}
+		if (aggQuery != null) {
+			aggQuery.bindLevel(ps, level);
+		}
+		ps.setQueryTimeout(stmt.getQueryTimeout());
+		ps.setMaxRows(stmt.getMaxRows());
+		ps.setMaxFieldSize(stmt.getMaxFieldSize());
+		ps.setFetchSize(stmt.getFetchSize());
+		return ps;
+	}
+
+	/**
+	 * Sets the parameter values of sampling query to the parameter markers of specified prepared statement.
+	 * The markers of the values depending on the level, which parameter index is 0, are skipped.
+	 */
+	private void bind(PreparedStatement ps, int[] parameters) throws SQLException {
+		ps.clearParameters();
+		for (int i = 0; i < parameters.length; i++) {
+			if (parameters[i] == 0) {
+				continue;
+			}
+			Binding binding = bindings[parameters[i] - 1];
+			if (binding == null) {
+				throw new SQLException("No value specified for parameter " + parameters[i] + ".");
+			}
+			binding.bind(ps, i + 1);
+		}
+	}
+
+	/** Sets the value of specified parameter index. */
+	private void setBinding(int parameterIndex, Binding binding) throws SQLException {
+		if (parameterIndex < 1 || parameterIndex > bindings.length) {
+			throw new SQLException("Invalid parameter index: " + parameterIndex);
+		}
+		bindings[parameterIndex - 1] = binding;
+		bindingVersion++;
+	}
+
+	private static SQLException streamNotSupported() {
+		return new SQLFeatureNotSupportedException("Streams can not be used as parameters of sampling query.");
+	}
+
+	private static SQLException sqlNotAllowed() {
+		return new SQLException("SQL can not be specified to PreparedStatement.");
+	}
+
+	/**
+	 * Executes condition query by changing target level until condition is satisfied, and returns the level.
+	 * @return	sampling level at which aggregation query is executed
+	 * @throws SQLException	if error occurs, or if condition is not satisfied.
+	 */
+	private int searchLevel() throws SQLException {
+		probeCount = 0;
+		int pinnedLv = connection.getPinnedLevel(rewriter);
+		if (pinnedLv >= 0) {
+			// the level is specified by LEVEL hint or pinned, no level is searched.
+			return pinnedLv;
+		}
+		if (rewriter.getTimeBudgetMillis() >= 0) {
+			throw new SQLFeatureNotSupportedException("UNTIL TIME is not supported by PreparedStatement.");
+		}
+		if (condParameters == null) {
+			return numLevel - 1;
+		}
+		int statisticsLv = connection.getStatisticsLevel(rewriter);
+		if (statisticsLv >= 0) {
+			// UNTIL condition is satisfied by the level statistics, no condition query is needed.
+			return statisticsLv;
+		}
+
+		// levels worth testing, according to the level histograms
+		int[] levels = rewriter.getCandidateLevels();
+
+		// the level that satisfied the condition last time
+		LruCache<String, Integer> cache = connection.getLevelCache();
+		String fingerprint = cache == null ? null : rewriter.getFingerprint();
+		Integer cachedLv = fingerprint == null ? null : cache.get(fingerprint);
+
+		int found = connection.searchLevel(levels, cachedLv, new LevelProbe() {
+			@Override
+			public boolean test(int targetLv) throws SQLException {
+				PreparedStatement ps = getConditionStatement(targetLv);
+				probeCount++;
+				running = ps;
+				try {
+					return ProxyConnection.evaluateCondition(ps);
+				}
+				finally {
+					running = null;
+				}
+			}
+		});
+		if (found < 0) {
+			// throws SQLException if condition SQL is not satisfied.
+			throw new SQLException("Sample table did not satisfy UNTIL condition.");
+		}
+		if (fingerprint != null) {
+			cache.put(fingerprint, levels[found]);
+		}
+		return levels[found];
+	}
+
+	/** Closes the result of the last execution. */
+	private void closeCurrentResult() throws SQLException {
+		if (currentResult != null) {
+			ResultSet rs = currentResult;
+			currentResult = null;
+			rs.close();
+		}
+	}
+
+	@Override
+	public ResultSet executeQuery() throws SQLException {
+		if (stmt.isClosed()) {
+			throw new SQLException("Statement is closed.");
+		}
+		closeCurrentResult();
+		sampledLevel = searchLevel();
+		PreparedStatement ps = getAggregateStatement(sampledLevel);
+		running = ps;
+		try {
+			currentResult = ps.executeQuery();
+		}
+		finally {
+			running = null;
+		}
+		return currentResult;
+	}
+
+	@Override
+	public boolean execute() throws SQLException {
+		executeQuery();
+		return true;
+	}
+
+	/**
+	 * Returns the warnings of the analysis of sampling query followed by the warnings of the underlying statement.
+	 * <p>{@inheritDoc}
+	 */
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		return ProxyConnection.chainWarnings(analysisWarnings, stmt.getWarnings());
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		analysisWarnings = Collections.emptyList();
+		stmt.clearWarnings();
+	}
+
+	@Override
+	public int executeUpdate() throws SQLException {
+		throw new SQLException("Sampling query does not return update count.");
+	}
+
+	@Override
+	public void addBatch() throws SQLException {
+		throw new SQLFeatureNotSupportedException("Batch is not supported for sampling query.");
+	}
+
+	@Override
+	public void clearParameters() throws SQLException {
+		for (int i = 0; i < bindings.length; i++) {
+			bindings[i] = null;
+		}
+		bindingVersion++;
+	}
+
+	@Override
+	public ResultSetMetaData getMetaData() throws SQLException {
+		// aggregation queries of all levels have the same columns.
+		return getAggregateStatement(numLevel - 1).getMetaData();
+	}
+
+	@Override
+	public ParameterMetaData getParameterMetaData() throws SQLException {
+		throw new SQLFeatureNotSupportedException("ParameterMetaData is not supported for sampling query.");
+	}
+
+	@Override
+	public int getProbeCount() {
+		return probeCount;
+	}
+
+	@Override
+	public int getSamplingLevel() {
+		return sampledLevel;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return connection;
+	}
+
+	@Override
+	public ResultSet getResultSet() throws SQLException {
+		return currentResult;
+	}
+
+	@Override
+	public int getUpdateCount() throws SQLException {
+		return -1;
+	}
+
+	@Override
+	public boolean getMoreResults() throws SQLException {
+		closeCurrentResult();
+		return false;
+	}
+
+	@Override
+	public boolean getMoreResults(int current) throws SQLException {
+		if (current != KEEP_CURRENT_RESULT) {
+			closeCurrentResult();
+		}
+		else {
+			currentResult = null;
+		}
+		return false;
+	}
+
+	@Override
+	public void cancel() throws SQLException {
+		PreparedStatement ps = running;
+		if (ps != null) {
+			ps.cancel();
+		}
+	}
+
+	/**
+	 * Closes the prepared statements of all levels, and the statement holding the settings.
+	 */
+	@Override
+	public void close() throws SQLException {
+		currentResult = null;
+		SQLException error = null;
+		for (PreparedStatement[] stmts : new PreparedStatement[][] {condStmts, aggStmts}) {
+			for (int i = 0; i < stmts.length; i++) {
+				if (stmts[i] == null) {
+					continue;
+				}
+				try {
+					stmts[i].close();
+				}
+				catch (SQLException e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+				stmts[i] = null;
+			}
+		}
+		stmt.close();
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	// methods specifying SQL are not allowed for PreparedStatement.
+
+	@Override
+	public ResultSet executeQuery(String sql) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public int executeUpdate(String sql) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public boolean execute(String sql) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public void addBatch(String sql) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public boolean execute(String sql, String[] columnNames) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public long executeLargeUpdate(String sql) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public long executeLargeUpdate(String sql, int columnIndexes[]) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	@Override
+	public long executeLargeUpdate(String sql, String columnNames[]) throws SQLException {
+		throw sqlNotAllowed();
+	}
+
+	// parameter setters. values are kept until execution, because they are bound to the prepared statements of each level.
+
+	@Override
+	public void setNull(int parameterIndex, final int sqlType) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setNull(index, sqlType);
+			}
+		});
+	}
+
+	@Override
+	public void setBoolean(int parameterIndex, final boolean x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setBoolean(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setByte(int parameterIndex, final byte x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setByte(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setShort(int parameterIndex, final short x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setShort(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setInt(int parameterIndex, final int x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setInt(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setLong(int parameterIndex, final long x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setLong(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setFloat(int parameterIndex, final float x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setFloat(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setDouble(int parameterIndex, final double x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setDouble(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setBigDecimal(int parameterIndex, final BigDecimal x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setBigDecimal(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setString(int parameterIndex, final String x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setString(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setBytes(int parameterIndex, final byte[] x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setBytes(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setDate(int parameterIndex, final Date x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setDate(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setTime(int parameterIndex, final Time x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setTime(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setTimestamp(int parameterIndex, final Timestamp x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setTimestamp(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setObject(int parameterIndex, final Object x, final int targetSqlType) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setObject(index, x, targetSqlType);
+			}
+		});
+	}
+
+	@Override
+	public void setObject(int parameterIndex, final Object x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setObject(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setRef(int parameterIndex, final Ref x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setRef(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, final Blob x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setBlob(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setClob(int parameterIndex, final Clob x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setClob(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setArray(int parameterIndex, final Array x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setArray(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setDate(int parameterIndex, final Date x, final Calendar cal) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setDate(index, x, cal);
+			}
+		});
+	}
+
+	@Override
+	public void setTime(int parameterIndex, final Time x, final Calendar cal) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setTime(index, x, cal);
+			}
+		});
+	}
+
+	@Override
+	public void setTimestamp(int parameterIndex, final Timestamp x, final Calendar cal) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setTimestamp(index, x, cal);
+			}
+		});
+	}
+
+	@Override
+	public void setNull(int parameterIndex, final int sqlType, final String typeName) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setNull(index, sqlType, typeName);
+			}
+		});
+	}
+
+	@Override
+	public void setURL(int parameterIndex, final URL x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setURL(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setRowId(int parameterIndex, final RowId x) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setRowId(index, x);
+			}
+		});
+	}
+
+	@Override
+	public void setNString(int parameterIndex, final String value) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setNString(index, value);
+			}
+		});
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, final NClob value) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setNClob(index, value);
+			}
+		});
+	}
+
+	@Override
+	public void setSQLXML(int parameterIndex, final SQLXML xmlObject) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setSQLXML(index, xmlObject);
+			}
+		});
+	}
+
+	@Override
+	public void setObject(int parameterIndex, final Object x, final int targetSqlType, final int scaleOrLength) throws SQLException {
+		setBinding(parameterIndex, new Binding() {
+			@Override
+			public void bind(PreparedStatement ps, int index) throws SQLException {
+				ps.setObject(index, x, targetSqlType, scaleOrLength);
+			}
+		});
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Deprecated
+	@Override
+	public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setClob(int parameterIndex, Reader reader) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+		throw streamNotSupported();
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+		throw streamNotSupported();
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+
+/**
+ * A thread-safe cache of the results of sampling queries, key is the SQL text of the sampling query.
+ * Each entry keeps the level at which the aggregate query was executed, so that a hit returns the result without searching the level.
+ * The results are stored as CachedRowSet detached from the database, and each lookup returns a copy of it, so that the cursors are independent.
+ * The cache is bounded by the estimated memory footprint of the results, and evicts the least recently used result.
+ * All results are discarded when the generation of meta information of sampling tables changes, that is, when sampling tables are converted or reloaded.
+ */
+class ResultCache {
+
+	/** A container class of cached result, its sampling level and its estimated size. */
+	private static class Entry {
+		final CachedRowSet rows;
+		final int level;
+		final long bytes;
+
+		Entry(CachedRowSet rows, int level, long bytes) {
+			this.rows = rows;
+			this.level = level;
+			this.bytes = bytes;
+		}
+	}
+
+	/** estimated bytes of a row without its values. */
+	private static final long ROW_OVERHEAD_BYTES = 48;
+	/** estimated bytes of a value other than strings and binaries. */
+	private static final long VALUE_BYTES = 24;
+
+	private static RowSetFactory rowSetFactory = null;
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+	/** sum of the estimated bytes of cached results. */
+	private long totalBytes = 0;
+	/** generation of meta information of sampling tables at which the results are cached. */
+	private long generation = -1;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param maxBytes	maximum sum of the estimated bytes of cached results
+	 */
+	ResultCache(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes = " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	private static synchronized RowSetFactory getRowSetFactory() throws SQLException {
+		if (rowSetFactory == null) {
+			rowSetFactory = RowSetProvider.newFactory();
+		}
+		return rowSetFactory;
+	}
+
+	/**
+	 * Returns a copy of the cached result of specified sampling query, and marks it as most recently used.
+	 * @param sql	sampling query
+	 * @param generation	current generation of meta information of sampling tables
+	 * @param level	an array of one element, to which the level of the result is set if cached
+	 * @return	result, or null if not cached
+	 * @throws SQLException	if failed to copy the result
+	 */
+	ResultSet get(String sql, long generation, int[] level) throws SQLException {
+		CachedRowSet rows;
+		synchronized (this) {
+			if (generation != this.generation) {
+				map.clear();
+				totalBytes = 0;
+				this.generation = generation;
+			}
+			Entry entry = map.get(sql);
+			if (entry == null) {
+				missCount.incrementAndGet();
+				return null;
+			}
+			rows = entry.rows;
+			level[0] = entry.level;
+		}
+		hitCount.incrementAndGet();
+		return copy(rows);
+	}
+
+	/**
+	 * Reads all rows of specified result of aggregate query, and caches them unless they are larger than the cache.
+	 * Least recently used results are evicted if the size exceeds the maximum.
+	 * @param sql	sampling query
+	 * @param generation	generation of meta information of sampling tables at which the level is searched
+	 * @param level	level at which the aggregate query is executed
+	 * @param rs	result of the aggregate query, which is read to the end but not closed
+	 * @return	result that contains the same rows, which is detached from the database
+	 * @throws SQLException	if failed to read the result
+	 */
+	ResultSet put(String sql, long generation, int level, ResultSet rs) throws SQLException {
+		CachedRowSet rows = getRowSetFactory().createCachedRowSet();
+		rows.populate(rs);
+		long bytes = estimateBytes(rows);
+		synchronized (this) {
+			if (generation != this.generation || bytes > maxBytes) {
+				rows.beforeFirst();
+				return rows;
+			}
+			Entry old = map.put(sql, new Entry(rows, level, bytes));
+			totalBytes += bytes - (old != null ? old.bytes : 0);
+			Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+			while (totalBytes > maxBytes && it.hasNext()) {
+				totalBytes -= it.next().getValue().bytes;
+				it.remove();
+			}
+		}
+		return copy(rows);
+	}
+
+	/** Returns a copy of cached rows, which cursor is before the first row. */
+	private static ResultSet copy(CachedRowSet rows) throws SQLException {
+		// CachedRowSet is not thread-safe, thus copying a cached result is serialized.
+		synchronized (rows) {
+			CachedRowSet copy = rows.createCopy();
+			copy.beforeFirst();
+			return copy;
+		}
+	}
+
+	/** Estimates memory footprint of specified rows, and moves the cursor before the first row. */
+	private static long estimateBytes(CachedRowSet rows) throws SQLException {
+		int columnCount = rows.getMetaData().getColumnCount();
+		long bytes = 0;
+		rows.beforeFirst();
+		while (rows.next()) {
+			bytes += ROW_OVERHEAD_BYTES + 8 * columnCount;
+			for (int i = 1; i <= columnCount; i++) {
+				Object value = rows.getObject(i);
+				if (value instanceof String) {
+					bytes += 40 + 2 * ((String)value).length();
+				}
+				else if (value instanceof byte[]) {
+					bytes += 16 + ((byte[])value).length;
+				}
+				else if (value instanceof BigDecimal) {
+					bytes += 32 + ((BigDecimal)value).unscaledValue().bitLength() / 8;
+				}
+				else if (value != null) {
+					bytes += VALUE_BYTES;
+				}
+			}
+		}
+		rows.beforeFirst();
+		return bytes;
+	}
+
+	/**
+	 * Returns maximum sum of the estimated bytes of cached results.
+	 * @return	maximum bytes
+	 */
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns sum of the estimated bytes of cached results.
+	 * @return	bytes
+	 */
+	synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Returns number of lookups that found the result.
+	 * @return	number of hits
+	 */
+	long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns number of lookups that did not find the result.
+	 * @return	number of misses
+	 */
+	long getMissCount() {
+		return missCount.get();
+	}
+
+}
@@ -0,0 +1,386 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A set of sampling queries that are rewritten ahead of time, which is stored in a file.
+ * The bundle maps SQL text to the template of its rewritten queries and the information needed to execute it,
+ * so that the connection executes the SQL without parsing. See {@link BundledRewriter}.
+ * <p>The bundle is generated by {@link #main(String[])} from SQL files and the unit keys of sampling tables,
+ * without connecting to the database. The bundle is valid only for the rewriting mode and number of levels with which it is generated.
+ * It must be generated again when this driver is upgraded, or when sampling tables are converted with different unit keys.
+ * <p>The file is a gzip compressed sequence of the entries, each of which consists of SQL text, fingerprint, templates, time budget, level hint, sample tables and performance warnings.
+ */
+class RewriteBundle {
+
+	/** magic number at the beginning of the file. */
+	private static final int MAGIC = 0x53535242;
+	/** version of the file format, which is changed when the rewritten queries are changed. */
+	private static final int VERSION = 3;
+
+	/** bundles loaded in this JVM, key is the path of the file. */
+	private static final Map<String, RewriteBundle> loaded = new ConcurrentHashMap<>();
+
+	/** A container class of a rewritten SQL. */
+	static class Entry {
+		final String fingerprint;
+		final RewriteTemplate template;
+		final int parameterCount;
+		final long timeBudgetMillis;
+		/** level specified by LEVEL hint, or -1 if not specified. */
+		final int levelHint;
+		/** pairs of the local name of sample table and the name of its sample key. */
+		final String[][] sampleTables;
+		/** patterns found by SamplingSqlAnalyzer with the unit keys used to generate the bundle. */
+		final List<String> performanceWarnings;
+
+		Entry(String fingerprint, RewriteTemplate template, int parameterCount, long timeBudgetMillis, int levelHint, String[][] sampleTables,
+				List<String> performanceWarnings) {
+			this.fingerprint = fingerprint;
+			this.template = template;
+			this.parameterCount = parameterCount;
+			this.timeBudgetMillis = timeBudgetMillis;
+			this.levelHint = levelHint;
+			this.sampleTables = sampleTables;
+			this.performanceWarnings = performanceWarnings;
+		}
+	}
+
+	/** true if the queries are rewritten with inline views. */
+	final boolean rewriteInlineViewEnabled;
+	/** number of sampling level. */
+	final int numLevel;
+	/** ratio of the sample size of a level to the sample size of the next higher level. */
+	final int base;
+	/** entries, key is trimmed SQL text. */
+	private final Map<String, Entry> entries;
+
+	private RewriteBundle(boolean rewriteInlineViewEnabled, int numLevel, int base, Map<String, Entry> entries) {
+		this.rewriteInlineViewEnabled = rewriteInlineViewEnabled;
+		this.numLevel = numLevel;
+		this.base = base;
+		this.entries = entries;
+	}
+
+	/**
+	 * Returns number of SQL in this bundle.
+	 * @return	number of SQL
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the entry of specified SQL.
+	 * @param sql	SQL text, leading and trailing spaces are ignored
+	 * @return	Entry, or null if this bundle does not contain the SQL
+	 */
+	Entry get(String sql) {
+		return entries.get(sql.trim());
+	}
+
+	/**
+	 * Returns the bundle stored in specified file. A file is read only once in a JVM, and the bundle is shared by all connections.
+	 * @param path	path of the file
+	 * @return	RewriteBundle
+	 * @throws IOException	if failed to read the file, or the file is not a bundle of this version
+	 */
+	static RewriteBundle load(String path) throws IOException {
+		RewriteBundle bundle = loaded.get(path);
+		if (bundle == null) {
+			try (InputStream in = Files.newInputStream(Paths.get(path))) {
+				bundle = read(in);
+			}
+			loaded.put(path, bundle);
+		}
+		return bundle;
+	}
+
+	/**
+	 * Reads a bundle from specified stream.
+	 * @param in	input stream
+	 * @return	RewriteBundle
+	 * @throws IOException	if failed to read, or the data is not a bundle of this version
+	 */
+	static RewriteBundle read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a rewrite bundle.");
+		}
+		int version = data.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version of rewrite bundle: " + version + ", generate it again by this driver.");
+		}
+		boolean rewriteInlineViewEnabled = data.readBoolean();
+		int numLevel = data.readInt();
+		int base = data.readInt();
+		int size = data.readInt();
+		Map<String, Entry> entries = new HashMap<>(size * 2);
+		for (int i = 0; i < size; i++) {
+			String sql = readString(data);
+			String fingerprint = readString(data);
+			String condTemplate = readString(data);
+			String aggTemplate = readString(data);
+			int parameterCount = data.readInt();
+			long timeBudgetMillis = data.readLong();
+			int levelHint = data.readInt();
+			String[][] sampleTables = new String[data.readInt()][];
+			for (int j = 0; j < sampleTables.length; j++) {
+				sampleTables[j] = new String[] {readString(data), readString(data)};
+			}
+			int numWarnings = data.readInt();
+			List<String> performanceWarnings = new ArrayList<>(numWarnings);
+			for (int j = 0; j < numWarnings; j++) {
+				performanceWarnings.add(readString(data));
+			}
+			entries.put(sql, new Entry(fingerprint, new RewriteTemplate(condTemplate, aggTemplate), parameterCount, timeBudgetMillis, levelHint, sampleTables,
+					Collections.unmodifiableList(performanceWarnings)));
+		}
+		return new RewriteBundle(rewriteInlineViewEnabled, numLevel, base, entries);
+	}
+
+	/**
+	 * Writes this bundle to specified stream.
+	 * @param out	output stream
+	 * @throws IOException	if failed to write
+	 */
+	void write(OutputStream out) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(gzip));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeBoolean(rewriteInlineViewEnabled);
+		data.writeInt(numLevel);
+		data.writeInt(base);
+		data.writeInt(entries.size());
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			writeString(data, e.getKey());
+			writeString(data, entry.fingerprint);
+			writeString(data, entry.template.getConditionTemplate());
+			writeString(data, entry.template.getAggregateTemplate());
+			data.writeInt(entry.parameterCount);
+			data.writeLong(entry.timeBudgetMillis);
+			data.writeInt(entry.levelHint);
+			data.writeInt(entry.sampleTables.length);
+			for (String[] sampleTable : entry.sampleTables) {
+				writeString(data, sampleTable[0]);
+				writeString(data, sampleTable[1]);
+			}
+			data.writeInt(entry.performanceWarnings.size());
+			for (String warning : entry.performanceWarnings) {
+				writeString(data, warning);
+			}
+		}
+		data.flush();
+		gzip.finish();
+	}
+
+	/** Writes a nullable string of any length. */
+	private static void writeString(DataOutputStream data, String s) throws IOException {
+		if (s == null) {
+			data.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	/** Reads a string written by writeString. */
+	private static String readString(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Rewrites specified sampling SQL, and returns a bundle of them.
+	 * @param databaseDef	meta information of sampling tables, which is loaded
+	 * @param numLevel	number of sampling level
+	 * @param rewriteInlineViewEnabled	whether generate inline view or not
+	 * @param statements	sampling SQL
+	 * @param errors	list to which the error message of each SQL that can not be bundled is added
+	 * @return	RewriteBundle
+	 */
+	static RewriteBundle compile(DatabaseDef databaseDef, int numLevel, boolean rewriteInlineViewEnabled, List<String> statements, List<String> errors) {
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		int base = 0;
+		for (String statement : statements) {
+			String sql = statement.trim();
+			if (entries.containsKey(sql)) {
+				continue;
+			}
+			try {
+				SamplingSqlRewriter rewriter = new SamplingSqlRewriter(databaseDef, numLevel, sql, rewriteInlineViewEnabled);
+				if (!rewriter.hasSampleClause()) {
+					errors.add("SAMPLE clause not found: " + sql);
+					continue;
+				}
+				RewriteTemplate template = rewriter.getCompiledTemplate();
+				entries.put(sql, new Entry(rewriter.getFingerprint(), template, rewriter.getParameterCount(),
+						rewriter.getTimeBudgetMillis(), rewriter.getLevelHint(), rewriter.getSampleTables(), rewriter.getPerformanceWarnings()));
+				base = rewriter.getBase();
+			}
+			catch (SQLException | RuntimeException e) {
+				errors.add(e.getMessage() + ": " + sql);
+			}
+		}
+		return new RewriteBundle(rewriteInlineViewEnabled, numLevel, base, entries);
+	}
+
+	/**
+	 * Reads meta information of sampling tables from a CSV file, each line of which is {@code table_name,key_name} in the order of unit keys.
+	 * @param path	path of the CSV file
+	 * @return	DatabaseDef
+	 * @throws IOException	if failed to read the file
+	 */
+	static DatabaseDef loadKeyDefs(String path) throws IOException {
+		List<String[]> keyDefs = new ArrayList<>();
+		for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+			String[] columns = line.split(",");
+			if (columns.length >= 2 && !columns[0].trim().isEmpty()) {
+				keyDefs.add(new String[] {columns[0].trim(), columns[1].trim()});
+			}
+		}
+		DatabaseDef databaseDef = new DatabaseDef();
+		databaseDef.load(keyDefs);
+		return databaseDef;
+	}
+
+	/**
+	 * Reads SQL from files. Each SQL in a file is terminated by a semicolon at the end of a line.
+	 * @param inputs	SQL files, or directories in which the files whose name ends with ".sql" are read in the order of their paths
+	 * @return	SQL texts
+	 * @throws IOException	if failed to read the files
+	 */
+	static List<String> readStatements(List<Path> inputs) throws IOException {
+		List<Path> files = new ArrayList<>();
+		for (Path input : inputs) {
+			if (Files.isDirectory(input)) {
+				List<Path> sqlFiles = new ArrayList<>();
+				try (Stream<Path> stream = Files.walk(input)) {
+					for (Iterator<Path> it = stream.iterator(); it.hasNext();) {
+						Path file = it.next();
+						if (file.toString().endsWith(".sql")) {
+							sqlFiles.add(file);
+						}
+					}
+				}
+				Collections.sort(sqlFiles);
+				files.addAll(sqlFiles);
+			}
+			else {
+				files.add(input);
+			}
+		}
+		List<String> statements = new ArrayList<>();
+		for (Path file : files) {
+			String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+			if (text.endsWith(";")) {
+				text = text.substring(0, text.length() - 1);
+			}
+			for (String statement : text.split(";[ \t]*\r?\n")) {
+				if (!statement.trim().isEmpty()) {
+					statements.add(statement);
+				}
+			}
+		}
+		return statements;
+	}
+
+	/**
+	 * Generates a bundle from SQL files.
+	 * <p>Usage: {@code RewriteBundle [-inlineView] [-levels n] -keys file -out file (file|directory)...}
+	 * <ul>
+	 * <li>-inlineView: rewrites with inline views, which is the mode for PostgreSQL.</li>
+	 * <li>-levels: number of sampling level, the default is 32.</li>
+	 * <li>-keys: CSV file of the unit keys of sampling tables, each line of which is {@code table_name,key_name} in the order of unit keys,
+	 * that is, the rows of {@code SELECT TABLE_NAME,KEY_NAME FROM _SAMPLE_KEY_DEFS ORDER BY KEY_ORDER}.</li>
+	 * <li>-out: the bundle file to write.</li>
+	 * </ul>
+	 * SQL files are the files whose name ends with ".sql" in specified directories, or specified files.
+	 * Each SQL in a file is terminated by a semicolon at the end of a line.
+	 * @param args	arguments
+	 * @throws IOException	if failed to read or write the files
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean inlineView = false;
+		int numLevel = 32;
+		String keys = null;
+		String out = null;
+		List<Path> inputs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-inlineView")) {
+				inlineView = true;
+			}
+			else if (args[i].equals("-levels") && i + 1 < args.length) {
+				numLevel = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-keys") && i + 1 < args.length) {
+				keys = args[++i];
+			}
+			else if (args[i].equals("-out") && i + 1 < args.length) {
+				out = args[++i];
+			}
+			else {
+				inputs.add(Paths.get(args[i]));
+			}
+		}
+		if (keys == null || out == null || inputs.isEmpty()) {
+			System.err.println("Usage: RewriteBundle [-inlineView] [-levels n] -keys file -out file (file|directory)...");
+			System.exit(2);
+		}
+
+		DatabaseDef databaseDef = loadKeyDefs(keys);
+		List<String> statements = readStatements(inputs);
+
+		List<String> errors = new ArrayList<>();
+		RewriteBundle bundle = compile(databaseDef, numLevel, inlineView, statements, errors);
+		try (OutputStream os = Files.newOutputStream(Paths.get(out))) {
+			bundle.write(os);
+		}
+		for (String error : errors) {
+			System.err.println("skipped: " + error);
+		}
+		System.out.println(bundle.size() + " SQL bundled, " + errors.size() + " skipped.");
+		if (!errors.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable template of condition query and aggregation query, which has holes for the values depending on the sampling level.
+ * The template is generated by rewriting SQL once with hole markers instead of the values,
+ * and {@link #fill(int, int)} generates the queries of any level by replacing the holes.
+ */
+class RewriteTemplate {
+
+	/** character enclosing hole markers. SQL containing this character can not be compiled to a template. */
+	static final char HOLE = '\u0001';
+	/** hole of the value of level column, that is, {@code ~targetLv}. */
+	static final String LEVEL_VALUE_HOLE = HOLE + "L" + HOLE;
+	/** hole of the value of _FACTOR. */
+	static final String FACTOR_HOLE = HOLE + "F" + HOLE;
+	/** hole of the finite population correction, that is, {@code 1 - 1 / _FACTOR}. */
+	static final String FPC_HOLE = HOLE + "P" + HOLE;
+	/** kind of the hole of a parameter marker, which is followed by the parameter number. */
+	private static final char PARAMETER_KIND = 'Q';
+
+	/** A compiled text, which consists of literal parts and holes between them. */
+	private static class Part {
+		/** literal parts, one more than holes. */
+		final String[] texts;
+		/** kind of each hole, 'L', 'F', 'P' or 'Q'. */
+		final char[] holes;
+		/** parameter numbers of the original SQL, in order of the parameter markers. */
+		final int[] parameters;
+		/** total length of literal parts. */
+		final int length;
+
+		Part(String template) {
+			List<String> textList = new ArrayList<>();
+			StringBuilder holeList = new StringBuilder();
+			List<Integer> parameterList = new ArrayList<>();
+			int length = 0;
+			int start = 0;
+			int pos;
+			while ((pos = template.indexOf(HOLE, start)) >= 0) {
+				String text = template.substring(start, pos);
+				textList.add(text);
+				length += text.length();
+				int end = template.indexOf(HOLE, pos + 1);
+				char kind = template.charAt(pos + 1);
+				holeList.append(kind);
+				if (kind == PARAMETER_KIND) {
+					parameterList.add(Integer.valueOf(template.substring(pos + 2, end)));
+				}
+				start = end + 1;
+			}
+			String text = template.substring(start);
+			textList.add(text);
+			length += text.length();
+			this.texts = textList.toArray(new String[textList.size()]);
+			this.holes = holeList.toString().toCharArray();
+			this.parameters = new int[parameterList.size()];
+			for (int i = 0; i < parameters.length; i++) {
+				parameters[i] = parameterList.get(i);
+			}
+			this.length = length;
+		}
+
+		String fill(String levelValue, String factor, String fpc) {
+			if (holes.length == 0) {
+				return texts[0];
+			}
+			StringBuilder sb = new StringBuilder(length + holes.length * 24);
+			for (int i = 0; i < holes.length; i++) {
+				sb.append(texts[i]);
+				switch (holes[i]) {
+				case 'L':
+					sb.append(levelValue);
+					break;
+				case 'F':
+					sb.append(factor);
+					break;
+				case PARAMETER_KIND:
+					sb.append('?');
+					break;
+				default:
+					sb.append(fpc);
+					break;
+				}
+			}
+			return sb.append(texts[holes.length]).toString();
+		}
+
+		ParameterizedQuery parameterize(int base) {
+			StringBuilder sb = new StringBuilder(length + holes.length);
+			int[] markerParameters = new int[holes.length];
+			int q = 0;
+			for (int i = 0; i < holes.length; i++) {
+				sb.append(texts[i]).append('?');
+				if (holes[i] == PARAMETER_KIND) {
+					markerParameters[i] = parameters[q++];
+				}
+			}
+			sb.append(texts[holes.length]);
+			return new ParameterizedQuery(sb.toString(), holes.clone(), markerParameters, base);
+		}
+	}
+
+	private final String condTemplate;
+	private final String aggTemplate;
+	private final Part condSql;
+	private final Part aggSql;
+
+	/**
+	 * Constructor
+	 * @param condSql	condition query including holes, or null if there is no condition query
+	 * @param aggSql	aggregation query including holes
+	 */
+	RewriteTemplate(String condSql, String aggSql) {
+		this.condTemplate = condSql;
+		this.aggTemplate = aggSql;
+		this.condSql = condSql == null ? null : new Part(condSql);
+		this.aggSql = new Part(aggSql);
+	}
+
+	/**
+	 * Returns condition query and aggregation query of specified level.
+	 * @param targetLv	sampling level
+	 * @param base	ratio of the sample size of a level to the sample size of the next higher level
+	 * @return	condition query and aggregation query
+	 */
+	QuerySet fill(int targetLv, int base) {
+		String levelValue = levelValueText(targetLv);
+		String factor = factorText(base, targetLv);
+		String fpc = fpcText(base, targetLv);
+		return new QuerySet(targetLv, condSql == null ? null : condSql.fill(levelValue, factor, fpc), aggSql.fill(levelValue, factor, fpc));
+	}
+
+	/**
+	 * Returns condition query including holes, from which this template is constructed.
+	 * @return	condition query including holes, or null if there is no condition query
+	 */
+	String getConditionTemplate() {
+		return condTemplate;
+	}
+
+	/**
+	 * Returns aggregation query including holes, from which this template is constructed.
+	 * @return	aggregation query including holes
+	 */
+	String getAggregateTemplate() {
+		return aggTemplate;
+	}
+
+	/**
+	 * Returns condition query in which every hole is replaced by a parameter marker.
+	 * @param base	ratio of the sample size of a level to the sample size of the next higher level
+	 * @return	ParameterizedQuery, or null if there is no condition query
+	 */
+	ParameterizedQuery parameterizeCondition(int base) {
+		return condSql == null ? null : condSql.parameterize(base);
+	}
+
+	/**
+	 * Returns aggregation query in which every hole is replaced by a parameter marker.
+	 * @param base	ratio of the sample size of a level to the sample size of the next higher level
+	 * @return	ParameterizedQuery
+	 */
+	ParameterizedQuery parameterizeAggregate(int base) {
+		return aggSql.parameterize(base);
+	}
+
+	/**
+	 * Returns parameter numbers of the original SQL, in order of the parameter markers of condition query.
+	 * A parameter of the original SQL may appear more than once, or may not appear.
+	 * @return	1-based parameter numbers, or null if there is no condition query
+	 */
+	int[] getConditionParameters() {
+		return condSql == null ? null : condSql.parameters.clone();
+	}
+
+	/**
+	 * Returns parameter numbers of the original SQL, in order of the parameter markers of aggregation query.
+	 * @return	1-based parameter numbers
+	 */
+	int[] getAggregateParameters() {
+		return aggSql.parameters.clone();
+	}
+
+	/** Returns hole of the parameter marker of specified parameter number. */
+	static String parameterHole(int number) {
+		return HOLE + (PARAMETER_KIND + Integer.toString(number)) + HOLE;
+	}
+
+	/** Returns text of the value of level column that is compared with, for specified level. */
+	static String levelValueText(int targetLv) {
+		return String.valueOf(~targetLv);
+	}
+
+	/** Returns text of the value of _FACTOR for specified level. */
+	static String factorText(int base, int targetLv) {
+		return String.valueOf(Math.pow(base, targetLv));
+	}
+
+	/** Returns text of the finite population correction for specified level. */
+	static String fpcText(int base, int targetLv) {
+		return String.valueOf(1 - 1 / Math.pow(base, targetLv));
+	}
+}
@@ -8,14 +8,25 @@ in the project root for more information.
 */
 package com.necsoft.vtc.ssql;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
 import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ErrorNode;
 import org.antlr.v4.runtime.tree.RuleNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
@@ -26,6 +37,12 @@ import org.antlr.v4.runtime.tree.Tree;
  */
 class RewriterCommon {
 
+	/** The system property to specify how the parsers are warmed up when the driver is loaded: background (default), sync or none. */
+	static final String PROPERTY_WARM_UP = "sampling.warmUp";
+
+	/** counted down when the warm-up started by {@link #startWarmUp()} is finished. */
+	private static final CountDownLatch warmedUp = new CountDownLatch(1);
+
 	/**
 	 * Listener class that records error events occurred during parse.
 	 */
@@ -47,6 +64,119 @@ class RewriterCommon {
 		}
 	}
 
+	/**
+	 * An interface that invokes the start rule of a parser.
+	 * @param <T>	type of the context of the start rule
+	 */
+	interface StartRule<T extends ParserRuleContext> {
+		/**
+		 * Invokes the start rule.
+		 * @return	parse tree
+		 */
+		T parse();
+	}
+
+	/**
+	 * Parses the input in two stages.
+	 * First, the input is parsed by SLL prediction mode with BailErrorStrategy, which is fast but fails at the first syntax error
+	 * or at a decision that SLL can not resolve correctly. Only if it fails, the input is parsed again from the beginning by LL prediction mode,
+	 * which reports syntax errors to the listener. The resulting tree is the same as the tree parsed by LL mode only.
+	 * @param parser	parser, whose token stream is at the beginning
+	 * @param errorListener	listener to receive syntax errors
+	 * @param startRule	start rule of the parser
+	 * @return	parse tree
+	 */
+	static <T extends ParserRuleContext> T parseTwoStage(Parser parser, ANTLRErrorListener errorListener, StartRule<T> startRule) {
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new BailErrorStrategy());
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		try {
+			return startRule.parse();
+		}
+		catch (ParseCancellationException e) {
+			// fall back to LL mode
+		}
+		parser.getTokenStream().seek(0);
+		parser.reset();
+		parser.addErrorListener(errorListener);
+		parser.setErrorHandler(new DefaultErrorStrategy());
+		parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+		return startRule.parse();
+	}
+
+	/**
+	 * Warms up the parsers as specified by system property {@value #PROPERTY_WARM_UP}.
+	 * By default, the warm-up runs in a daemon thread, so that loading the driver does not wait for it.
+	 * Statements parsed while the warm-up is running are parsed correctly, because the DFA caches are shared safely by all parsers,
+	 * and the classes of the parsers are initialized only once by whichever thread uses them first.
+	 * The warm-up always parses the same statements in the same order by one thread, so the caches are filled in the same way at every startup.
+	 */
+	static void startWarmUp() {
+		String mode = System.getProperty(PROPERTY_WARM_UP, "background").trim();
+		if (mode.equalsIgnoreCase("none")) {
+			warmedUp.countDown();
+		}
+		else if (mode.equalsIgnoreCase("sync")) {
+			runWarmUp();
+		}
+		else {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runWarmUp();
+				}
+			}, "sampling-sql-warm-up");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private static void runWarmUp() {
+		try {
+			warmUp();
+		}
+		finally {
+			warmedUp.countDown();
+		}
+	}
+
+	/**
+	 * Waits for the warm-up started by {@link #startWarmUp()}.
+	 * @param timeoutMillis	maximum time to wait in milliseconds
+	 * @return	true if the warm-up is finished
+	 * @throws InterruptedException	if interrupted while waiting
+	 */
+	static boolean awaitWarmUp(long timeoutMillis) throws InterruptedException {
+		return warmedUp.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Parses typical statements by both rewriters, so that the DFA caches shared by all parser instances are filled.
+	 * Errors are ignored, because this is only for the performance of later parses.
+	 */
+	static void warmUp() {
+		String[] samplingSqls = {
+			"SAMPLE t AS s BY k UNTIL 100 <= (SELECT COUNT(DISTINCT k) FROM s WHERE x > 1) SELECT a, SUM(b) * _FACTOR FROM s JOIN u ON s.k = u.k WHERE c = 'x' GROUP BY a ORDER BY 2 DESC",
+			"SAMPLE t BY k WITH w AS (SELECT * FROM t) UNTIL RELATIVE ERROR OF AVG(x) < 0.01 WITH CONFIDENCE 0.95 SELECT AVG(x) FROM w",
+			"SAMPLE t BY k UNTIL TIME 100 MS SELECT CASE WHEN x BETWEEN 1 AND 2 THEN 1 ELSE 0 END, COUNT(*) FROM t, (SELECT y FROM u) AS v",
+			"SELECT a.x, (SELECT MAX(y) FROM b) FROM a WHERE a.z IN (1, 2) GROUP BY a.x HAVING COUNT(*) > 1",
+		};
+		String[] convertingSqls = {
+			"SAMPLE TABLE s (k) CREATE TABLE t (k INTEGER NOT NULL, x VARCHAR(10), y NUMERIC(10, 2) DEFAULT 0, PRIMARY KEY (k))",
+		};
+		try {
+			for (String sql : samplingSqls) {
+				new SamplingSqlRewriter(new DatabaseDef(), 32, sql, false);
+			}
+			for (String sql : convertingSqls) {
+				new ConvertingSqlRewriter(sql, DBType.PG);
+			}
+		}
+		catch (RuntimeException e) {
+			// ignore
+		}
+	}
+
 	/**
 	 * Replace substring that matches literal /&#42;&lt; or literal &gt;&#42;/ with a space character from specified input String.
 	 * The literal /&#42;&lt; indicates start of the sampling comment, and the literal &gt;&#42;/ indicates end of the sampling comment.
@@ -58,6 +188,119 @@ class RewriterCommon {
 		return input.replace("/*<", " ").replace(">*/", " ");
 	}
 
+	/**
+	 * Splits a script into statements at semicolons, which are found by the lexer skipping comments, string literals and quoted identifiers.
+	 * The content of sampling comment is lexed as a part of the SQL. Statements consisting of only white spaces and comments are omitted.
+	 * Note that the lexer does not know dollar-quoted strings of PostgreSQL, so a semicolon in them splits the statement.
+	 * @param sql	script
+	 * @return	statements without terminating semicolons, keeping leading comments and white spaces
+	 */
+	static List<String> splitStatements(String sql) {
+		List<String> statements = new ArrayList<>();
+		if (sql.indexOf(';') < 0) {
+			if (!sql.trim().isEmpty()) {
+				statements.add(sql);
+			}
+			return statements;
+		}
+		// replace the delimiters of sampling comment with spaces of the same length, so that the positions of the tokens are not changed.
+		String masked = sql.replace("/*<", "   ").replace(">*/", "   ");
+		SamplingSqlLexer lexer = new SamplingSqlLexer(new ANTLRInputStream(masked));
+		lexer.removeErrorListeners();
+		int start = 0;
+		boolean hasContent = false;
+		for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+			if (token.getChannel() != Token.DEFAULT_CHANNEL) {
+				continue;
+			}
+			if (token.getText().equals(";")) {
+				if (hasContent) {
+					statements.add(sql.substring(start, token.getStartIndex()));
+				}
+				start = token.getStopIndex() + 1;
+				hasContent = false;
+			}
+			else {
+				hasContent = true;
+			}
+		}
+		if (hasContent) {
+			statements.add(sql.substring(start));
+		}
+		return statements;
+	}
+
+	/**
+	 * Returns true if specified SQL may contain SAMPLE or UNTIL keyword, that is, the SQL may need rewriting.
+	 * This method scans the characters without lexer, skipping comments, string literals and quoted identifiers.
+	 * It may return true for SQL that contains no such keyword, for example, if a comment is not terminated,
+	 * but it never returns false for SQL that the rewriters regard as sampling syntax.
+	 * The content of sampling comment is not skipped, because it is a part of the SQL.
+	 * @param sql	SQL to test
+	 * @return	false if the SQL can be passed to the underlying database without parsing
+	 */
+	static boolean mayContainSamplingKeyword(String sql) {
+		int length = sql.length();
+		int i = 0;
+		while (i < length) {
+			char c = sql.charAt(i);
+			if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+				// single line comment
+				while (i < length && sql.charAt(i) != '\r' && sql.charAt(i) != '\n') {
+					i++;
+				}
+			}
+			else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+				if (i + 2 < length && sql.charAt(i + 2) == '<') {
+					// start of sampling comment
+					i += 3;
+					continue;
+				}
+				int end = sql.indexOf("*/", i + 2);
+				if (end < 0) {
+					return true;
+				}
+				i = end + 2;
+			}
+			else if (c == '\'' || c == '"' || c == '`' || c == '[') {
+				// string literal or quoted identifier, the quote character is escaped by doubling it.
+				// an unterminated quote is skipped by the lexer as an error, and the rest is lexed.
+				int end = sql.indexOf(c == '[' ? ']' : c, i + 1);
+				i = end < 0 ? i + 1 : end + 1;
+			}
+			else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_') {
+				int start = i;
+				while (i < length && isIdentifierPart(sql.charAt(i))) {
+					i++;
+				}
+				if (isSamplingKeyword(sql, start, i)) {
+					return true;
+				}
+				// a keyword may follow the exponent of numeric literal, for example 1e5sample or 1e5$sample
+				for (int j = start + 1; j < i; j++) {
+					char d = sql.charAt(j - 1);
+					if ((d == '$' || (d >= '0' && d <= '9')) && isSamplingKeyword(sql, j, i)) {
+						return true;
+					}
+				}
+			}
+			else {
+				i++;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '$';
+	}
+
+	private static boolean isSamplingKeyword(String sql, int start, int end) {
+		int length = end - start;
+		return (length == 6 && sql.regionMatches(true, start, "SAMPLE", 0, 6))
+			|| (length == 5 && sql.regionMatches(true, start, "UNTIL", 0, 5));
+	}
+
 	// For debug purpose. Returns human readable string which is representing graph of parse tree.
 	static String prettyStringTree(Tree tree, Parser parser) {
 		if (tree == null || parser == null) {
@@ -0,0 +1,394 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import com.necsoft.vtc.ssql.SamplingSqlParser.ContentContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.FromItemContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.JoinColumnContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.JoinConditionContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.SampleItemContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.SampleTableContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.SelectStmtContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.TopSelectStmtContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.UntilClauseContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.WithClauseContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.WithSelectStmtContext;
+
+/**
+ * Inspects the parse tree of a sampling query, and finds the patterns by which the rewritten queries read tables entirely
+ * instead of the sample, or repeat expensive work at every level tested.
+ * <p>The sizes of the tables that are not sampling tables are unknown, so a table is regarded as large if it is a sampling table,
+ * that is, it is registered in the meta table of sampling tables.
+ * The patterns are:
+ * <ul>
+ * <li>a sampling table referred in the query, but not sampled by SAMPLE clause.</li>
+ * <li>sample tables of the same sample key in a FROM clause, not joined on their sample keys.</li>
+ * <li>UNTIL condition that does not refer to any sample table.</li>
+ * <li>a table in UNTIL condition that is not sampled, which is read at every level tested.</li>
+ * <li>THIS in UNTIL condition, whose FROM clause joins tables that are not sampled.</li>
+ * </ul>
+ */
+class SamplingSqlAnalyzer {
+
+	private static final String THIS_KEYWORD = "THIS";
+
+	/** A table of SAMPLE clause. */
+	private static class SampleRef {
+		/** name referred in FROM clause, that is, the alias or the table name in SAMPLE clause. */
+		final String name;
+		final String sampleColumn;
+		/** index of SAMPLE item, the tables of the same item have the same kind of sample key. */
+		final int item;
+
+		SampleRef(String name, String sampleColumn, int item) {
+			this.name = name;
+			this.sampleColumn = sampleColumn;
+			this.item = item;
+		}
+	}
+
+	/** A table in FROM clause. */
+	private static class TableRef {
+		/** table name as written, or null if derived table. */
+		final String name;
+		/** name by which columns are qualified. */
+		final String qualifier;
+		/** table of SAMPLE clause, or null if not sampled. */
+		final SampleRef sample;
+
+		TableRef(String name, String qualifier, SampleRef sample) {
+			this.name = name;
+			this.qualifier = qualifier;
+			this.sample = sample;
+		}
+
+		String describe() {
+			return name != null ? name : "derived table " + qualifier;
+		}
+	}
+
+	/** A column reference, which qualifier is null if not qualified. */
+	private static class ColumnRef {
+		final String qualifier;
+		final String column;
+
+		ColumnRef(String qualifier, String column) {
+			this.qualifier = qualifier;
+			this.column = column;
+		}
+
+		boolean refersTo(TableRef table, String columnName) {
+			return (qualifier == null || sameName(qualifier, table.qualifier)) && sameName(column, columnName);
+		}
+	}
+
+	private final DatabaseDef databaseDef;
+	private final List<SampleRef> sampleRefs = new ArrayList<>();
+	/** names of common table expressions, which are neither sample tables nor sampling tables. */
+	private final Set<String> cteNames = new HashSet<>();
+	private final Set<String> warnings = new LinkedHashSet<>();
+
+	private SamplingSqlAnalyzer(DatabaseDef databaseDef) {
+		this.databaseDef = databaseDef;
+	}
+
+	/**
+	 * Analyzes specified sampling query. Meta information of sampling tables must be loaded.
+	 * @param topSelectStmt	parse tree of the sampling query, which has SAMPLE clause
+	 * @param databaseDef	meta information of sampling tables
+	 * @return	messages of the patterns found, or empty list
+	 */
+	static List<String> analyze(TopSelectStmtContext topSelectStmt, DatabaseDef databaseDef) {
+		SamplingSqlAnalyzer analyzer = new SamplingSqlAnalyzer(databaseDef);
+		analyzer.run(topSelectStmt);
+		return new ArrayList<>(analyzer.warnings);
+	}
+
+	private void run(TopSelectStmtContext topSelectStmt) {
+		List<SampleItemContext> sampleItems = topSelectStmt.sampleClause().sampleItem();
+		for (int i = 0; i < sampleItems.size(); i++) {
+			String sampleColumn = sampleItems.get(i).sampleColumn().getText();
+			for (SampleTableContext sampleTable : sampleItems.get(i).sampleTable()) {
+				String name = sampleTable.sampleTableAlias() != null ? sampleTable.sampleTableAlias().getText() : sampleTable.sampleTableName().getText();
+				sampleRefs.add(new SampleRef(name, sampleColumn, i));
+			}
+		}
+		List<WithClauseContext> withClauses = new ArrayList<>();
+		findAll(topSelectStmt, WithClauseContext.class, withClauses);
+		for (WithClauseContext withClause : withClauses) {
+			// name AS ( ... ) or name (columns) AS ( ... )
+			List<ContentContext> contents = withClause.content();
+			for (int i = 0; i + 1 < contents.size(); i++) {
+				if (contents.get(i + 1).getText().equalsIgnoreCase("AS") && isIdentifier(contents.get(i).getText())) {
+					cteNames.add(SqlUtils.unquoteIdentifier(contents.get(i).getText()).toLowerCase());
+				}
+				else if (contents.get(i + 1).getText().equalsIgnoreCase("AS") && i > 0 && contents.get(i).contentInParen() != null
+						&& isIdentifier(contents.get(i - 1).getText())) {
+					cteNames.add(SqlUtils.unquoteIdentifier(contents.get(i - 1).getText()).toLowerCase());
+				}
+			}
+		}
+
+		List<SelectStmtContext> selectStmts = new ArrayList<>();
+		findAll(topSelectStmt, SelectStmtContext.class, selectStmts);
+		for (SelectStmtContext selectStmt : selectStmts) {
+			analyzeSelect(selectStmt);
+		}
+
+		List<UntilClauseContext> untilClauses = new ArrayList<>();
+		findAll(topSelectStmt, UntilClauseContext.class, untilClauses);
+		for (UntilClauseContext untilClause : untilClauses) {
+			if (!untilClause.content().isEmpty()) {
+				analyzeUntil(untilClause);
+			}
+		}
+	}
+
+	/** Finds sampling tables that are not sampled, and sample tables that are not joined on their sample keys. */
+	private void analyzeSelect(SelectStmtContext selectStmt) {
+		if (selectStmt.fromClause() == null) {
+			return;
+		}
+		List<TableRef> tables = new ArrayList<>();
+		List<Token> predicates = new ArrayList<>();
+		List<String> usingColumns = new ArrayList<>();
+		for (FromItemContext fromItem : selectStmt.fromClause().fromItem()) {
+			collectTables(fromItem, tables, predicates, usingColumns);
+		}
+		if (selectStmt.whereClause() != null) {
+			collectTokens(selectStmt.whereClause(), predicates);
+		}
+
+		for (TableRef table : tables) {
+			if (table.sample == null && isSamplingTable(table)) {
+				warnings.add("table " + table.name + " is a sampling table but is not sampled, because it is not in SAMPLE clause, "
+						+ "so it is read entirely. Add it to SAMPLE clause, or refer to it by its alias in SAMPLE clause.");
+			}
+		}
+
+		List<ColumnRef[]> equalities = findEqualities(predicates);
+		for (int i = 0; i < tables.size(); i++) {
+			TableRef t1 = tables.get(i);
+			for (int j = i + 1; j < tables.size(); j++) {
+				TableRef t2 = tables.get(j);
+				if (t1.sample == null || t2.sample == null || t1.sample.item != t2.sample.item) {
+					continue;
+				}
+				String k1 = t1.sample.sampleColumn;
+				String k2 = t2.sample.sampleColumn;
+				boolean joined = false;
+				for (ColumnRef[] eq : equalities) {
+					if ((eq[0].refersTo(t1, k1) && eq[1].refersTo(t2, k2)) || (eq[0].refersTo(t2, k2) && eq[1].refersTo(t1, k1))) {
+						joined = true;
+						break;
+					}
+				}
+				for (String column : usingColumns) {
+					joined |= sameName(column, k1) && sameName(column, k2);
+				}
+				if (!joined) {
+					warnings.add("sample tables " + t1.qualifier + " and " + t2.qualifier + " are not joined on their sample keys "
+							+ k1 + " and " + k2 + ", so the rows of one sample are joined with the rows that are not in the other sample.");
+				}
+			}
+		}
+	}
+
+	/** Finds UNTIL conditions that read tables that are not sampled at every level tested. */
+	private void analyzeUntil(UntilClauseContext untilClause) {
+		List<TerminalNode> terminals = new ArrayList<>();
+		findAll(untilClause, TerminalNode.class, terminals);
+		boolean hasThis = false;
+		for (TerminalNode terminal : terminals) {
+			hasThis |= terminal.getText().equalsIgnoreCase(THIS_KEYWORD);
+		}
+
+		List<SelectStmtContext> selectStmts = new ArrayList<>();
+		findAll(untilClause, SelectStmtContext.class, selectStmts);
+		List<TableRef> tables = new ArrayList<>();
+		for (SelectStmtContext selectStmt : selectStmts) {
+			if (selectStmt.fromClause() != null) {
+				for (FromItemContext fromItem : selectStmt.fromClause().fromItem()) {
+					collectTables(fromItem, tables, new ArrayList<Token>(), new ArrayList<String>());
+				}
+			}
+		}
+		boolean sampled = false;
+		for (TableRef table : tables) {
+			if (table.sample != null) {
+				sampled = true;
+			}
+			else if (table.name != null && !table.name.equalsIgnoreCase(THIS_KEYWORD) && !isCteName(table.name) && !isSamplingTable(table)) {
+				warnings.add("table " + table.name + " in UNTIL condition is not sampled, so it is read entirely at every level tested.");
+			}
+		}
+		if (!sampled && !hasThis) {
+			warnings.add("UNTIL condition does not refer to any sample table, so it is evaluated over the same rows at every level tested.");
+		}
+
+		if (hasThis && untilClause.getParent() instanceof SelectStmtContext) {
+			SelectStmtContext selectStmt = (SelectStmtContext) untilClause.getParent();
+			if (selectStmt.fromClause() == null) {
+				return;
+			}
+			List<TableRef> thisTables = new ArrayList<>();
+			for (FromItemContext fromItem : selectStmt.fromClause().fromItem()) {
+				collectTables(fromItem, thisTables, new ArrayList<Token>(), new ArrayList<String>());
+			}
+			if (thisTables.size() < 2) {
+				return;
+			}
+			StringBuilder unsampled = new StringBuilder();
+			for (TableRef table : thisTables) {
+				if (table.sample == null) {
+					unsampled.append(unsampled.length() > 0 ? ", " : "").append(table.describe());
+				}
+			}
+			if (unsampled.length() > 0) {
+				warnings.add("THIS in UNTIL condition repeats the join with " + unsampled + " that is not sampled, in the condition query of every level tested.");
+			}
+		}
+	}
+
+	/**
+	 * Collects the tables of a FROM item, and the tokens of its join conditions and the columns of USING.
+	 * Derived tables are collected as tables without name, and their SELECT statements are analyzed separately.
+	 */
+	private void collectTables(FromItemContext fromItem, List<TableRef> tables, List<Token> predicates, List<String> usingColumns) {
+		if (fromItem.tableName() != null) {
+			String name = fromItem.tableName().getText();
+			List<TerminalNode> ids = fromItem.tableName().IDENTIFIER();
+			String qualifier = fromItem.tableAlias() != null ? fromItem.tableAlias().getText() : ids.get(ids.size() - 1).getText();
+			tables.add(new TableRef(name, qualifier, findSampleRef(name)));
+			return;
+		}
+		if (fromItem.selectStmt() != null) {
+			tables.add(new TableRef(null, fromItem.tableAlias().getText(), null));
+			return;
+		}
+		for (FromItemContext child : fromItem.fromItem()) {
+			collectTables(child, tables, predicates, usingColumns);
+		}
+		if (fromItem.joinOn() != null) {
+			for (JoinConditionContext joinCondition : fromItem.joinOn().joinCondition()) {
+				collectTokens(joinCondition, predicates);
+			}
+		}
+		if (fromItem.joinUsing() != null) {
+			for (JoinColumnContext joinColumn : fromItem.joinUsing().joinColumn()) {
+				usingColumns.add(joinColumn.getText());
+			}
+		}
+	}
+
+	private SampleRef findSampleRef(String tableName) {
+		for (SampleRef sampleRef : sampleRefs) {
+			if (sameName(sampleRef.name, tableName)) {
+				return sampleRef;
+			}
+		}
+		return null;
+	}
+
+	private boolean isSamplingTable(TableRef table) {
+		if (table.name == null || isCteName(table.name)) {
+			return false;
+		}
+		String[] ids = table.name.split("\\.");
+		return databaseDef.get(ids[ids.length - 1]) != null;
+	}
+
+	private boolean isCteName(String name) {
+		return cteNames.contains(SqlUtils.unquoteIdentifier(name).toLowerCase());
+	}
+
+	/**
+	 * Finds equalities between column references, such as {@code a.x = b.y}, in specified tokens.
+	 * @return	pairs of column references
+	 */
+	private static List<ColumnRef[]> findEqualities(List<Token> tokens) {
+		List<ColumnRef[]> equalities = new ArrayList<>();
+		for (int i = 1; i + 1 < tokens.size(); i++) {
+			if (!tokens.get(i).getText().equals("=")) {
+				continue;
+			}
+			// the left side ends at i - 1, and the right side begins at i + 1
+			int leftStart = i - 1;
+			while (leftStart >= 2 && tokens.get(leftStart - 1).getText().equals(".") && isIdentifier(tokens.get(leftStart - 2).getText())) {
+				leftStart -= 2;
+			}
+			int rightEnd = i + 1;
+			while (rightEnd + 2 < tokens.size() && tokens.get(rightEnd + 1).getText().equals(".") && isIdentifier(tokens.get(rightEnd + 2).getText())) {
+				rightEnd += 2;
+			}
+			ColumnRef left = toColumnRef(tokens, leftStart, i - 1);
+			ColumnRef right = toColumnRef(tokens, i + 1, rightEnd);
+			if (left != null && right != null) {
+				equalities.add(new ColumnRef[] {left, right});
+			}
+		}
+		return equalities;
+	}
+
+	/** Returns column reference of the tokens {@code [[schema.]table.]column} from start to end inclusive, or null if not an identifier. */
+	private static ColumnRef toColumnRef(List<Token> tokens, int start, int end) {
+		String column = tokens.get(end).getText();
+		if (!isIdentifier(column)) {
+			return null;
+		}
+		return new ColumnRef(end > start ? tokens.get(end - 2).getText() : null, column);
+	}
+
+	private static boolean isIdentifier(String text) {
+		if (text.isEmpty()) {
+			return false;
+		}
+		char c = text.charAt(0);
+		return c == '"' || c == '`' || c == '[' || c == '_' || Character.isLetter(c);
+	}
+
+	private static boolean sameName(String a, String b) {
+		return SqlUtils.unquoteIdentifier(a).equalsIgnoreCase(SqlUtils.unquoteIdentifier(b));
+	}
+
+	/** Collects the tokens of specified tree, except the tokens of subqueries. */
+	private static void collectTokens(ParseTree tree, List<Token> tokens) {
+		if (tree instanceof TerminalNode) {
+			tokens.add(((TerminalNode) tree).getSymbol());
+			return;
+		}
+		if (tree instanceof WithSelectStmtContext || tree instanceof SelectStmtContext) {
+			return;
+		}
+		for (int i = 0; i < tree.getChildCount(); i++) {
+			collectTokens(tree.getChild(i), tokens);
+		}
+	}
+
+	/** Finds all nodes of specified type in specified tree, in the order of their position. */
+	private static <T extends ParseTree> void findAll(ParseTree tree, Class<T> type, List<T> found) {
+		if (type.isInstance(tree)) {
+			found.add(type.cast(tree));
+		}
+		for (int i = 0; i < tree.getChildCount(); i++) {
+			findAll(tree.getChild(i), type, found);
+		}
+	}
+
+}
@@ -9,6 +9,9 @@ in the project root for more information.
 package com.necsoft.vtc.ssql;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,24 +19,35 @@ import java.util.Map;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
 import org.antlr.v4.runtime.tree.ErrorNode;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.RuleNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
 import com.necsoft.vtc.ssql.SamplingSqlParser.ColumnAliasContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.ContentContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.ContentInParenContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.ErrorBoundContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.ErrorWordContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.FromItemContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.LevelHintContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.ParseContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.QualifiedNameContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.SampleClauseContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.SampleItemContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.SampleTableContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.SelectStmtContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.TableAliasContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.TableNameContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.TimeBudgetContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.TopSelectStmtContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.UntilClauseContext;
 import com.necsoft.vtc.ssql.SamplingSqlParser.WithClauseContext;
+import com.necsoft.vtc.ssql.SamplingSqlParser.WithSelectStmtContext;
 
 /**
  * A SQL rewriter for SELECT statement including sampling query syntax.
@@ -50,6 +64,7 @@ class SamplingSqlRewriter implements SqlRewriter {
 	private final SamplingSqlParser parser;
 	private final ParseContext tree;
 	private boolean sampling;
+	private final String fingerprint;
 
 	private final RewriterCommon.ErrorListener errorListener;
 
@@ -58,6 +73,19 @@ class SamplingSqlRewriter implements SqlRewriter {
 
 	private static final String FACTOR_COLUMN_NAME = "_FACTOR";
 
+	// UNTIL condition that can be evaluated for every level at once. resolved lazily, because it depends on DatabaseDef.
+	private DecomposableUntil decomposableUntil = null;
+	private boolean decomposableUntilResolved = false;
+
+	// queries with holes for the values depending on the level. generated lazily at the first rewrite.
+	private RewriteTemplate template = null;
+	// false if the input contains the hole marker, in that case the parse tree is visited for each level.
+	private final boolean templateEnabled;
+	// token indexes of parameter markers, in ascending order.
+	private final int[] parameterTokenIndexes;
+	// patterns found by SamplingSqlAnalyzer. analyzed lazily, because it depends on DatabaseDef.
+	private List<String> performanceWarnings = null;
+
 	/**
 	 * Constructor
 	 * @param databaseDef	meta information of sampling tables
@@ -69,6 +97,7 @@ class SamplingSqlRewriter implements SqlRewriter {
 		this.databaseDef = databaseDef;
 		this.numLevel = numLevel;
 		this.ivMode = rewriteInlineViewEnabled;
+		this.templateEnabled = input.indexOf(RewriteTemplate.HOLE) < 0;
 
 		errorListener = new RewriterCommon.ErrorListener();
 
@@ -82,8 +111,11 @@ class SamplingSqlRewriter implements SqlRewriter {
 		String unsupportedWord = null;
 		int sampleKeywordCount = 0;
 		int untilKeywordCount = 0;
-		for (Token t : lexer.getAllTokens()) {
+		StringBuilder fingerprintBuilder = new StringBuilder();
+		List<? extends Token> allTokens = lexer.getAllTokens();
+		for (Token t : allTokens) {
 			int type = t.getType();
+			appendFingerprint(fingerprintBuilder, t);
 			if (type == SamplingSqlLexer.SAMPLE) {
 				sampleKeywordCount++;
 			}
@@ -130,16 +162,113 @@ class SamplingSqlRewriter implements SqlRewriter {
 		if (errormsg != null) {
 			throw new UnsupportedOperationException(errormsg);
 		}
-		lexer.reset();
+		fingerprint = fingerprintBuilder.toString();
 
-		// prepare parser rule
-		CommonTokenStream tokens = new CommonTokenStream(lexer);
+		// prepare parser rule, reusing the tokens instead of lexing again
+		CommonTokenStream tokens = new CommonTokenStream(new ListTokenSource(allTokens, lexer.getSourceName()));
 		parser = new SamplingSqlParser(tokens);
-		parser.removeErrorListeners();
-		parser.addErrorListener(errorListener);
 
 		// execute parse
-		tree = parser.parse();
+		tree = RewriterCommon.parseTwoStage(parser, errorListener, new RewriterCommon.StartRule<ParseContext>() {
+			@Override
+			public ParseContext parse() {
+				return parser.parse();
+			}
+		});
+
+		// tokens are indexed by the token stream while parsing
+		int parameterCount = 0;
+		int[] parameterTokens = new int[allTokens.size()];
+		for (Token t : allTokens) {
+			if (t.getType() == SamplingSqlLexer.PARAMETER) {
+				parameterTokens[parameterCount++] = t.getTokenIndex();
+			}
+		}
+		parameterTokenIndexes = Arrays.copyOf(parameterTokens, parameterCount);
+	}
+
+	/**
+	 * Appends normalized text of specified token to the fingerprint.
+	 * Comments and spaces are ignored, literals are replaced by "?", and keywords and non quoted identifiers are converted to lower case.
+	 */
+	private static void appendFingerprint(StringBuilder sb, Token t) {
+		if (t.getChannel() != Token.DEFAULT_CHANNEL) {
+			return;
+		}
+		if (sb.length() > 0) {
+			sb.append(' ');
+		}
+		int type = t.getType();
+		String text = t.getText();
+		if (type == SamplingSqlLexer.NUMERIC_LITERAL || type == SamplingSqlLexer.Sconst) {
+			sb.append('?');
+		}
+		else if (type == SamplingSqlLexer.IDENTIFIER && SqlUtils.isQuotedIdentifier(text)) {
+			sb.append(text);
+		}
+		else {
+			sb.append(text.toLowerCase());
+		}
+	}
+
+	@Override
+	public String getFingerprint() {
+		return sampling ? fingerprint : null;
+	}
+
+	@Override
+	public int getParameterCount() {
+		return parameterTokenIndexes.length;
+	}
+
+	@Override
+	public int[] getConditionParameterIndexes() throws SQLException {
+		return getCompiledTemplate().getConditionParameters();
+	}
+
+	@Override
+	public int[] getAggregateParameterIndexes() throws SQLException {
+		return getCompiledTemplate().getAggregateParameters();
+	}
+
+	/**
+	 * Returns the template of the rewritten queries, from which the parameter markers of the rewritten queries are mapped.
+	 * This method must be called after meta information of sampling tables is loaded.
+	 * @return	RewriteTemplate
+	 * @throws SQLException	if SQL has error, or the template is not available
+	 */
+	RewriteTemplate getCompiledTemplate() throws SQLException {
+		if (!sampling) {
+			throw new SQLException("SQL is not a sampling query.");
+		}
+		if (!errorListener.errors.isEmpty()) {
+			throw new SQLException(errorListener.errors.getFirst());
+		}
+		if (!templateEnabled) {
+			throw new SQLException("Parameters can not be mapped, because SQL contains control characters.");
+		}
+		try {
+			return getTemplate();
+		}
+		catch (UnsupportedOperationException e) {
+			throw new SQLException(e);
+		}
+	}
+
+	@Override
+	public synchronized List<String> getPerformanceWarnings() throws SQLException {
+		if (!sampling || !hasSampleClause()) {
+			return new ArrayList<>();
+		}
+		if (!errorListener.errors.isEmpty()) {
+			throw new SQLException(errorListener.errors.getFirst());
+		}
+		if (performanceWarnings == null) {
+			// the errors of rewriting are reported before the warnings.
+			rewrite(numLevel - 1);
+			performanceWarnings = Collections.unmodifiableList(SamplingSqlAnalyzer.analyze(tree.topSelectStmt(), databaseDef));
+		}
+		return performanceWarnings;
 	}
 
 	@Override
@@ -161,6 +290,9 @@ class SamplingSqlRewriter implements SqlRewriter {
 			throw new SQLException(errorListener.errors.getFirst());
 		}
 		try {
+			if (templateEnabled) {
+				return getTemplate().fill(targetLv, base);
+			}
 			Visitor visitor = new Visitor(base, targetLv);
 			return visitor.getQuerySet(tree);
 		}
@@ -170,12 +302,453 @@ class SamplingSqlRewriter implements SqlRewriter {
 		}
 	}
 
-	/** A class to visit parse tree */
+	@Override
+	public ParameterizedQuery getParameterizedConditionQuery() throws SQLException {
+		RewriteTemplate t = getParameterizableTemplate();
+		return t == null ? null : t.parameterizeCondition(base);
+	}
+
+	@Override
+	public ParameterizedQuery getParameterizedAggregateQuery() throws SQLException {
+		RewriteTemplate t = getParameterizableTemplate();
+		return t == null ? null : t.parameterizeAggregate(base);
+	}
+
+	/** Returns the template of the rewritten queries, or null if not sampling, or if the template is not available. */
+	private RewriteTemplate getParameterizableTemplate() throws SQLException {
+		if (!sampling || !templateEnabled) {
+			return null;
+		}
+		return getCompiledTemplate();
+	}
+
+	/**
+	 * Returns the template of the rewritten queries, visiting the parse tree only at the first call.
+	 * @return	RewriteTemplate
+	 * @throws UnsupportedOperationException	if any errors occurred during visiting the parse tree
+	 */
+	private synchronized RewriteTemplate getTemplate() {
+		if (template == null) {
+			template = new Visitor(base).getTemplate(tree);
+		}
+		return template;
+	}
+
+	@Override
+	public String rewriteCumulative(int toLv) throws SQLException {
+		if (!sampling) {
+			// rewrite unnecessary
+			return null;
+		}
+		if (toLv < 0 || toLv >= numLevel) {
+			throw new IllegalArgumentException("toLv = " + toLv);
+		}
+		if (!errorListener.errors.isEmpty()) {
+			// throw first error if the ErrorListener records any errors.
+			throw new SQLException(errorListener.errors.getFirst());
+		}
+		DecomposableUntil until = getDecomposableUntil();
+		if (until == null) {
+			return null;
+		}
+
+		return until.getCumulativeSQL(toLv);
+	}
+
+	@Override
+	public int[] getCandidateLevels() throws SQLException {
+		if (!sampling) {
+			return new int[0];
+		}
+		String[][] sampleTables = getSampleTables();
+		int topLv = getUpperBoundLevel();
+		if (topLv < 0) {
+			// UNTIL condition can not be satisfied by the whole sampling table.
+			return new int[0];
+		}
+		return getCandidateLevels(databaseDef, numLevel, sampleTables, topLv);
+	}
+
+	@Override
+	public int getStatisticsLevel() throws SQLException {
+		if (!sampling) {
+			return -1;
+		}
+		if (!errorListener.errors.isEmpty()) {
+			// throw first error if the ErrorListener records any errors.
+			throw new SQLException(errorListener.errors.getFirst());
+		}
+		DecomposableUntil until = getDecomposableUntil();
+		if (until == null || !until.isSampleCount() || databaseDef.get(until.tableName).getLevelHistogram(until.sampleColumn) == null) {
+			return -1;
+		}
+		return getUpperBoundLevel();
+	}
+
+	@Override
+	public String[][] getSampleTables() throws SQLException {
+		if (!sampling) {
+			return new String[0][];
+		}
+		if (!errorListener.errors.isEmpty()) {
+			// throw first error if the ErrorListener records any errors.
+			throw new SQLException(errorListener.errors.getFirst());
+		}
+		List<String[]> sampleTables = new ArrayList<>();
+		Visitor visitor = new Visitor(base, 0);
+		try {
+			for (SampleItemContext sampleItem : tree.topSelectStmt().sampleClause().sampleItem()) {
+				String sSampleColumn = visitor.visit(sampleItem.sampleColumn());
+				for (SampleTableContext sampleTable : sampleItem.sampleTable()) {
+					sampleTables.add(new String[] {visitor.getLocalTableName(sampleTable), sSampleColumn});
+				}
+			}
+		}
+		catch (UnsupportedOperationException e) {
+			throw new SQLException(e);
+		}
+		return sampleTables.toArray(new String[sampleTables.size()][]);
+	}
+
+	/**
+	 * Returns ratio of the sample size of a level to the sample size of the next higher level.
+	 * @return	ratio of the sample size
+	 */
+	int getBase() {
+		return base;
+	}
+
+	/**
+	 * Returns levels at which UNTIL condition should be tested, according to the level histograms of specified sample tables.
+	 * @param databaseDef	meta information of sampling tables
+	 * @param numLevel	number of sampling level
+	 * @param sampleTables	pairs of the local name of sample table and the name of its sample key
+	 * @param topLv	the highest level at which UNTIL condition can be satisfied
+	 * @return	levels in descending order
+	 */
+	static int[] getCandidateLevels(DatabaseDef databaseDef, int numLevel, String[][] sampleTables, int topLv) {
+		// levels at which the sample contains rows not contained in the sample of the next higher level
+		boolean[] populated = new boolean[numLevel];
+		boolean histogramAvailable = true;
+		for (String[] sampleTable : sampleTables) {
+			TableDef tableDef = databaseDef.get(sampleTable[0]);
+			LevelHistogram histogram = tableDef == null || !tableDef.isSampleColumn(sampleTable[1]) ? null : tableDef.getLevelHistogram(sampleTable[1]);
+			if (histogram == null) {
+				histogramAvailable = false;
+				continue;
+			}
+			for (int level = 0; level < LevelHistogram.MAX_LEVEL; level++) {
+				if (histogram.isPopulated(level)) {
+					// levels higher than numLevel - 1 are included in the sample of the level numLevel - 1
+					populated[Math.min(level, numLevel - 1)] = true;
+				}
+			}
+		}
+
+		int[] levels = new int[topLv + 1];
+		int n = 0;
+		for (int level = topLv; level >= 0; level--) {
+			if (level == topLv || !histogramAvailable || populated[level]) {
+				levels[n++] = level;
+			}
+		}
+		return Arrays.copyOf(levels, n);
+	}
+
+	/**
+	 * Returns the highest level at which UNTIL condition can be satisfied, according to the level histogram.
+	 * UNTIL condition requiring the number of rows or sample keys to be at least a constant can not be satisfied at higher levels,
+	 * because the number of rows or keys satisfying the condition in the sample never exceeds the number of all rows or keys in the sample.
+	 * @return	level, or -1 if UNTIL condition can not be satisfied at any level
+	 */
+	private int getUpperBoundLevel() {
+		DecomposableUntil until = getDecomposableUntil();
+		if (until == null || !until.function.equals("COUNT")) {
+			return numLevel - 1;
+		}
+		boolean lowerBound = until.literalFirst ? until.operator.startsWith("<") : until.operator.startsWith(">");
+		if (!lowerBound) {
+			return numLevel - 1;
+		}
+		LevelHistogram histogram = databaseDef.get(until.tableName).getLevelHistogram(until.sampleColumn);
+		if (histogram == null) {
+			return numLevel - 1;
+		}
+		double threshold;
+		try {
+			threshold = Double.parseDouble(until.literal);
+		}
+		catch (NumberFormatException e) {
+			return numLevel - 1;
+		}
+		boolean inclusive = until.operator.endsWith("=");
+		for (int level = numLevel - 1; level >= 0; level--) {
+			long count = until.distinctKey ? histogram.getSampleKeys(level) : histogram.getSampleRows(level);
+			if (inclusive ? count >= threshold : count > threshold) {
+				return level;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public long getTimeBudgetMillis() throws SQLException {
+		if (!sampling) {
+			return -1;
+		}
+		if (!errorListener.errors.isEmpty()) {
+			// throw first error if the ErrorListener records any errors.
+			throw new SQLException(errorListener.errors.getFirst());
+		}
+		TopSelectStmtContext topSelectStmt = tree.topSelectStmt();
+		UntilClauseContext untilClause = topSelectStmt.untilClause();
+		if (untilClause == null && topSelectStmt.selectStmt() != null) {
+			untilClause = topSelectStmt.selectStmt().untilClause();
+		}
+		if (untilClause == null || untilClause.timeBudget() == null) {
+			return -1;
+		}
+		TimeBudgetContext timeBudget = untilClause.timeBudget();
+		double amount = Double.parseDouble(timeBudget.NUMERIC_LITERAL().getText());
+		String unit = timeBudget.timeUnit().getText().toUpperCase();
+		double millisPerUnit;
+		switch (unit) {
+		case "MS":
+		case "MSEC":
+		case "MILLISECOND":
+		case "MILLISECONDS":
+			millisPerUnit = 1;
+			break;
+		case "S":
+		case "SEC":
+		case "SECOND":
+		case "SECONDS":
+			millisPerUnit = 1000;
+			break;
+		default:
+			throw new SQLException("unknown time unit in UNTIL clause: " + timeBudget.timeUnit().getText());
+		}
+		return (long) Math.ceil(amount * millisPerUnit);
+	}
+
+	@Override
+	public int getLevelHint() throws SQLException {
+		if (!sampling) {
+			return -1;
+		}
+		if (!errorListener.errors.isEmpty()) {
+			// throw first error if the ErrorListener records any errors.
+			throw new SQLException(errorListener.errors.getFirst());
+		}
+		LevelHintContext levelHint = tree.topSelectStmt().levelHint();
+		if (levelHint == null) {
+			return -1;
+		}
+		if (!levelHint.levelWord().getText().equalsIgnoreCase("LEVEL")) {
+			throw new SQLException("unknown word after SAMPLE clause: " + levelHint.levelWord().getText());
+		}
+		String text = levelHint.NUMERIC_LITERAL().getText();
+		int level;
+		try {
+			level = Integer.parseInt(text);
+		}
+		catch (NumberFormatException e) {
+			level = -1;
+		}
+		if (level < 0 || level >= numLevel) {
+			throw new SQLException("LEVEL must be an integer from 0 to " + (numLevel - 1) + ": " + text);
+		}
+		return level;
+	}
+
+	@Override
+	public synchronized DecomposableUntil getDecomposableUntil() {
+		if (!sampling || !errorListener.errors.isEmpty()) {
+			return null;
+		}
+		if (!decomposableUntilResolved) {
+			decomposableUntil = findDecomposableUntil();
+			decomposableUntilResolved = true;
+		}
+		return decomposableUntil;
+	}
+
+	/**
+	 * Inspects the parse tree, and returns UNTIL condition which form is {@code constant op (SELECT agg(arg) FROM sampleTable WHERE ...)} or its reverse.
+	 * Aggregate function must be one of COUNT, SUM, MIN and MAX, and COUNT(DISTINCT ...) is allowed only for the sample key.
+	 * @return	DecomposableUntil, or null if UNTIL condition is not such a form.
+	 */
+	private DecomposableUntil findDecomposableUntil() {
+		TopSelectStmtContext topSelectStmt = tree.topSelectStmt();
+		if (topSelectStmt == null || topSelectStmt.sampleClause() == null) {
+			return null;
+		}
+		UntilClauseContext untilClause = topSelectStmt.untilClause();
+		if (untilClause == null && topSelectStmt.selectStmt() != null) {
+			untilClause = topSelectStmt.selectStmt().untilClause();
+		}
+		if (untilClause == null || untilClause.content().size() != 3) {
+			return null;
+		}
+
+		// constant op (subquery), or (subquery) op constant
+		List<ContentContext> contents = untilClause.content();
+		String operator = getSingleToken(contents.get(1), SamplingSqlParser.OPERATORS);
+		if (operator == null || !(operator.equals("<") || operator.equals("<=") || operator.equals(">") || operator.equals(">="))) {
+			return null;
+		}
+		boolean literalFirst = true;
+		String literal = getSingleToken(contents.get(0), SamplingSqlParser.NUMERIC_LITERAL);
+		ContentInParenContext subquery = contents.get(2).contentInParen();
+		if (literal == null) {
+			literalFirst = false;
+			literal = getSingleToken(contents.get(2), SamplingSqlParser.NUMERIC_LITERAL);
+			subquery = contents.get(0).contentInParen();
+		}
+		if (literal == null || subquery == null || subquery.withSelectStmt() == null) {
+			return null;
+		}
+		WithSelectStmtContext withSelectStmt = subquery.withSelectStmt();
+		SelectStmtContext selectStmt = withSelectStmt.selectStmt();
+		if (withSelectStmt.withClause() != null || selectStmt.fromClause() == null || selectStmt.untilClause() != null
+				|| selectStmt.groupClause() != null || selectStmt.havingClause() != null || selectStmt.orderClause() != null) {
+			return null;
+		}
+
+		// FROM clause must be a single sample table
+		List<FromItemContext> fromItems = selectStmt.fromClause().fromItem();
+		if (fromItems.size() != 1 || fromItems.get(0).tableName() == null || !fromItems.get(0).columnAlias().isEmpty()) {
+			return null;
+		}
+		FromItemContext fromItem = fromItems.get(0);
+		Visitor visitor = new Visitor(base, 0);
+		String fromTableName = SqlUtils.unquoteIdentifier(visitor.visit(fromItem.tableName()));
+		SampleTableContext sampleTable = null;
+		String sampleColumn = null;
+		for (SampleItemContext sampleItem : topSelectStmt.sampleClause().sampleItem()) {
+			for (SampleTableContext t : sampleItem.sampleTable()) {
+				String alias = t.sampleTableAlias() == null ? visitor.visit(t.sampleTableName()) : visitor.visit(t.sampleTableAlias());
+				if (SqlUtils.unquoteIdentifier(alias).equals(fromTableName)) {
+					sampleTable = t;
+					sampleColumn = visitor.visit(sampleItem.sampleColumn());
+				}
+			}
+		}
+		if (sampleTable == null) {
+			return null;
+		}
+		TableDef tableDef = visitor.getSampleTableDef(sampleTable, sampleColumn);
+		if (tableDef == null) {
+			return null;
+		}
+		List<TerminalNode> ids = fromItem.tableName().IDENTIFIER();
+		String qualifier = fromItem.tableAlias() != null ? visitor.visit(fromItem.tableAlias()) : visitor.visit(ids.get(ids.size() - 1));
+
+		// WHERE clause must not contain subquery, THIS nor _FACTOR.
+		String where = null;
+		if (selectStmt.whereClause() != null) {
+			if (!isRowExpression(selectStmt.whereClause())) {
+				return null;
+			}
+			where = visitor.visit(selectStmt.whereClause().content());
+		}
+
+		// SELECT clause must be a single aggregate function
+		List<ContentContext> selectContents = selectStmt.selectClause().content();
+		if (selectContents.size() != 2) {
+			return null;
+		}
+		String function = getSingleToken(selectContents.get(0), SamplingSqlParser.IDENTIFIER);
+		ContentInParenContext argumentCtx = selectContents.get(1).contentInParen();
+		if (function == null || argumentCtx == null || argumentCtx.withSelectStmt() != null || !isRowExpression(argumentCtx)) {
+			return null;
+		}
+		function = function.toUpperCase();
+		List<Token> argumentTokens = new ArrayList<>();
+		collectTokens(argumentCtx, argumentTokens);
+		boolean distinct = !argumentTokens.isEmpty() && argumentTokens.get(0).getText().equalsIgnoreCase("DISTINCT");
+		String argument;
+		if (distinct) {
+			// only COUNT(DISTINCT sampleKey) is decomposable, because sample key values of different levels are disjoint.
+			// values of the other sample keys of the table may appear in several levels.
+			int n = argumentTokens.size();
+			if (!function.equals("COUNT") || (n != 2 && n != 4)
+					|| (n == 4 && !(argumentTokens.get(2).getText().equals(".")
+							&& SqlUtils.unquoteIdentifier(argumentTokens.get(1).getText()).equalsIgnoreCase(SqlUtils.unquoteIdentifier(qualifier))))) {
+				return null;
+			}
+			String keyText = argumentTokens.get(n - 1).getText();
+			// non quoted identifiers are converted to lower case, as the visitor does.
+			String key = SqlUtils.isQuotedIdentifier(keyText) ? keyText : keyText.toLowerCase();
+			if (!SqlUtils.unquoteIdentifier(key).equals(SqlUtils.unquoteIdentifier(sampleColumn))) {
+				return null;
+			}
+			argument = qualifier + '.' + argumentTokens.get(n - 1).getText();
+		}
+		else if (function.equals("COUNT") || function.equals("SUM") || function.equals("MIN") || function.equals("MAX")) {
+			if (argumentTokens.isEmpty()) {
+				return null;
+			}
+			argument = visitor.visit(argumentCtx);
+		}
+		else {
+			return null;
+		}
+
+		return new DecomposableUntil(function, distinct, argument, visitor.visit(sampleTable.sampleTableName()), qualifier,
+				sampleColumn, tableDef.getLevelColumnName(sampleColumn), where, literal, operator, literalFirst);
+	}
+
+	/**
+	 * Returns text of the token, if specified content consists of a single token of specified type.
+	 * @return	text of the token, or null if the content is not a single token of specified type.
+	 */
+	private static String getSingleToken(ContentContext content, int tokenType) {
+		if (content.nonStructuralWord() == null) {
+			return null;
+		}
+		Token token = content.nonStructuralWord().getStart();
+		return token.getType() == tokenType ? token.getText() : null;
+	}
+
+	/**
+	 * Tests if specified tree is an expression over a row, that is, it contains neither subquery, THIS nor _FACTOR.
+	 */
+	private static boolean isRowExpression(ParseTree tree) {
+		List<Token> tokens = new ArrayList<>();
+		collectTokens(tree, tokens);
+		for (Token token : tokens) {
+			String upperText = token.getText().toUpperCase();
+			if (token.getType() == SamplingSqlParser.SELECT || THIS_KEYWORD.equals(upperText) || FACTOR_COLUMN_NAME.equals(upperText)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Collects tokens of leaf nodes of specified tree. */
+	private static void collectTokens(ParseTree tree, List<Token> tokens) {
+		if (tree instanceof TerminalNode) {
+			tokens.add(((TerminalNode)tree).getSymbol());
+			return;
+		}
+		for (int i = 0; i < tree.getChildCount(); i++) {
+			collectTokens(tree.getChild(i), tokens);
+		}
+	}
+
+	/**
+	 * A class to visit parse tree.
+	 * The text of a subtree is the text of its tokens in the input, including spaces and comments between them,
+	 * except that the nodes processed by the overridden methods are spliced in place of their tokens.
+	 */
 	private class Visitor extends SamplingSqlBaseVisitor<String> {
 
 		private final int base;
 		private final int targetLevel;
 		private final String factorText;
+		private final String levelValueText;
+		private final String fpcText;
 
 		private String samplingWithQuery = null;
 		private String condQuery = null;
@@ -186,7 +759,26 @@ class SamplingSqlRewriter implements SqlRewriter {
 		public Visitor(int base, int targetLevel) {
 			this.base = base;
 			this.targetLevel = targetLevel;
-			this.factorText = String.valueOf(Math.pow(this.base, this.targetLevel));
+			this.factorText = RewriteTemplate.factorText(base, targetLevel);
+			this.levelValueText = RewriteTemplate.levelValueText(targetLevel);
+			this.fpcText = RewriteTemplate.fpcText(base, targetLevel);
+		}
+
+		/**
+		 * Creates an instance that generates RewriteTemplate, which has holes instead of the values depending on the level.
+		 * @param base	ratio of the sample size of a level to the sample size of the next higher level
+		 */
+		public Visitor(int base) {
+			this.base = base;
+			this.targetLevel = -1;
+			this.factorText = RewriteTemplate.FACTOR_HOLE;
+			this.levelValueText = RewriteTemplate.LEVEL_VALUE_HOLE;
+			this.fpcText = RewriteTemplate.FPC_HOLE;
+		}
+
+		private RewriteTemplate getTemplate(ParseTree tree) {
+			QuerySet querySet = getQuerySet(tree);
+			return new RewriteTemplate(querySet.condSql, querySet.aggSql);
 		}
 
 		private QuerySet getQuerySet(ParseTree tree) {
@@ -221,7 +813,7 @@ class SamplingSqlRewriter implements SqlRewriter {
 					String sLevelColumn = tableDef.getLevelColumnName(sSampleColumn);
 					String sSampleTableAlias = sampleTable.sampleTableAlias() == null ? sSampleTableName : visit(sampleTable.sampleTableAlias());
 					sb.append(sSampleTableAlias).append(" AS (SELECT * FROM ").append(sSampleTableName)
-					.append(" WHERE ").append(sSampleTableName).append('.').append(sLevelColumn).append(" <= ").append(~targetLevel)
+					.append(" WHERE ").append(sSampleTableName).append('.').append(sLevelColumn).append(" <= ").append(levelValueText)
 					.append(')');
 					;
 				}
@@ -248,7 +840,7 @@ class SamplingSqlRewriter implements SqlRewriter {
 					String sSampleTableAlias = sampleTable.sampleTableAlias() == null ? sSampleTableName : visit(sampleTable.sampleTableAlias());
 					sb.setLength(0);
 					sb.append("(SELECT * FROM ").append(sSampleTableName)
-					.append(" WHERE ").append(sSampleTableName).append('.').append(sLevelColumn).append(" <= ").append(~targetLevel)
+					.append(" WHERE ").append(sSampleTableName).append('.').append(sLevelColumn).append(" <= ").append(levelValueText)
 					.append(") AS ").append(sSampleTableAlias)
 					;
 					ivMap.put(SqlUtils.unquoteIdentifier(sSampleTableAlias), sb.toString());
@@ -264,15 +856,89 @@ class SamplingSqlRewriter implements SqlRewriter {
 		 * @return	TableDef object
 		 */
 		private TableDef getSampleTableDef(SampleTableContext sampleTable, String sampleColumnName) {
-			List<TerminalNode> ids = sampleTable.sampleTableName().qualifiedName().IDENTIFIER();
-			String localTableName = visit(ids.get(ids.size() - 1));
-			TableDef tableDef = databaseDef.get(localTableName);
+			TableDef tableDef = databaseDef.get(getLocalTableName(sampleTable));
 			if (tableDef != null && tableDef.isSampleColumn(sampleColumnName)) {
 				return tableDef;
 			}
 			return null;
 		}
 
+		/**
+		 * Returns the name of specified sample table without schema name.
+		 * @param sampleTable	SampleTableContext
+		 * @return	local name of the sample table
+		 */
+		private String getLocalTableName(SampleTableContext sampleTable) {
+			List<TerminalNode> ids = sampleTable.sampleTableName().qualifiedName().IDENTIFIER();
+			return visit(ids.get(ids.size() - 1));
+		}
+
+		/**
+		 * Returns ErrorBound of specified UNTIL clause.
+		 * The argument of aggregate function must refer to a single sample table. It must be qualified by the name of the sample table,
+		 * unless SAMPLE clause has only one sample table.
+		 * @param ctx	ErrorBoundContext
+		 * @param sampleClause	SAMPLE clause
+		 * @return	ErrorBound
+		 */
+		private ErrorBound makeErrorBound(ErrorBoundContext ctx, SampleClauseContext sampleClause) {
+			List<ErrorWordContext> words = ctx.errorWord();
+			if (!words.get(0).getText().equalsIgnoreCase("RELATIVE") || !words.get(1).getText().equalsIgnoreCase("ERROR")
+					|| !words.get(2).getText().equalsIgnoreCase("OF") || !words.get(3).getText().equalsIgnoreCase("CONFIDENCE")) {
+				throw new UnsupportedOperationException("UNTIL clause must be RELATIVE ERROR OF aggregate < number WITH CONFIDENCE number");
+			}
+			String function = ctx.errorFunction().getText().toUpperCase();
+			if (!(function.equals("AVG") || function.equals("SUM") || function.equals("COUNT"))) {
+				throw new UnsupportedOperationException("can't use " + ctx.errorFunction().getText() + " in RELATIVE ERROR, use AVG, SUM or COUNT");
+			}
+			String operator = ctx.OPERATORS().getText();
+			if (!(operator.equals("<") || operator.equals("<="))) {
+				throw new UnsupportedOperationException("can't use " + operator + " in RELATIVE ERROR, use < or <=");
+			}
+			String maxError = ctx.NUMERIC_LITERAL(0).getText();
+			double confidence = Double.parseDouble(ctx.NUMERIC_LITERAL(1).getText());
+			if (!(confidence > 0 && confidence < 1)) {
+				throw new UnsupportedOperationException("CONFIDENCE must be greater than 0 and less than 1");
+			}
+			ContentInParenContext argumentCtx = ctx.contentInParen();
+			if (argumentCtx.withSelectStmt() != null || !isRowExpression(argumentCtx)) {
+				throw new UnsupportedOperationException("can't use subquery, THIS nor _FACTOR in RELATIVE ERROR");
+			}
+
+			// find the sample table referred by the argument
+			List<Token> argumentTokens = new ArrayList<>();
+			collectTokens(argumentCtx, argumentTokens);
+			String argumentQualifier = null;
+			if (argumentTokens.size() >= 2 && argumentTokens.get(1).getText().equals(".")) {
+				argumentQualifier = SqlUtils.unquoteIdentifier(visit(argumentCtx.getChild(0)));
+			}
+			SampleTableContext sampleTable = null;
+			String sampleColumn = null;
+			String qualifier = null;
+			int numSampleTable = 0;
+			for (SampleItemContext sampleItem : sampleClause.sampleItem()) {
+				for (SampleTableContext t : sampleItem.sampleTable()) {
+					numSampleTable++;
+					List<TerminalNode> ids = t.sampleTableName().qualifiedName().IDENTIFIER();
+					String alias = t.sampleTableAlias() == null ? visit(ids.get(ids.size() - 1)) : visit(t.sampleTableAlias());
+					if (argumentQualifier == null ? numSampleTable == 1 : SqlUtils.unquoteIdentifier(alias).equals(argumentQualifier)) {
+						sampleTable = t;
+						sampleColumn = visit(sampleItem.sampleColumn());
+						qualifier = alias;
+					}
+				}
+			}
+			if (sampleTable == null || (argumentQualifier == null && numSampleTable > 1)) {
+				throw new UnsupportedOperationException("argument of RELATIVE ERROR must be qualified by the name of a sample table");
+			}
+			TableDef tableDef = getSampleTableDef(sampleTable, sampleColumn);
+			if (tableDef == null) {
+				throw new UnsupportedOperationException(sampleColumn + " is not sample key of " + visit(sampleTable.sampleTableName()));
+			}
+			return new ErrorBound(function, visit(argumentCtx), visit(sampleTable.sampleTableName()), qualifier, sampleColumn,
+					tableDef.getLevelColumnName(sampleColumn), maxError, operator, confidence);
+		}
+
 		/**
 		 * Search ParserRuleContext from specified context towards the parent direction.
 		 * @param ctx	starting context to search
@@ -286,6 +952,19 @@ class SamplingSqlRewriter implements SqlRewriter {
 			return ctx;
 		}
 
+		/**
+		 * Returns the text of specified nodes, which are consecutive siblings, keeping spaces and comments between them.
+		 * @param list	nodes
+		 * @return	text of the nodes, or empty string if the list is empty
+		 */
+		private String visit(List<? extends ParseTree> list) {
+			Splicer splicer = new Splicer(false);
+			for (ParseTree tree : list) {
+				splicer.append(tree);
+			}
+			return splicer.sb.toString();
+		}
+
 		/**
 		 * Iterate specified list, and returns concatenated text of each list's element.
 		 * @param list	list to iterate
@@ -313,13 +992,21 @@ class SamplingSqlRewriter implements SqlRewriter {
 			SampleClauseContext sampleClause = ctx.sampleClause();
 			WithClauseContext withClause = ctx.withClause();
 			UntilClauseContext untilClause = ctx.untilClause();
+			if (untilClause != null && untilClause.timeBudget() != null) {
+				// UNTIL TIME has no condition query
+				untilClause = null;
+			}
+			if (untilClause != null && untilClause.errorBound() != null) {
+				condQuery = makeErrorBound(untilClause.errorBound(), ctx.sampleClause()).getConditionSQL(levelValueText, fpcText);
+				untilClause = null;
+			}
 			if (ivMode) {
 				makeInlineViewMap(sampleClause);//makeInClauseInlineViewMap(sampleClause);
-				if (withClause != null) {
+				if (withClause != null && condQuery == null) {
 					condQuery = visit(withClause);
 				}
 				if (untilClause != null) {
-					String sUntilContent = visit(untilClause.content(), ' ');
+					String sUntilContent = visit(untilClause.content());
 					if (sUntilContent.contains(THIS_MARKER)) {
 						throw new UnsupportedOperationException("can't use THIS in the top UNTIL clause");
 					}
@@ -337,13 +1024,13 @@ class SamplingSqlRewriter implements SqlRewriter {
 			//}
 			if (withClause != null) {
 				// concatenate WITH clause generated from SAMPLE clause and top level WITH clause.
-				String sWithContent = visit(withClause.content(), ' ');
+				String sWithContent = visit(withClause.content());
 				if (sWithContent != null) {
 					samplingWithQuery = samplingWithQuery + "," + sWithContent;
 				}
 			}
 			if (untilClause != null) {
-				String sUntilContent = visit(untilClause.content(), ' ');
+				String sUntilContent = visit(untilClause.content());
 				if (sUntilContent.contains(THIS_MARKER)) {
 					throw new UnsupportedOperationException("can't use THIS in the top UNTIL clause");
 				}
@@ -357,10 +1044,25 @@ class SamplingSqlRewriter implements SqlRewriter {
 		@Override
 		public String visitSelectStmt(SelectStmtContext ctx) {
 			UntilClauseContext untilClause = ctx.untilClause();
+			if (untilClause != null && untilClause.timeBudget() != null) {
+				if (!(ctx.getParent() instanceof TopSelectStmtContext)) {
+					throw new UnsupportedOperationException("can't use UNTIL TIME except in the top SELECT statement");
+				}
+				// UNTIL TIME has no condition query
+				untilClause = null;
+			}
+			if (untilClause != null && untilClause.errorBound() != null) {
+				if (!(ctx.getParent() instanceof TopSelectStmtContext)) {
+					throw new UnsupportedOperationException("can't use UNTIL RELATIVE ERROR except in the top SELECT statement");
+				}
+				condQuery = makeErrorBound(untilClause.errorBound(), ((TopSelectStmtContext) ctx.getParent()).sampleClause())
+						.getConditionSQL(levelValueText, fpcText);
+				untilClause = null;
+			}
 			if (untilClause != null) {
 				// when current processing SELECT statement contains UNTIL clause, generate condition query
 
-				String sUntilContent = visit(untilClause.content(), ' ');
+				String sUntilContent = visit(untilClause.content());
 				if (sUntilContent.contains(THIS_MARKER)) {
 					// if UNTIL clause contains THIS, generate subquery based on SELECT statement referenced by THIS, and replace THIS by the subquery
 					if (findAncestor(ctx, SamplingSqlParser.RULE_untilClause) == null) {
@@ -406,6 +1108,12 @@ class SamplingSqlRewriter implements SqlRewriter {
 			return null;
 		}
 
+		@Override
+		public String visitLevelHint(LevelHintContext ctx) {
+			// do nothing because LEVEL hint is processed by getLevelHint
+			return null;
+		}
+
 		@Override
 		public String visitWithClause(WithClauseContext ctx) {
 			if (!ivMode && ctx.getParent() instanceof TopSelectStmtContext) {
@@ -475,6 +1183,12 @@ class SamplingSqlRewriter implements SqlRewriter {
 				return null;
 			}
 
+			if (tokenType == SamplingSqlParser.PARAMETER && targetLevel < 0) {
+				// replace parameter marker to the hole of its number, so that the parameters of rewritten queries are mapped.
+				int number = Arrays.binarySearch(parameterTokenIndexes, node.getSymbol().getTokenIndex()) + 1;
+				return RewriteTemplate.parameterHole(number);
+			}
+
 			if (tokenType == SamplingSqlParser.IDENTIFIER) {
 				if (SqlUtils.isQuotedIdentifier(text)) {
 					// quoted identifiers are case-sensitive.
@@ -507,15 +1221,97 @@ class SamplingSqlRewriter implements SqlRewriter {
 		}
 
 		@Override
-		protected String aggregateResult(String aggregate, String nextResult) {
-			if (aggregate == null) {
-				return nextResult;
+		public String visitChildren(RuleNode node) {
+			// names are compacted, so that the same name written with different spaces is matched.
+			Splicer splicer = new Splicer(node instanceof TableNameContext || node instanceof QualifiedNameContext);
+			for (int i = 0; i < node.getChildCount(); i++) {
+				splicer.append(node.getChild(i));
 			}
-			else if (nextResult == null) {
-				return aggregate;
+			return splicer.sb.length() == 0 ? null : splicer.sb.toString();
+		}
+
+		/**
+		 * A builder of the text of consecutive nodes, that appends every token to a single StringBuilder, thus the cost is linear in the number of tokens.
+		 * Between two tokens that are adjacent in the input, the hidden tokens between them, that is, spaces and comments, are copied.
+		 * Where tokens are removed or replaced, a single space is inserted instead.
+		 */
+		private class Splicer {
+			final StringBuilder sb = new StringBuilder();
+			/** true if no space is inserted between tokens. */
+			private final boolean compact;
+			/** index of the last token of the last appended text, or -1 if nothing is appended. */
+			private int lastTokenIndex = -1;
+			/** true if the last appended text is not the text of the input. */
+			private boolean lastReplaced = false;
+
+			Splicer(boolean compact) {
+				this.compact = compact;
 			}
-			else {
-				return aggregate + ' ' + nextResult;
+
+			void append(ParseTree tree) {
+				if (tree instanceof TerminalNode) {
+					Token token = ((TerminalNode) tree).getSymbol();
+					String text = tree.accept(Visitor.this);
+					if (text != null) {
+						appendText(text, token.getTokenIndex(), token.getTokenIndex(), !text.equalsIgnoreCase(token.getText()));
+					}
+				}
+				else if (tree instanceof TopSelectStmtContext || tree instanceof SelectStmtContext || tree instanceof SampleClauseContext || tree instanceof LevelHintContext
+						|| tree instanceof WithClauseContext || tree instanceof UntilClauseContext || tree instanceof FromItemContext
+						|| tree instanceof TableNameContext || tree instanceof QualifiedNameContext) {
+					// nodes processed by the overridden methods, and names
+					String text = tree.accept(Visitor.this);
+					if (text != null) {
+						ParserRuleContext ctx = (ParserRuleContext) tree;
+						appendText(text, ctx.getStart().getTokenIndex(), ctx.getStop().getTokenIndex(), false);
+					}
+				}
+				else {
+					for (int i = 0; i < tree.getChildCount(); i++) {
+						append(tree.getChild(i));
+					}
+				}
+			}
+
+			private void appendText(String text, int startTokenIndex, int stopTokenIndex, boolean replaced) {
+				if (lastTokenIndex >= 0 && !compact) {
+					appendSeparator(startTokenIndex, (replaced || lastReplaced) && needsSpace(sb.charAt(sb.length() - 1), text.charAt(0)));
+				}
+				sb.append(text);
+				lastTokenIndex = stopTokenIndex;
+				lastReplaced = replaced;
+			}
+
+			/**
+			 * Appends the hidden tokens between the last appended token and specified token, or a space if tokens are removed between them.
+			 * @param startTokenIndex	index of the token to append next
+			 * @param spaceRequired	true if a space is required when there is no hidden token
+			 */
+			private void appendSeparator(int startTokenIndex, boolean spaceRequired) {
+				TokenStream tokens = parser.getTokenStream();
+				for (int i = lastTokenIndex + 1; i < startTokenIndex; i++) {
+					if (tokens.get(i).getChannel() == Token.DEFAULT_CHANNEL) {
+						// tokens are removed
+						sb.append(' ');
+						return;
+					}
+				}
+				int length = sb.length();
+				for (int i = lastTokenIndex + 1; i < startTokenIndex; i++) {
+					sb.append(tokens.get(i).getText());
+				}
+				if (sb.length() == length && spaceRequired) {
+					sb.append(' ');
+				}
+			}
+
+			/** Returns true if specified characters may be lexed as a single token, or as a comment, without a space between them. */
+			private boolean needsSpace(char last, char first) {
+				return (isWordChar(last) && isWordChar(first)) || ("-/*".indexOf(last) >= 0 && "-/*".indexOf(first) >= 0);
+			}
+
+			private boolean isWordChar(char c) {
+				return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.' || c == RewriteTemplate.HOLE;
 			}
 		}
 
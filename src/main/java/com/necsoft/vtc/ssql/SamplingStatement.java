@@ -0,0 +1,34 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.sql.Statement;
+
+/**
+ * An interface that provides information about the last sampling query executed by the statement.
+ * Statements created by {@link ProxyConnection} implement this interface.
+ */
+public interface SamplingStatement extends Statement {
+
+	/**
+	 * Returns number of condition queries issued to the underlying database by the last sampling query.
+	 * Returns 0 if no sampling query has been executed yet.
+	 * @return	number of condition queries
+	 */
+	int getProbeCount();
+
+	/**
+	 * Returns the sampling level at which the aggregate query of the last sampling query is executed. The sample of lower level is larger.
+	 * The level can be passed to {@link ProxyConnection#pinSample(String, String, int)} so that the following queries use the same sample.
+	 * Returns -1 if no sampling query has been executed yet, or if the last sampling query returned {@link ProgressiveResultSet}.
+	 * @return	sampling level
+	 */
+	int getSamplingLevel();
+
+}
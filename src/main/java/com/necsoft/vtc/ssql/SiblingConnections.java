@@ -0,0 +1,536 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A fixed number of connections to the underlying database that are opened in addition to the connection of {@link ProxyConnection},
+ * and threads that execute queries on them.
+ * Connections are opened when they are used first, and closed when this object is closed.
+ * <p>This class executes at most one query on each connection at a time.
+ * A connection is leased by a query while it is used, and other queries do not use it until the lease is released.
+ */
+class SiblingConnections implements AutoCloseable {
+
+	/** Returned by search if all the connections are leased by other queries. */
+	static final int UNAVAILABLE = -2;
+
+	/** An interface that generates condition query of specified level. It is called only by the thread that calls search. */
+	interface ConditionQuery {
+		/**
+		 * Returns condition query of specified level.
+		 * @param level	sampling level
+		 * @return	condition query
+		 * @throws SQLException	if error occurs
+		 */
+		String getConditionSQL(int level) throws SQLException;
+	}
+
+	/** An interface that evaluates the result of condition query. */
+	interface ConditionEvaluator {
+		/**
+		 * Executes condition query by specified statement, and returns the result.
+		 * @param stmt	statement of a sibling connection
+		 * @param condSql	condition query
+		 * @return	true if the condition is satisfied
+		 * @throws SQLException	if error occurs
+		 */
+		boolean evaluate(Statement stmt, String condSql) throws SQLException;
+	}
+
+	/**
+	 * A query that is executed on a sibling connection in background, and may be cancelled before it is needed.
+	 * The future is never cancelled, so that the task always runs to the end and the connection is known to be free when it finishes.
+	 */
+	static class SpeculativeQuery {
+		private final Future<ResultSet> future;
+		/** statement executing the query, or null if not executing. */
+		private final AtomicReference<Statement> running = new AtomicReference<>();
+		/** result of the query, which is taken by either get or cancel. */
+		private final AtomicReference<ResultSet> result = new AtomicReference<>();
+		/** true if the query is cancelled. */
+		private final AtomicBoolean cancelled = new AtomicBoolean(false);
+		/** counted down when the task finishes. */
+		private final CountDownLatch done = new CountDownLatch(1);
+		/** owner of the lease of the connection. */
+		private final SiblingConnections owner;
+		/** index of the leased connection. */
+		private final int index;
+		/** true if the lease of the connection is released. */
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private SpeculativeQuery(SiblingConnections owner, int index, CompletionService<ResultSet> service, final Connection sibling, final String sql) {
+			this.owner = owner;
+			this.index = index;
+			this.future = service.submit(new Callable<ResultSet>() {
+				@Override
+				public ResultSet call() throws SQLException {
+					try {
+						execute(sibling, sql);
+						return result.get();
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		/** Executes the query, and keeps the result unless the query is cancelled. */
+		private void execute(Connection sibling, String sql) throws SQLException {
+			if (cancelled.get()) {
+				return;
+			}
+			Statement stmt = sibling.createStatement();
+			ResultSet rs = null;
+			running.set(stmt);
+			try {
+				// cancel sets the flag before it reads running, so the query is either skipped here or cancelled by it.
+				if (!cancelled.get()) {
+					rs = stmt.executeQuery(sql);
+				}
+			}
+			catch (SQLException | RuntimeException e) {
+				stmt.close();
+				throw e;
+			}
+			finally {
+				running.set(null);
+			}
+			if (rs == null) {
+				stmt.close();
+				return;
+			}
+			result.set(rs);
+			if (cancelled.get()) {
+				discard();
+			}
+		}
+
+		/** Closes the statement of the result, if the result is not taken yet. */
+		private void discard() {
+			ResultSet rs = result.getAndSet(null);
+			if (rs != null) {
+				try {
+					rs.getStatement().close();
+				}
+				catch (SQLException e) {
+					// ignore, the result is not used.
+				}
+			}
+		}
+
+		/**
+		 * Waits for the query and returns its result.
+		 * The caller must close the statement of the result, {@code ResultSet.getStatement()}, and then call {@link #release()}.
+		 * @return	result of the query
+		 * @throws SQLException	if the query failed, or interrupted while waiting
+		 */
+		ResultSet get() throws SQLException {
+			try {
+				future.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancel();
+				throw new SQLException("Interrupted while waiting for query.", e);
+			}
+			catch (ExecutionException e) {
+				release();
+				Throwable cause = e.getCause();
+				throw cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+			}
+			ResultSet rs = result.getAndSet(null);
+			if (rs == null) {
+				release();
+				throw new SQLException("Query is cancelled.");
+			}
+			return rs;
+		}
+
+		/**
+		 * Releases the lease of the connection, so that other queries can use it.
+		 * Called after the result taken by {@link #get()} is closed. Calling it again has no effect.
+		 */
+		void release() {
+			if (released.compareAndSet(false, true)) {
+				owner.release(index);
+			}
+		}
+
+		/**
+		 * Cancels the query, and waits until the connection becomes free. The result of the query is discarded.
+		 */
+		void cancel() {
+			cancelled.set(true);
+			Statement stmt = running.get();
+			if (stmt != null) {
+				try {
+					stmt.cancel();
+				}
+				catch (SQLException e) {
+					// ignore, the query runs to completion and its result is discarded.
+				}
+			}
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done.await();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			// the task closes the result if it sees the flag, otherwise it is closed here.
+			discard();
+			release();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private final String url;
+	private final Properties info;
+	private final Connection[] connections;
+	/** true for the connections used by a query, guarded by itself. */
+	private final boolean[] leased;
+	private ExecutorService executor = null;
+	private boolean closed = false;
+
+	/**
+	 * Constructor
+	 * @param url	JDBC URL of the underlying database
+	 * @param info	connection properties of the underlying database
+	 * @param size	number of connections
+	 */
+	SiblingConnections(String url, Properties info, int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size = " + size);
+		}
+		this.url = url;
+		this.info = info;
+		this.connections = new Connection[size];
+		this.leased = new boolean[size];
+	}
+
+	/**
+	 * Returns number of connections.
+	 * @return	number of connections
+	 */
+	int size() {
+		return connections.length;
+	}
+
+	/**
+	 * Returns the connection at specified index, opening it if not opened yet.
+	 * @param index	index of the connection
+	 * @return	connection
+	 * @throws SQLException	if failed to connect the underlying database
+	 */
+	synchronized Connection getConnection(int index) throws SQLException {
+		if (closed) {
+			throw new SQLException("Sibling connections are closed.");
+		}
+		if (connections[index] == null) {
+			connections[index] = DriverManager.getConnection(url, info);
+		}
+		return connections[index];
+	}
+
+	/**
+	 * Returns a new CompletionService that executes tasks by the threads of this object.
+	 * The number of threads is the number of connections.
+	 * @return	CompletionService
+	 * @throws SQLException	if this object is closed
+	 */
+	synchronized <T> CompletionService<T> newCompletionService() throws SQLException {
+		if (closed) {
+			throw new SQLException("Sibling connections are closed.");
+		}
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(connections.length, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "sampling-sibling");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return new ExecutorCompletionService<>(executor);
+	}
+
+	/**
+	 * Leases the connection at specified index, unless it is leased already.
+	 * @param index	index of the connection
+	 * @return	true if leased
+	 */
+	private boolean tryLease(int index) {
+		synchronized (leased) {
+			if (leased[index]) {
+				return false;
+			}
+			leased[index] = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Releases the lease of the connection at specified index.
+	 * @param index	index of the connection
+	 */
+	private void release(int index) {
+		synchronized (leased) {
+			leased[index] = false;
+		}
+	}
+
+	/**
+	 * Starts specified query on the connection at specified index in background.
+	 * The connection is leased until the query is cancelled, or its result is closed and {@link SpeculativeQuery#release()} is called.
+	 * @param index	index of the connection
+	 * @param sql	query
+	 * @return	SpeculativeQuery to receive the result or to cancel the query, or null if the connection is leased by another query.
+	 * @throws SQLException	if failed to connect the underlying database
+	 */
+	SpeculativeQuery startQuery(int index, String sql) throws SQLException {
+		if (!tryLease(index)) {
+			return null;
+		}
+		try {
+			Connection sibling = getConnection(index);
+			CompletionService<ResultSet> service = newCompletionService();
+			return new SpeculativeQuery(this, index, service, sibling, sql);
+		}
+		catch (SQLException | RuntimeException e) {
+			release(index);
+			throw e;
+		}
+	}
+
+	/**
+	 * Searches the first level in specified array that satisfies the condition, by executing condition queries of consecutive levels concurrently.
+	 * The number of concurrent queries is the number of connections that are not leased by other queries.
+	 * Once the first level is known, condition queries of the other levels are cancelled.
+	 * @param levels	candidate levels in descending order
+	 * @param query	generator of condition query
+	 * @param evaluator	evaluator of condition query
+	 * @param probeCount	an array of one element, which is incremented for each condition query submitted
+	 * @return	index of the first level in the array that satisfies the condition, -1 if no level satisfies it,
+	 * 		or {@link #UNAVAILABLE} if all the connections are leased by other queries.
+	 * @throws SQLException	if error occurs in condition query
+	 */
+	synchronized int search(int[] levels, ConditionQuery query, ConditionEvaluator evaluator, int[] probeCount) throws SQLException {
+		int[] ids = new int[connections.length];
+		int size = 0;
+		for (int i = 0; i < connections.length; i++) {
+			if (tryLease(i)) {
+				ids[size++] = i;
+			}
+		}
+		if (size == 0) {
+			return UNAVAILABLE;
+		}
+		try {
+			for (int base = 0; base < levels.length; base += size) {
+				int end = Math.min(base + size, levels.length);
+				String[] condSqls = new String[end - base];
+				for (int i = base; i < end; i++) {
+					condSqls[i - base] = query.getConditionSQL(levels[i]);
+				}
+				int found = searchBatch(ids, condSqls, evaluator, probeCount);
+				if (found >= 0) {
+					return base + found;
+				}
+			}
+			return -1;
+		}
+		finally {
+			for (int i = 0; i < size; i++) {
+				release(ids[i]);
+			}
+		}
+	}
+
+	/**
+	 * Executes specified condition queries concurrently, each on its own connection in specified indexes.
+	 * Returns after all the queries are completed or cancelled, so that the connections are free for the next queries.
+	 * @return	index of the first condition query that is satisfied, or -1 if none is satisfied.
+	 */
+	private int searchBatch(int[] ids, String[] condSqls, final ConditionEvaluator evaluator, int[] probeCount) throws SQLException {
+		int n = condSqls.length;
+		CompletionService<Boolean> service = newCompletionService();
+		List<AtomicReference<Statement>> running = new ArrayList<>(n);
+		List<AtomicBoolean> cancelled = new ArrayList<>(n);
+		final Boolean[] results = new Boolean[n];
+		Map<Future<Boolean>, Integer> indexes = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			final Connection sibling = getConnection(ids[i]);
+			final String condSql = condSqls[i];
+			final AtomicReference<Statement> ref = new AtomicReference<>();
+			final AtomicBoolean cancel = new AtomicBoolean(false);
+			running.add(ref);
+			cancelled.add(cancel);
+			// the task is not cancelled by the future, so that the future is completed only when the task is finished.
+			Future<Boolean> future = service.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws SQLException {
+					if (cancel.get()) {
+						return false;
+					}
+					try (Statement stmt = sibling.createStatement();) {
+						ref.set(stmt);
+						try {
+							// cancelAll sets the flag before it reads ref, so the query is either skipped here or cancelled by it.
+							return !cancel.get() && evaluator.evaluate(stmt, condSql);
+						}
+						finally {
+							ref.set(null);
+						}
+					}
+				}
+			});
+			indexes.put(future, i);
+			probeCount[0]++;
+		}
+
+		int found = -1;
+		SQLException error = null;
+		boolean interrupted = false;
+		for (int remaining = n; remaining > 0; remaining--) {
+			Future<Boolean> future;
+			try {
+				future = service.take();
+			}
+			catch (InterruptedException e) {
+				// the queries are cancelled, and their completion is still awaited.
+				if (!interrupted) {
+					interrupted = true;
+					cancelAll(running, cancelled, 0);
+				}
+				remaining++;
+				continue;
+			}
+			int index = indexes.get(future);
+			if (cancelled.get(index).get()) {
+				// the result of a cancelled query is not needed, even if it is an error.
+				continue;
+			}
+			try {
+				results[index] = future.get();
+			}
+			catch (InterruptedException e) {
+				// never happens, the future is done
+				interrupted = true;
+				continue;
+			}
+			catch (ExecutionException e) {
+				if (error == null) {
+					Throwable cause = e.getCause();
+					error = cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+					cancelAll(running, cancelled, 0);
+				}
+				continue;
+			}
+			if (results[index]) {
+				// the levels after the satisfying level need not to be tested.
+				cancelAll(running, cancelled, index + 1);
+			}
+			if (found < 0 && error == null) {
+				for (int i = 0; i < n && results[i] != null; i++) {
+					if (results[i]) {
+						found = i;
+						break;
+					}
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for condition queries.");
+		}
+		if (error != null) {
+			throw error;
+		}
+		return found;
+	}
+
+	/** Cancels the condition queries from specified index, which are not started yet or still running. */
+	private static void cancelAll(List<AtomicReference<Statement>> running, List<AtomicBoolean> cancelled, int from) {
+		for (int i = from; i < running.size(); i++) {
+			if (cancelled.get(i).getAndSet(true)) {
+				continue;
+			}
+			Statement stmt = running.get(i).get();
+			if (stmt != null) {
+				try {
+					stmt.cancel();
+				}
+				catch (SQLException e) {
+					// ignore, the query runs to completion and its result is discarded.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads and closes all connections.
+	 * @throws SQLException	if failed to close a connection
+	 */
+	@Override
+	public synchronized void close() throws SQLException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		SQLException error = null;
+		for (Connection connection : connections) {
+			if (connection != null) {
+				try {
+					connection.close();
+				}
+				catch (SQLException e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+}
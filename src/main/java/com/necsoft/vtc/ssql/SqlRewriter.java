@@ -8,7 +8,10 @@ in the project root for more information.
 */
 package com.necsoft.vtc.ssql;
 
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.List;
 
 /**
  * A container class that stores sampling level, condition query and aggregation query that corresponding to the sampling level
@@ -26,6 +29,63 @@ class QuerySet {
 
 }
 
+/**
+ * A container class of a rewritten query, in which the values depending on the sampling level are parameter markers,
+ * so that a prepared statement of the query can be executed at any level.
+ * The parameters of the original SQL are parameter markers as well.
+ */
+class ParameterizedQuery {
+	/** query including parameter markers. */
+	final String sql;
+	/** kind of each parameter marker, 'L' for the value of level column, 'F' for _FACTOR, 'P' for the finite population correction, or 'Q' for a parameter of the original SQL. */
+	private final char[] kinds;
+	/** 1-based parameter index of the original SQL for each parameter marker, or 0 if the marker is not a parameter of the original SQL. */
+	private final int[] parameters;
+	/** ratio of the sample size of a level to the sample size of the next higher level. */
+	private final int base;
+
+	ParameterizedQuery(String sql, char[] kinds, int[] parameters, int base) {
+		this.sql = sql;
+		this.kinds = kinds;
+		this.parameters = parameters;
+		this.base = base;
+	}
+
+	/**
+	 * Returns parameter index of the original SQL for each parameter marker.
+	 * @return	1-based parameter indexes of the original SQL, or 0 for the markers of the values depending on the level
+	 */
+	int[] getParameters() {
+		return parameters.clone();
+	}
+
+	/**
+	 * Sets the values depending on specified level to the parameter markers of the prepared statement.
+	 * The values are the same as the literals of the query generated by {@link SqlRewriter#rewrite(int)}, so the types of expressions are not changed.
+	 * @param ps	prepared statement of the query
+	 * @param targetLv	sampling level
+	 * @throws SQLException	if error occurs
+	 */
+	void bindLevel(PreparedStatement ps, int targetLv) throws SQLException {
+		for (int i = 0; i < kinds.length; i++) {
+			switch (kinds[i]) {
+			case 'L':
+				ps.setInt(i + 1, ~targetLv);
+				break;
+			case 'F':
+				ps.setBigDecimal(i + 1, new BigDecimal(RewriteTemplate.factorText(base, targetLv)));
+				break;
+			case 'P':
+				ps.setBigDecimal(i + 1, new BigDecimal(RewriteTemplate.fpcText(base, targetLv)));
+				break;
+			default:
+				// parameter of the original SQL
+				break;
+			}
+		}
+	}
+}
+
 /**
  * An interface of rewriting SQL select statement.
  */
@@ -39,10 +99,125 @@ public interface SqlRewriter {
 	 */
 	QuerySet rewrite(int targetLv) throws SQLException;
 
+	/**
+	 * Returns condition query in which the values depending on the sampling level are parameter markers,
+	 * so that a prepared statement of the query can be reused at every level.
+	 * @return	condition query, or null if there is no condition query, or if the query can not be parameterized, or if this SqlRewriter is constructed from plain SQL.
+	 * @throws SQLException	if error occurs
+	 */
+	ParameterizedQuery getParameterizedConditionQuery() throws SQLException;
+
+	/**
+	 * Returns aggregation query in which the values depending on the sampling level are parameter markers,
+	 * so that a prepared statement of the query can be reused at every level.
+	 * @return	aggregation query, or null if the query can not be parameterized, or if this SqlRewriter is constructed from plain SQL.
+	 * @throws SQLException	if error occurs
+	 */
+	ParameterizedQuery getParameterizedAggregateQuery() throws SQLException;
+
+	/**
+	 * Returns condition query that evaluates UNTIL condition at every level from the smallest sample down to the specified level in a single query.
+	 * The query scans the sample of the specified level once, and returns the smallest value of level column at which the condition is satisfied,
+	 * or NULL if the condition is not satisfied at any of those levels.
+	 * @param toLv	the lowest (largest sample) level to evaluate
+	 * @return	condition query, or null if UNTIL condition can not be decomposed by level, or if this SqlRewriter is constructed from plain SQL.
+	 * @throws SQLException	if error occurs
+	 */
+	String rewriteCumulative(int toLv) throws SQLException;
+
+	/**
+	 * Returns the time budget specified by {@code UNTIL TIME n unit}.
+	 * If the time budget is specified, condition query is not generated, and the sampling level is decided by the time to execute aggregate query.
+	 * @return	time budget in milliseconds, or -1 if UNTIL clause is not a time budget, or if this SqlRewriter is constructed from plain SQL.
+	 * @throws SQLException	if SQL has error, or the unit of time is unknown
+	 */
+	long getTimeBudgetMillis() throws SQLException;
+
+	/**
+	 * Returns the sampling level specified by {@code LEVEL n} after SAMPLE clause.
+	 * If the level is specified, the level is not searched, and aggregate query of the level is executed.
+	 * @return	level, or -1 if the level is not specified, or if this SqlRewriter is constructed from plain SQL.
+	 * @throws SQLException	if SQL has error, or the level is out of range
+	 */
+	int getLevelHint() throws SQLException;
+
+	/**
+	 * Returns UNTIL condition that compares an aggregate over a single sample table with a constant.
+	 * Such condition can be evaluated by aggregating each part of the sample separately and merging the results.
+	 * This method must be called after meta information of sampling tables is loaded.
+	 * @return	DecomposableUntil, or null if UNTIL condition is not such a form, or if this SqlRewriter is constructed from plain SQL.
+	 */
+	DecomposableUntil getDecomposableUntil();
+
+	/**
+	 * Returns levels at which UNTIL condition should be tested, in descending order, that is, from the smallest sample to the largest sample.
+	 * According to the level histograms of sampling tables, levels at which the sample is same as the next higher level are omitted,
+	 * and so are levels at which UNTIL condition can not be satisfied.
+	 * @return	levels in descending order, or empty array if UNTIL condition can not be satisfied at any level.
+	 * @throws SQLException	if error occurs
+	 */
+	int[] getCandidateLevels() throws SQLException;
+
+	/**
+	 * Returns the level at which UNTIL condition is satisfied, evaluated by the level statistics of the sample table without condition query.
+	 * This is available only if UNTIL condition compares COUNT(*) or COUNT(DISTINCT sampleKey) of a single sample table without WHERE clause
+	 * with a constant as a lower bound, and the level statistics of the sample key are stored.
+	 * This method must be called after meta information of sampling tables is loaded.
+	 * @return	the highest level at which the number of rows or sample keys reaches the constant,
+	 * or -1 if UNTIL condition can not be evaluated by the level statistics, or if it is not satisfied at any level.
+	 * @throws SQLException	if SQL has error
+	 */
+	int getStatisticsLevel() throws SQLException;
+
+	/**
+	 * Returns the sample tables in SAMPLE clause.
+	 * @return	array of pairs of the local name of sample table and the name of its sample key, or empty array if this SqlRewriter is constructed from plain SQL.
+	 * @throws SQLException	if SQL has error
+	 */
+	String[][] getSampleTables() throws SQLException;
+
+	/**
+	 * Returns number of parameter markers ({@code ?}) in the SQL.
+	 * @return	number of parameter markers
+	 */
+	int getParameterCount();
+
+	/**
+	 * Returns the parameters of the SQL that correspond to the parameter markers of condition query, in order of appearance.
+	 * The condition queries of all levels have the same parameter markers.
+	 * A parameter of the SQL may correspond to more than one marker, for example when it is copied by THIS keyword, or to no marker.
+	 * @return	1-based parameter indexes of the SQL, or null if there is no condition query.
+	 * @throws SQLException	if SQL has error, or if this SqlRewriter is constructed from plain SQL.
+	 */
+	int[] getConditionParameterIndexes() throws SQLException;
+
+	/**
+	 * Returns the parameters of the SQL that correspond to the parameter markers of aggregation query, in order of appearance.
+	 * The aggregation queries of all levels have the same parameter markers.
+	 * @return	1-based parameter indexes of the SQL
+	 * @throws SQLException	if SQL has error, or if this SqlRewriter is constructed from plain SQL.
+	 */
+	int[] getAggregateParameterIndexes() throws SQLException;
+
 	/**
 	 * Returns true if this SqlRewriter is constructed from SQL which contains SAMPLE clause, otherwise false.
 	 * @return	true if this SqlRewriter is constructed from SQL which contains SAMPLE clause, otherwise false
 	 */
 	boolean hasSampleClause();
+
+	/**
+	 * Returns normalized text of the SQL, in which literals are removed.
+	 * SQLs that differ only in literals, comments, spaces or letter case of keywords have the same fingerprint.
+	 * @return	fingerprint, or null if this SqlRewriter is constructed from plain SQL.
+	 */
+	String getFingerprint();
+
+	/**
+	 * Returns the patterns by which the rewritten queries read tables entirely instead of the sample, see {@link SamplingSqlAnalyzer}.
+	 * This method must be called after meta information of sampling tables is loaded.
+	 * @return	messages of the patterns found, or empty list if none, or if this SqlRewriter is constructed from plain SQL.
+	 * @throws SQLException	if SQL has error
+	 */
+	List<String> getPerformanceWarnings() throws SQLException;
 }
 
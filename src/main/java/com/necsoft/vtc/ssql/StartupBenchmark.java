@@ -0,0 +1,151 @@
+/*
+Sampling-SQL
+
+Copyright (c) 2015-2017 NEC Solution Innovators, Ltd.
+
+This software is released under the MIT License, See the LICENSE file
+in the project root for more information.
+*/
+package com.necsoft.vtc.ssql;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A command line tool that measures the time to the first sampling query in a fresh JVM.
+ * Run it several times in new JVMs, because only the first query of a JVM is measured.
+ * <p>Usage: {@code java -cp ... com.necsoft.vtc.ssql.StartupBenchmark [-wait] (-url url [-user name] [-password pw] [-property name=value]... | -keys file [-inlineView] [-levels n]) (file|directory)...}
+ * <ul>
+ * <li>-wait: waits for the warm-up of the parsers after the driver is loaded, and before the first query is measured.</li>
+ * <li>-url: connects the database by the Sampling-SQL JDBC driver, and executes the SQL reading all rows.</li>
+ * <li>-keys: does not connect the database, and rewrites the SQL at all candidate levels with the unit keys in the CSV file,
+ * see {@link RewriteBundle#main(String[])}. This is used to generate the class list of AppCDS without a database.</li>
+ * </ul>
+ * SQL files are read in the same way as {@link RewriteBundle}. The first SQL is measured, and the rest are executed after it.
+ */
+class StartupBenchmark {
+
+	/**
+	 * Runs the benchmark.
+	 * @param args	arguments
+	 * @throws Exception	if failed to read the files, or to execute the SQL
+	 */
+	public static void main(String[] args) throws Exception {
+		long start = System.nanoTime();
+		boolean wait = false;
+		String url = null;
+		Properties info = new Properties();
+		String keys = null;
+		boolean inlineView = false;
+		int numLevel = 32;
+		List<Path> inputs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-wait")) {
+				wait = true;
+			}
+			else if (args[i].equals("-url") && i + 1 < args.length) {
+				url = args[++i];
+			}
+			else if (args[i].equals("-user") && i + 1 < args.length) {
+				info.setProperty("user", args[++i]);
+			}
+			else if (args[i].equals("-password") && i + 1 < args.length) {
+				info.setProperty("password", args[++i]);
+			}
+			else if (args[i].equals("-property") && i + 1 < args.length && args[i + 1].indexOf('=') > 0) {
+				String property = args[++i];
+				int eq = property.indexOf('=');
+				info.setProperty(property.substring(0, eq), property.substring(eq + 1));
+			}
+			else if (args[i].equals("-keys") && i + 1 < args.length) {
+				keys = args[++i];
+			}
+			else if (args[i].equals("-inlineView")) {
+				inlineView = true;
+			}
+			else if (args[i].equals("-levels") && i + 1 < args.length) {
+				numLevel = Integer.parseInt(args[++i]);
+			}
+			else {
+				inputs.add(Paths.get(args[i]));
+			}
+		}
+		if ((url == null) == (keys == null) || inputs.isEmpty()) {
+			System.err.println("Usage: StartupBenchmark [-wait] (-url url [-user name] [-password pw] [-property name=value]... | -keys file [-inlineView] [-levels n]) (file|directory)...");
+			System.exit(2);
+		}
+		List<String> statements = RewriteBundle.readStatements(inputs);
+		if (statements.isEmpty()) {
+			System.err.println("No SQL found.");
+			System.exit(2);
+		}
+		DatabaseDef databaseDef = keys != null ? RewriteBundle.loadKeyDefs(keys) : null;
+
+		long loadStart = System.nanoTime();
+		Class.forName(Driver.class.getName());
+		long loaded = System.nanoTime();
+		if (wait) {
+			RewriterCommon.awaitWarmUp(Long.MAX_VALUE);
+		}
+		long queryStart = System.nanoTime();
+		long connected = queryStart;
+		long first;
+		if (url != null) {
+			try (Connection conn = DriverManager.getConnection(url, info)) {
+				connected = System.nanoTime();
+				executeQuery(conn, statements.get(0));
+				first = System.nanoTime();
+				for (int i = 1; i < statements.size(); i++) {
+					executeQuery(conn, statements.get(i));
+				}
+			}
+		}
+		else {
+			rewrite(databaseDef, numLevel, statements.get(0), inlineView);
+			first = System.nanoTime();
+			for (int i = 1; i < statements.size(); i++) {
+				rewrite(databaseDef, numLevel, statements.get(i), inlineView);
+			}
+		}
+		long end = System.nanoTime();
+		boolean warmedUp = RewriterCommon.awaitWarmUp(0);
+
+		System.out.println(String.format("load driver:          %10.3f ms", (loaded - loadStart) / 1e6));
+		if (wait) {
+			System.out.println(String.format("wait for warm-up:     %10.3f ms", (queryStart - loaded) / 1e6));
+		}
+		if (url != null) {
+			System.out.println(String.format("connect:              %10.3f ms", (connected - queryStart) / 1e6));
+		}
+		System.out.println(String.format("first query:          %10.3f ms", (first - connected) / 1e6));
+		System.out.println(String.format("time to first query:  %10.3f ms (from main), %d ms (from JVM start)",
+				(first - start) / 1e6, ManagementFactory.getRuntimeMXBean().getUptime() - (end - first) / 1000000));
+		System.out.println(String.format("other %d queries:     %10.3f ms", statements.size() - 1, (end - first) / 1e6));
+		System.out.println("warm-up finished: " + warmedUp);
+	}
+
+	private static void executeQuery(Connection conn, String sql) throws SQLException {
+		try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+			while (rs.next()) {
+				// read all rows
+			}
+		}
+	}
+
+	private static void rewrite(DatabaseDef databaseDef, int numLevel, String sql, boolean inlineView) throws SQLException {
+		SamplingSqlRewriter rewriter = new SamplingSqlRewriter(databaseDef, numLevel, sql, inlineView);
+		for (int lv : rewriter.getCandidateLevels()) {
+			rewriter.rewrite(lv);
+		}
+	}
+
+}